@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program and its checks
+javac -d $DIR/../classes $DIR/../src/GameRental.java $DIR/../test/GameRentalTest.java || exit 1
+
+#run the checks, which need no database
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar GameRentalTest
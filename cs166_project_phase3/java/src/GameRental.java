@@ -31,6 +31,77 @@
 import java.math.BigDecimal;
 import java.util.Random;
  import java.util.Calendar;
+ import java.util.Map;
+ import java.util.HashMap;
+ import java.util.PriorityQueue;
+ import java.util.Collections;
+ import java.time.LocalDate;
+ import java.util.concurrent.ConcurrentHashMap;
+ import java.util.concurrent.atomic.AtomicInteger;
+ import java.util.concurrent.atomic.AtomicLongArray;
+ import java.util.concurrent.atomic.LongAdder;
+ import java.util.concurrent.CompletableFuture;
+ import java.util.concurrent.ExecutionException;
+ import java.util.concurrent.Executors;
+ import java.util.concurrent.ThreadPoolExecutor;
+ import java.util.concurrent.RejectedExecutionException;
+ import java.util.concurrent.ForkJoinPool;
+ import java.util.concurrent.RecursiveTask;
+ import java.util.concurrent.ScheduledExecutorService;
+ import java.util.concurrent.TimeUnit;
+ import java.util.regex.Pattern;
+ import java.util.TreeMap;
+ import java.io.FileWriter;
+ import java.io.PrintWriter;
+ import java.io.IOException;
+ import java.lang.management.ManagementFactory;
+ import javax.management.ObjectName;
+ import java.util.logging.FileHandler;
+ import java.util.logging.Formatter;
+ import java.util.logging.Level;
+ import java.util.logging.LogRecord;
+ import java.util.logging.Logger;
+ import java.util.regex.Matcher;
+ import java.util.AbstractList;
+ import java.util.concurrent.atomic.AtomicLong;
+ import java.util.concurrent.atomic.AtomicReferenceArray;
+ import java.util.concurrent.atomic.AtomicBoolean;
+ import java.nio.ByteBuffer;
+ import java.nio.channels.FileChannel;
+ import java.nio.charset.StandardCharsets;
+ import java.nio.file.Files;
+ import java.nio.file.Path;
+ import java.nio.file.Paths;
+ import java.nio.file.StandardOpenOption;
+ import java.io.UncheckedIOException;
+ import java.lang.ref.Cleaner;
+ import java.io.OutputStream;
+ import java.io.Reader;
+ import java.io.BufferedOutputStream;
+ import java.nio.channels.Channels;
+ import java.util.zip.GZIPOutputStream;
+ import java.util.zip.GZIPInputStream;
+ import java.nio.file.DirectoryStream;
+ import java.util.Arrays;
+ import java.util.Set;
+ import java.util.HashSet;
+ import java.util.SortedSet;
+ import java.util.TreeSet;
+ import java.util.concurrent.ExecutorService;
+ import java.util.concurrent.Future;
+ import java.nio.MappedByteBuffer;
+ import java.nio.IntBuffer;
+ import java.io.ByteArrayOutputStream;
+ import java.io.DataOutputStream;
+ import java.nio.file.StandardCopyOption;
+ import java.util.LinkedHashMap;
+ import java.util.Comparator;
+ import java.util.concurrent.ArrayBlockingQueue;
+ import java.util.BitSet;
+ import java.util.Iterator;
+ import java.util.LinkedHashSet;
+ import java.util.Collection;
+ import java.util.stream.Collectors;
  /**
   * This class defines a simple embedded SQL utility class that is designed to
   * work with PostgreSQL JDBC drivers.
@@ -41,11 +112,88 @@ import java.util.Random;
     // reference to physical database connection.
     private Connection _connection = null;
  
+    // shard connections (gamerental.shards=host:port/db,...); _connection is the one in use
+    private final List<Connection> _shards = new ArrayList<Connection>();
+ 
+    // read-only replicas (gamerental.replicas=host:port,...), used round robin
+    private final List<Connection> _replicas = new ArrayList<Connection>();
+    private int _nextReplica = 0;
+ 
+    // WAL position of the session's last write, and which replicas have replayed it
+    private String _writeLsn = null;
+    private boolean[] _replicaCaughtUp = new boolean[0];
+    // a write made inside the open transaction, noted once it commits
+    private boolean _uncommittedWrite = false;
+    // tables written inside the open transaction of each connection, whose
+    // cached results are dropped again once it commits
+    private final Map<Connection, Set<String>> _writtenInTransaction = new HashMap<Connection, Set<String>>();
+ 
+    // connection settings, kept to open extra connections (parallel export)
+    private String _url = null;
+    private String _user = null;
+    private String _passwd = null;
+ 
     // handling the keyboard inputs through a BufferedReader
     // This variable can be global for convenience.
     static BufferedReader in = new BufferedReader(
                                  new InputStreamReader(System.in));
  
+    // in-memory trending leaderboard, seeded once from the order history
+    private final TrendingBoard _trending = new TrendingBoard();
+ 
+    // last known stock per game; orders take their copies in the Inventory table
+    private final InventoryLedger _inventory = new InventoryLedger();
+ 
+    // latency, row and error counts of every statement run through the helpers
+    private final QueryMetrics _metrics = new QueryMetrics();
+ 
+    // statements slower than gamerental.slowQueryMs, written to gamerental-slow.N.log
+    private final SlowQueryLog _slowLog = new SlowQueryLog();
+    // runs the sampled EXPLAINs of slow queries, off the session's thread
+    private ExecutorService _explainer = null;
+    // the explainer's own connection to each server, used on its thread only
+    private final Map<String, Connection> _explainConnections = new HashMap<String, Connection>();
+ 
+    // catalog with its genre and price indexes, warm-started from a mapped snapshot file
+    private final CatalogSnapshot _catalog = new CatalogSnapshot(
+       Paths.get(System.getProperty("gamerental.catalogSnapshot", "catalog.snapshot")));
+ 
+    // worker actions, written to the Worker_*_updates tables off the request path
+    private AuditTrail _audit = null;
+ 
+    // page-at-a-time writer behind executeQueryAndPrintResult
+    private final ConsoleRenderer _renderer = new ConsoleRenderer();
+
+    // catalog prices in cents, republished with the catalog
+    private final PricingEngine _pricing = new PricingEngine();
+    // this session's cart, refilled for every quote
+    private final PricingEngine.Cart _cart = new PricingEngine.Cart(1);
+
+    // complete orders, which no longer change
+    private final OrderDetailCache _orders = new OrderDetailCache();
+    private final OrderArchive _archive = new OrderArchive(this);
+
+    // results of the customer views, dropped when the tables they read are written
+    private final ResultCache _results = new ResultCache();
+
+    // invalidations announced by other instances
+    private ChangeListener _listener = null;
+
+    // due-date reminders, when enabled
+    private ReminderScheduler _reminders = null;
+
+    // revenue and rental reports, folded as orders come in
+    private RentalReports _reports = new RentalReports(this);
+
+    // who lists which game, from UserFavGames
+    private FavoritesIndex _favorites = new FavoritesIndex();
+ 
+    // heap a single executeQueryAndReturnResult may use before spilling rows to disk
+    static final long RESULT_BUDGET_BYTES = Long.getLong("gamerental.resultBudgetBytes", 16L << 20);
+
+    // heap all results held at once may use, across sessions and threads
+    static final long RESULT_TOTAL_BUDGET_BYTES = Long.getLong("gamerental.resultTotalBudgetBytes", 4 * RESULT_BUDGET_BYTES);
+ 
     /**
      * Creates a new instance of GameRental store
      *
@@ -65,7 +213,30 @@ import java.util.Random;
  
           // obtain a physical connection
           this._connection = DriverManager.getConnection(url, user, passwd);
+          this._url = url;
+          this._user = user;
+          this._passwd = passwd;
+          String shards = System.getProperty("gamerental.shards", "").trim();
+          if (!shards.isEmpty()) {
+             this._shards.addAll(connectShards(shards, user, passwd));
+             this._connection = this._shards.get(0);
+             System.out.println("Sharded over " + this._shards.size() + " database(s)");
+             settlePrepared();
+          }
+          String replicas = System.getProperty("gamerental.replicas", "").trim();
+          if (!replicas.isEmpty() && this._shards.isEmpty()) {
+             for (String replica : replicas.split(","))
+                this._replicas.add(DriverManager.getConnection(
+                   "jdbc:postgresql://" + replica.trim() + "/" + dbname, user, passwd));
+             this._replicaCaughtUp = new boolean[this._replicas.size()];
+             System.out.println("Reading from " + this._replicas.size() + " replica(s)");
+          }
           System.out.println("Done");
+          this._metrics.addSection(this._results::report);
+          this._metrics.publish();
+          this._audit = new AuditTrail(this);
+          if (!Boolean.getBoolean("gamerental.noListen"))
+             this._listener = new ChangeListener(this);
        }catch (Exception e){
           System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
           System.out.println("Make sure you started postgres on this machine");
@@ -75,102 +246,142 @@ import java.util.Random;
  
     /**
      * Method to execute an update SQL statement.  Update SQL instructions
-     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  Updates always
+     * go to the primary; the query helpers may read from a replica.
      *
      * @param sql the input SQL string
+     * @return the number of rows the statement changed
      * @throws java.sql.SQLException when update failed
      */
-    public void executeUpdate (String sql) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+    public int executeUpdate (String sql) throws SQLException {
+       long start = System.nanoTime();
+       // creates a statement object, closed however the update ends
+       try (Statement stmt = this._connection.createStatement ()) {
+          // issues the update instruction
+          int rows = stmt.executeUpdate (sql);
  
-       // issues the update instruction
-       stmt.executeUpdate (sql);
- 
-       // close the instruction
-       stmt.close ();
+          noteWrite();
+          this._results.invalidateWrite(sql);
+          // a read between here and the commit can cache the rows as they were
+          if (!this._connection.getAutoCommit())
+             this._writtenInTransaction.computeIfAbsent(this._connection, c -> new HashSet<String>()).addAll(ResultCache.written(sql));
+          finish(sql, start, rows, false, this._connection);
+          return rows;
+       }catch (SQLException e){
+          finish(sql, start, 0, true, this._connection);
+          throw e;
+       }
     }//end executeUpdate
  
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and outputs the results to
-     * standard out.
+     * standard out, one aligned page of gamerental.pageRows rows at a time.
+     * Rows are fetched from a cursor page by page, so when the user stops
+     * paging the rest of the result is never transferred.
      *
      * @param query the input query string
      * @return the number of rows returned
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQueryAndPrintResult (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
- 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
- 
-       /*
-        ** obtains the metadata object for the returned result set.  The metadata
-        ** contains row and column info.
-        */
-       ResultSetMetaData rsmd = rs.getMetaData ();
-       int numCol = rsmd.getColumnCount ();
+       long start = System.nanoTime();
        int rowCount = 0;
+       // a cursor only streams inside a transaction; reuse the caller's if there is one
+       Connection connection = readConnection();
+       boolean autoCommit = connection.getAutoCommit();
+       try{
+          if (autoCommit) connection.setAutoCommit(false);
+          // creates a statement object
+          try (Statement stmt = connection.createStatement ()) {
+             stmt.setFetchSize(ConsoleRenderer.PAGE_ROWS);
+ 
+             // issues the query instruction
+             ResultSet rs = stmt.executeQuery (query);
  
-       // iterates through the result set and output them to standard out.
-       boolean outputHeader = true;
-       while (rs.next()){
-        if(outputHeader){
-          for(int i = 1; i <= numCol; i++){
-          System.out.print(rsmd.getColumnName(i) + "\t");
+             // pages through the result set and outputs them to standard out.
+             rowCount = this._renderer.render(rs, System.console() != null);
           }
-          System.out.println();
-          outputHeader = false;
-        }
-          for (int i=1; i<=numCol; ++i)
-             System.out.print (rs.getString(i) + "\t");
-          System.out.println();
-          ++rowCount;
-       }//end while
-       stmt.close();
+          if (autoCommit) {
+             connection.commit();
+             connection.setAutoCommit(true);
+          }
+       }catch (SQLException e){
+          try{
+             if (autoCommit) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+             }
+          }catch (SQLException ignored){
+             // the original error is the one worth reporting.
+          }
+          finish(query, start, rowCount, true, connection);
+          throw e;
+       }
+       finish(query, start, rowCount, false, connection);
        return rowCount;
     }//end executeQuery
  
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and returns the results as
-     * a list of records. Each record in turn is a list of attribute values
+     * a list of records. Each record in turn is a list of attribute values.
+     * Once the records pass gamerental.resultBudgetBytes the rest of them
+     * are kept in a temporary file (see SpilledResult).
      *
      * @param query the input query string
      * @return the query result as a list of records
      * @throws java.sql.SQLException when failed to execute the query
      */
     public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       long start = System.nanoTime();
+       SpilledResult result  = new SpilledResult(RESULT_BUDGET_BYTES);
+       Connection connection = readConnection();
+       // creates a statement object, closed however the query ends
+       try (Statement stmt = connection.createStatement ()) {
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
  
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
- 
-       /*
-        ** obtains the metadata object for the returned result set.  The metadata
-        ** contains row and column info.
-        */
-       ResultSetMetaData rsmd = rs.getMetaData ();
-       int numCol = rsmd.getColumnCount ();
-       int rowCount = 0;
+          /*
+           ** obtains the metadata object for the returned result set.  The metadata
+           ** contains row and column info.
+           */
+          ResultSetMetaData rsmd = rs.getMetaData ();
+          int numCol = rsmd.getColumnCount ();
+          int rowCount = 0;
  
-       // iterates through the result set and saves the data returned by the query.
-       boolean outputHeader = false;
-       List<List<String>> result  = new ArrayList<List<String>>();
-       while (rs.next()){
-         List<String> record = new ArrayList<String>();
-       for (int i=1; i<=numCol; ++i)
-          record.add(rs.getString (i));
-         result.add(record);
-       }//end while
-       stmt.close ();
+          // iterates through the result set and saves the data returned by the query.
+          boolean outputHeader = false;
+          while (rs.next()){
+            List<String> record = new ArrayList<String>();
+          for (int i=1; i<=numCol; ++i)
+             record.add(rs.getString (i));
+            result.add(record);
+          }//end while
+          result.seal();
+       }catch (SQLException e){
+          finish(query, start, result.size(), true, connection);
+          throw e;
+       }
+       finish(query, start, result.size(), false, connection);
+       this._metrics.recordResult(query, result.heapBytes(), result.spilledBytes());
        return result;
     }//end executeQueryAndReturnResult
  
+    /**
+     * Runs a registered read-only query through the result cache. Inside an
+     * explicit transaction it goes to the database, so uncommitted rows are
+     * never cached.
+     *
+     * @return the query result, which must not be modified
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> cachedQuery (ResultCache.Template template, Object... params) throws SQLException {
+       if (!this._connection.getAutoCommit())
+          return executeQueryAndReturnResult(String.format(template.sql, params));
+       return this._results.get(template, params, this::executeQueryAndReturnResult);
+    }//end cachedQuery
+
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and returns the number of results
@@ -180,22 +391,465 @@ import java.util.Random;
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQuery (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
- 
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
- 
+        long start = System.nanoTime();
         int rowCount = 0;
+        Connection connection = readConnection();
+        // creates a statement object, closed however the query ends
+        try (Statement stmt = connection.createStatement ()) {
+           // issues the query instruction
+           ResultSet rs = stmt.executeQuery (query);
  
-        // iterates through the result set and count nuber of results.
-        while (rs.next()){
-           rowCount++;
-        }//end while
-        stmt.close ();
+           // iterates through the result set and count nuber of results.
+           while (rs.next()){
+              rowCount++;
+           }//end while
+        }catch (SQLException e){
+           finish(query, start, rowCount, true, connection);
+           throw e;
+        }
+        finish(query, start, rowCount, false, connection);
         return rowCount;
     }
  
+    /**
+     * Opens one connection per entry of a host:port/db,... shard list.
+     */
+    static List<Connection> connectShards(String shards, String user, String passwd) throws SQLException {
+       List<Connection> connections = new ArrayList<Connection>();
+       for (String shard : shards.split(","))
+          connections.add(DriverManager.getConnection("jdbc:postgresql://" + shard.trim(), user, passwd));
+       return connections;
+    }//end connectShards
+
+    /**
+     * The driver's own object behind connection implementing api, such as
+     * org.postgresql.PGConnection. Drivers older than JDBC 4 (pg73jdbc3)
+     * have no Connection.unwrap, but their connections implement the API
+     * themselves.
+     */
+    static Object driverConnection(Connection connection, Class<?> api) throws SQLException {
+       return api.isInstance(connection) ? connection : connection.unwrap(api);
+    }
+
+    public boolean isSharded() {
+       return !this._shards.isEmpty();
+    }
+
+    /**
+     * Shard owning a login, by rendezvous hashing: every shard scores the
+     * login and the highest score wins, so adding a shard at the end of
+     * gamerental.shards only moves the users the new shard wins, about
+     * 1/n of them, instead of nearly all of them. All rows hanging off a
+     * user (orders, tracking, games in order) live there.
+     */
+    static int shardFor(String login, int shards) {
+       long key = login.trim().hashCode();
+       int best = 0;
+       long bestScore = Long.MIN_VALUE;
+       for (int shard = 0; shard < shards; ++shard) {
+          long score = mix(key * 0x9E3779B97F4A7C15L + shard);
+          if (score > bestScore) {
+             bestScore = score;
+             best = shard;
+          }
+       }
+       return best;
+    }
+
+    // the 64-bit finalizer of MurmurHash3
+    private static long mix(long z) {
+       z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+       z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+       return z ^ (z >>> 33);
+    }
+
+    /**
+     * A random ID for a row owned by login. When sharded the ID is chosen
+     * congruent to the owning shard modulo the shard count, so two shards
+     * can never pick the same one.
+     */
+    static String newId(GameRental esql, String login) {
+       int shards = esql._shards.size();
+       if (shards < 2) return Integer.toString(ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+       return Integer.toString(ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE / shards) * shards + shardFor(login, shards));
+    }
+
+    /**
+     * Points the session at the shard owning login, so the following
+     * statements about that user run there. Does nothing when unsharded.
+     */
+    public void useShardFor(String login) {
+       if (isSharded() && login != null)
+          this._connection = this._shards.get(shardFor(login, this._shards.size()));
+    }//end useShardFor
+
+    /**
+     * Moves a user whose login no longer hashes to the current shard (after
+     * a rename) to the shard that owns it now.
+     */
+    public void relocateUser(String login) throws SQLException {
+       if (!isSharded()) return;
+       Connection owner = this._shards.get(shardFor(login, this._shards.size()));
+       if (owner != this._connection)
+          Resharder.moveUser(this._connection, owner, login);
+    }//end relocateUser
+
+    /**
+     * Runs an update on every shard, for tables every shard holds a copy of
+     * (Catalog, Inventory) and for lookups not keyed by login. Either every
+     * shard takes it or none does (see onAllShards).
+     */
+    public void executeUpdateOnAllShards(String sql) throws SQLException {
+       if (!isSharded()) {
+          executeUpdate(sql);
+          return;
+       }
+       onAllShards(shard -> executeUpdate(sql));
+    }//end executeUpdateOnAllShards
+
+    /**
+     * Work done by onAllShards, with the session pointed at the shard.
+     */
+    interface ShardWork<E extends Exception> {
+       void run(Connection shard) throws SQLException, E;
+    }
+
+    /**
+     * Runs work on every shard as one distributed transaction. Each shard's
+     * part is left prepared (PREPARE TRANSACTION) until all of them are,
+     * then the decision is recorded in ShardCommits on the first shard and
+     * every part is committed; a failure before the decision rolls the
+     * prepared parts back. The coordinator holds an advisory lock on the
+     * transaction ID throughout, and settlePrepared finishes the parts a
+     * crashed coordinator left behind. The shards need
+     * max_prepared_transactions above zero. Inside an explicit transaction
+     * the work simply runs on each shard and the caller commits.
+     */
+    <E extends Exception> void onAllShards(ShardWork<E> work) throws SQLException, E {
+       onShards(this._shards, work);
+    }//end onAllShards
+
+    /**
+     * Same as onAllShards, for some of the shards, in the order given. On a
+     * single connection that is a plain transaction.
+     */
+    <E extends Exception> void onShards(List<Connection> shards, ShardWork<E> work) throws SQLException, E {
+       Connection current = this._connection;
+       try{
+          if (!current.getAutoCommit()) {
+             for (Connection shard : shards) {
+                this._connection = shard;
+                work.run(shard);
+             }
+             return;
+          }
+          if (shards.size() == 1) {
+             Connection only = shards.get(0);
+             this._connection = only;
+             only.setAutoCommit(false);
+             try{
+                work.run(only);
+                commit();
+             }catch (Exception e){
+                rollback();
+                throw e;
+             }finally{
+                only.setAutoCommit(true);
+             }
+             return;
+          }
+          Connection coordinator = this._shards.get(0);
+          String gid = "gamerental-" + java.util.UUID.randomUUID();
+          List<Connection> prepared = new ArrayList<Connection>();
+          Set<String> written = new HashSet<String>();
+          boolean decided = false;
+          lockTransaction(coordinator, gid, true);
+          try{
+             for (Connection shard : shards) {
+                this._connection = shard;
+                shard.setAutoCommit(false);
+                try{
+                   work.run(shard);
+                   try (Statement stmt = shard.createStatement()) {
+                      stmt.execute(String.format("PREPARE TRANSACTION '%s';", gid));
+                   }
+                   prepared.add(shard);
+                   Set<String> tables = this._writtenInTransaction.remove(shard);
+                   if (tables != null) written.addAll(tables);
+                }catch (Exception e){
+                   rollback();
+                   throw e;
+                }finally{
+                   shard.setAutoCommit(true);
+                }
+             }
+             try (Statement stmt = coordinator.createStatement()) {
+                stmt.executeUpdate(String.format("INSERT INTO ShardCommits (gid) VALUES ('%s');", gid));
+             }
+             decided = true;
+             for (Connection shard : prepared)
+                finishPrepared(shard, gid, true);
+             invalidateCommitted(written);
+             try (Statement stmt = coordinator.createStatement()) {
+                stmt.executeUpdate(String.format("DELETE FROM ShardCommits WHERE gid = '%s';", gid));
+             }
+          }finally{
+             if (!decided)
+                for (Connection shard : prepared)
+                   finishPrepared(shard, gid, false);
+             unlockTransaction(coordinator, gid);
+          }
+       }finally{
+          this._connection = current;
+       }
+    }//end onShards
+
+    /**
+     * Finishes the distributed transactions a crashed coordinator left
+     * prepared: committed where ShardCommits holds the decision, rolled
+     * back otherwise. A transaction whose advisory lock is taken still has
+     * a live coordinator and is left alone.
+     */
+    private void settlePrepared() {
+       Connection coordinator = this._shards.get(0);
+       try{
+          Set<String> gids = new TreeSet<String>();
+          for (Connection shard : this._shards)
+             gids.addAll(preparedTransactions(shard));
+          try (Statement stmt = coordinator.createStatement()) {
+             ResultSet rs = stmt.executeQuery("SELECT gid FROM ShardCommits;");
+             while (rs.next()) gids.add(rs.getString(1).trim());
+          }
+          for (String gid : gids) {
+             if (!lockTransaction(coordinator, gid, false)) continue;
+             try (Statement stmt = coordinator.createStatement()) {
+                ResultSet rs = stmt.executeQuery(String.format("SELECT COUNT(*) FROM ShardCommits WHERE gid = '%s';", gid));
+                boolean commit = rs.next() && rs.getInt(1) > 0;
+                boolean settled = true;
+                for (Connection shard : this._shards)
+                   if (preparedTransactions(shard).contains(gid))
+                      settled &= finishPrepared(shard, gid, commit);
+                if (settled && commit)
+                   stmt.executeUpdate(String.format("DELETE FROM ShardCommits WHERE gid = '%s';", gid));
+                System.out.println(String.format("Settled shard transaction %s: %s", gid, commit ? "committed" : "rolled back"));
+             }finally{
+                unlockTransaction(coordinator, gid);
+             }
+          }
+       }catch (SQLException e){
+          System.err.println("Unable to settle prepared shard transactions: " + e.getMessage());
+       }
+    }//end settlePrepared
+
+    private static Set<String> preparedTransactions(Connection shard) throws SQLException {
+       Set<String> gids = new HashSet<String>();
+       try (Statement stmt = shard.createStatement()) {
+          ResultSet rs = stmt.executeQuery("SELECT gid FROM pg_prepared_xacts WHERE gid LIKE 'gamerental-%' AND database = current_database();");
+          while (rs.next()) gids.add(rs.getString(1));
+       }
+       return gids;
+    }
+
+    /**
+     * @return whether the prepared part was finished; if not, the next
+     * settlePrepared finishes it
+     */
+    private static boolean finishPrepared(Connection shard, String gid, boolean commit) {
+       try (Statement stmt = shard.createStatement()) {
+          stmt.execute(String.format("%s PREPARED '%s';", commit ? "COMMIT" : "ROLLBACK", gid));
+          return true;
+       }catch (SQLException e){
+          System.err.println(String.format("Unable to %s shard transaction %s: %s", commit ? "commit" : "roll back", gid, e.getMessage()));
+          return false;
+       }
+    }
+
+    private static boolean lockTransaction(Connection coordinator, String gid, boolean wait) throws SQLException {
+       try (Statement stmt = coordinator.createStatement()) {
+          if (wait) {
+             stmt.execute(String.format("SELECT pg_advisory_lock(hashtext('%s'));", gid));
+             return true;
+          }
+          ResultSet rs = stmt.executeQuery(String.format("SELECT pg_try_advisory_lock(hashtext('%s'));", gid));
+          return rs.next() && rs.getBoolean(1);
+       }
+    }
+
+    private static void unlockTransaction(Connection coordinator, String gid) {
+       try (Statement stmt = coordinator.createStatement()) {
+          stmt.execute(String.format("SELECT pg_advisory_unlock(hashtext('%s'));", gid));
+       }catch (SQLException e){
+          // the lock goes with the session
+       }
+    }
+
+    /**
+     * Runs a query on every shard and concatenates the results.
+     */
+    public List<List<String>> executeQueryAndReturnResultOnAllShards(String query) throws SQLException {
+       if (!isSharded()) return executeQueryAndReturnResult(query);
+       List<List<String>> result = new ArrayList<List<String>>();
+       Connection current = this._connection;
+       try{
+          for (Connection shard : this._shards) {
+             this._connection = shard;
+             result.addAll(executeQueryAndReturnResult(query));
+          }
+       }finally{
+          this._connection = current;
+       }
+       return result;
+    }//end executeQueryAndReturnResultOnAllShards
+
+    /**
+     * Picks the connection for a read. Without replicas, or inside an
+     * explicit transaction, that is the primary. Otherwise the next replica
+     * in turn, provided it has replayed the session's last write; a lagging
+     * replica sends the read to the primary, so a session always reads its
+     * own writes.
+     */
+    private Connection readConnection() throws SQLException {
+       if (this._replicas.isEmpty() || !this._connection.getAutoCommit())
+          return this._connection;
+       int index = Math.floorMod(this._nextReplica++, this._replicas.size());
+       Connection replica = this._replicas.get(index);
+       if (this._writeLsn != null && !this._replicaCaughtUp[index]) {
+          try (Statement stmt = replica.createStatement ()) {
+             ResultSet rs = stmt.executeQuery (String.format(
+                "SELECT pg_last_wal_replay_lsn() >= '%s'::pg_lsn;", this._writeLsn));
+             this._replicaCaughtUp[index] = rs.next() && rs.getBoolean(1);
+          }
+          if (!this._replicaCaughtUp[index]) return this._connection;
+       }
+       return replica;
+    }//end readConnection
+
+    /**
+     * Remembers the primary's WAL position after a write, so reads wait
+     * for a replica that has replayed it. Inside a transaction the write
+     * only counts once commit() has committed it.
+     */
+    private void noteWrite() throws SQLException {
+       if (this._replicas.isEmpty()) return;
+       if (!this._connection.getAutoCommit()) {
+          this._uncommittedWrite = true;
+          return;
+       }
+       recordLsn();
+    }//end noteWrite
+
+    private void recordLsn() throws SQLException {
+       try (Statement stmt = this._connection.createStatement ()) {
+          ResultSet rs = stmt.executeQuery ("SELECT pg_current_wal_lsn();");
+          if (rs.next()) {
+             this._writeLsn = rs.getString(1);
+             java.util.Arrays.fill(this._replicaCaughtUp, false);
+          }
+       }
+    }//end recordLsn
+
+    /**
+     * Commits the transaction open on the session connection. If it wrote
+     * anything, its WAL position is remembered like an autocommitted
+     * write's, so the reads that follow still see it, and the results
+     * cached from the tables it wrote are dropped again, as a read made
+     * before the commit may have cached the old rows.
+     *
+     * @throws java.sql.SQLException when the commit failed
+     */
+    public void commit () throws SQLException {
+       this._connection.commit();
+       invalidateCommitted(this._writtenInTransaction.remove(this._connection));
+       if (!this._uncommittedWrite) return;
+       this._uncommittedWrite = false;
+       recordLsn();
+    }//end commit
+
+    /**
+     * Rolls back the transaction open on the session connection.
+     *
+     * @throws java.sql.SQLException when the rollback failed
+     */
+    public void rollback () throws SQLException {
+       this._writtenInTransaction.remove(this._connection);
+       this._connection.rollback();
+    }//end rollback
+
+    private void invalidateCommitted(Set<String> tables) {
+       if (tables == null) return;
+       for (String table : tables) this._results.invalidate(table);
+    }//end invalidateCommitted
+
+    /**
+     * Called by every execute helper once a statement is done: feeds the
+     * query metrics and, past the threshold, the slow-query log.
+     *
+     * @param ran the connection the statement ran on
+     */
+    private void finish(String sql, long startNanos, long rows, boolean error, Connection ran) {
+       long elapsed = System.nanoTime() - startNanos;
+       this._metrics.record(sql, startNanos, rows, error);
+       if (!this._slowLog.isSlow(elapsed)) return;
+       if (!error && this._slowLog.sampleExplain(sql)) explainLater(ran, sql, elapsed, rows);
+       else this._slowLog.log(sql, elapsed, rows, null);
+    }//end finish
+
+    /**
+     * Logs a slow query with its plan, captured on the explainer thread so
+     * the session does not wait for the query to run a second time. The
+     * plan comes from the server the query ran on, replica or shard, over
+     * the explainer's own connection, so it never runs inside, or aborts, a
+     * transaction of the session. While gamerental.slowQuery.explainQueue
+     * (default 16) plans are waiting, further queries are logged without.
+     */
+    private void explainLater(Connection ran, String sql, long elapsed, long rows) {
+       try{
+          String url = ran.getMetaData().getURL();
+          synchronized (this._explainConnections) {
+             if (this._explainer == null)
+                this._explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                   new ArrayBlockingQueue<Runnable>(Integer.getInteger("gamerental.slowQuery.explainQueue", 16)), r -> {
+                      Thread t = new Thread(r, "slow-query-explain");
+                      t.setDaemon(true);
+                      return t;
+                   });
+          }
+          this._explainer.execute(() -> this._slowLog.log(sql, elapsed, rows, explain(url, sql)));
+       }catch (SQLException | RejectedExecutionException e){
+          this._slowLog.log(sql, elapsed, rows, null);
+       }
+    }//end explainLater
+
+    /**
+     * Runs EXPLAIN (ANALYZE, BUFFERS) for a query on the server at url and
+     * returns the plan text. ANALYZE executes the query once more, so it
+     * runs in a transaction that is rolled back, under
+     * gamerental.slowQuery.explainTimeoutMs (default 30000).
+     */
+    private String explain(String url, String query) {
+       StringBuilder plan = new StringBuilder();
+       try{
+          Connection connection = this._explainConnections.get(url);
+          if (connection == null || connection.isClosed()) {
+             connection = DriverManager.getConnection(url, this._user, this._passwd);
+             this._explainConnections.put(url, connection);
+          }
+          connection.setAutoCommit(false);
+          try (Statement stmt = connection.createStatement ()) {
+             stmt.execute (String.format("SET LOCAL statement_timeout = %d;", Long.getLong("gamerental.slowQuery.explainTimeoutMs", 30000)));
+             ResultSet rs = stmt.executeQuery ("EXPLAIN (ANALYZE, BUFFERS) " + query);
+             while (rs.next())
+                plan.append(rs.getString(1)).append('\n');
+          }finally{
+             connection.rollback();
+             connection.setAutoCommit(true);
+          }
+       }catch (SQLException e){
+          plan.append("EXPLAIN failed: ").append(e.getMessage());
+       }
+       return plan.toString();
+    }//end explain
+
     /**
      * Method to fetch the last value from sequence. This
      * method issues the query to the DBMS and returns the current
@@ -214,31 +868,5056 @@ import java.util.Random;
     return -1;
     }
  
+    /**
+     * Opens one more physical connection to the same database, for work
+     * that runs beside the session connection.
+     *
+     * @throws java.sql.SQLException when failed to make a connection.
+     */
+    public Connection openConnection() throws SQLException {
+       return DriverManager.getConnection(this._url, this._user, this._passwd);
+    }//end openConnection
+
+    /**
+     * Opens one more physical connection to the server like is connected
+     * to, such as a shard.
+     *
+     * @throws java.sql.SQLException when failed to make a connection.
+     */
+    public Connection openConnection(Connection like) throws SQLException {
+       return DriverManager.getConnection(like.getMetaData().getURL(), this._user, this._passwd);
+    }//end openConnection
+
     /**
      * Method to close the physical connection if it is open.
      */
     public void cleanup(){
        try{
           if (this._connection != null){
+             if (this._listener != null) this._listener.close();
+             if (this._reminders != null) this._reminders.close();
+             if (this._explainer != null) {
+                this._explainer.shutdownNow();
+                try{
+                   this._explainer.awaitTermination(5, TimeUnit.SECONDS);
+                }catch (InterruptedException e){
+                   Thread.currentThread().interrupt();
+                }
+                for (Connection connection : this._explainConnections.values())
+                   connection.close ();
+             }
+             this._audit.close();
+             this._metrics.dump();
              this._connection.close ();
           }//end if
+          for (Connection replica : this._replicas)
+             replica.close ();
+          for (Connection shard : this._shards)
+             if (!shard.isClosed()) shard.close ();
        }catch (SQLException e){
           // ignored.
        }//end try
     }//end cleanup
- 
+
+    /**
+     * Loads the per-game, per-day rented units from the order history into
+     * the trending leaderboard. This is the only full GROUP BY over the
+     * history; afterwards placeOrder keeps the counters current.
+     */
+    public void seedTrending() {
+       try{
+          String query = "SELECT G.gameID, C.genre, CAST(R.orderTimestamp AS DATE), SUM(G.unitsOrdered) " +
+                         "FROM GamesInOrder G, RentalOrder R, Catalog C " +
+                         "WHERE G.rentalOrderID = R.rentalOrderID AND G.gameID = C.gameID " +
+                         "GROUP BY G.gameID, C.genre, CAST(R.orderTimestamp AS DATE);";
+          List<List<String>> rows = executeQueryAndReturnResultOnAllShards(query);
+          long today = LocalDate.now().toEpochDay();
+          for (List<String> row : rows) {
+             long day = LocalDate.parse(row.get(2).trim()).toEpochDay();
+             this._trending.add(row.get(0).trim(), row.get(1).trim(), day, Integer.parseInt(row.get(3).trim()), today);
+          }
+       }catch (Exception e){
+          System.err.println("Unable to load trending games: " + e.getMessage());
+       }
+    }//end seedTrending
+
+    /**
+     * Loads the stock on hand of every game into the inventory ledger.
+     */
+    public void loadInventory() {
+       // only the stock connection's copy of Inventory counts
+       Connection session = this._connection;
+       this._connection = stockConnection();
+       try{
+          List<List<String>> rows = executeQueryAndReturnResult("SELECT gameID, onHand FROM Inventory;");
+          for (List<String> row : rows)
+             this._inventory.track(row.get(0).trim(), Integer.parseInt(row.get(1).trim()));
+       }catch (Exception e){
+          System.err.println("Unable to load inventory: " + e.getMessage());
+       }finally{
+          this._connection = session;
+       }
+    }//end loadInventory
+
+    /**
+     * Loads UserFavGames into the favorites index.
+     */
+    public void loadFavorites() {
+       try{
+          this._favorites.load(executeQueryAndReturnResultOnAllShards("SELECT login, gameID FROM UserFavGames;"));
+       }catch (Exception e){
+          System.err.println("Unable to load favorites: " + e.getMessage());
+       }
+    }//end loadFavorites
+
+    /**
+     * Reads the favorites of some users back from UserFavGames, after they
+     * were changed elsewhere or renamed.
+     */
+    public void reloadFavorites(Collection<String> logins) {
+       if (logins.isEmpty()) return;
+       try{
+          Map<String, List<String>> games = new HashMap<String, List<String>>();
+          for (String login : logins) games.put(login.trim(), new ArrayList<String>());
+          for (List<String> r : executeQueryAndReturnResultOnAllShards(String.format(
+                "SELECT login, gameID FROM UserFavGames WHERE login IN (%s);", quotedList(new ArrayList<String>(games.keySet())))))
+             games.get(r.get(0).trim()).add(r.get(1).trim());
+          for (Map.Entry<String, List<String>> e : games.entrySet()) this._favorites.set(e.getKey(), e.getValue());
+       }catch (Exception e){
+          System.err.println("Unable to reload favorites: " + e.getMessage());
+       }
+    }//end reloadFavorites
+
+    /**
+     * Stores what a user typed as favorite games as gameIDs in UserFavGames,
+     * on the current connection, and in the favorites index. Users.favGames
+     * keeps the text as typed.
+     */
+    public void saveFavorites(String login, String favGames) throws SQLException {
+       List<String> gameIDs = FavoritesIndex.parse(favGames, this._catalog);
+       String user = login.trim().replace("'", "''");
+       if (gameIDs.isEmpty()) {
+          executeUpdate(String.format("DELETE FROM UserFavGames WHERE login = '%s';", user));
+       }else{
+          String listed = quotedList(gameIDs);
+          executeUpdate(String.format(
+             "WITH dropped AS (DELETE FROM UserFavGames WHERE login = '%1$s' AND gameID NOT IN (%2$s)) " +
+             "INSERT INTO UserFavGames (login, gameID) SELECT '%1$s', C.gameID FROM Catalog C WHERE C.gameID IN (%2$s) " +
+             "ON CONFLICT DO NOTHING;", user, listed));
+       }
+       this._favorites.set(login, gameIDs);
+    }//end saveFavorites
+
+    /**
+     * Brings the catalog cache up to date. The snapshot file is mapped and
+     * its watermark compared with the oldest transaction still running;
+     * only games changed since the snapshot was written are fetched.
+     * Without a usable snapshot the whole catalog is read once. The
+     * refreshed cache is written back as the next snapshot.
+     *
+     * The watermark is the snapshot xmin of the last load: every
+     * transaction below it had finished, so Catalog_changes rows written by
+     * transactions at or above it are read again next time. A change whose
+     * transaction commits after a later-numbered one is therefore still
+     * picked up; changes already applied are simply applied again.
+     */
+    public void loadCatalog() {
+       // every shard holds the same catalog; the first one versions it
+       Connection session = this._connection;
+       if (isSharded()) this._connection = this._shards.get(0);
+       try{
+          if (!this._catalog.isLoaded())
+             this._catalog.map();
+          long known = this._catalog.changeCounter();
+          // taken before the changes are read, so nothing committing meanwhile is skipped
+          List<String> state = executeQueryAndReturnResult(String.format(
+             "SELECT txid_snapshot_xmin(txid_current_snapshot()), EXISTS (SELECT 1 FROM Catalog_changes WHERE txid >= %d);", known)).get(0);
+          long current = Long.parseLong(state.get(0).trim());
+          boolean changedSince = state.get(1).trim().startsWith("t");
+          if (!changedSince && known <= current && this._catalog.isLoaded()) {
+             if (!this._pricing.isLoaded()) this._pricing.load(this._catalog.store());
+             return;
+          }
+          // cached orders carry game names and genres
+          this._orders.clear();
+
+          if (!this._catalog.isLoaded() || known > current) {
+             // no snapshot, or one from another database: full load
+             this._catalog.replaceAll(executeQueryAndReturnResult("SELECT * FROM Catalog;"), current);
+          }
+          else {
+             List<String> changed = new ArrayList<String>();
+             for (List<String> row : executeQueryAndReturnResult(String.format(
+                   "SELECT DISTINCT gameID FROM Catalog_changes WHERE txid >= %d;", known)))
+                changed.add("'" + row.get(0).trim().replace("'", "''") + "'");
+             List<List<String>> rows = changed.isEmpty() ? new ArrayList<List<String>>()
+                : executeQueryAndReturnResult("SELECT * FROM Catalog WHERE gameID IN (" + String.join(",", changed) + ");");
+             this._catalog.applyDelta(changed, rows, current);
+          }
+          this._catalog.save();
+          this._pricing.load(this._catalog.store());
+       }catch (Exception e){
+          System.err.println("Unable to load catalog snapshot: " + e.getMessage());
+       }finally{
+          this._connection = session;
+       }
+    }//end loadCatalog
+
+    // one row per (line item, shipment) of an order; %s are the order and its owner
+    static final String ORDER_DETAIL =
+       "SELECT R.rentalOrderID, R.login, R.noOfGames, R.totalPrice, R.orderTimestamp, R.dueDate, " +
+       "G.gameID, C.gameName, C.genre, G.unitsOrdered, " +
+       "T.trackingID, L.status, L.currentLocation, L.courierName, L.lastUpdateDate " +
+       "FROM RentalOrder R " +
+       "LEFT JOIN GamesInOrder G ON G.rentalOrderID = R.rentalOrderID AND G.orderTimestamp = R.orderTimestamp " +
+       "LEFT JOIN Catalog C ON C.gameID = G.gameID " +
+       "LEFT JOIN TrackingInfo T ON T.rentalOrderID = R.rentalOrderID AND T.orderTimestamp = R.orderTimestamp " +
+       "LEFT JOIN TrackingLatest L ON L.trackingID = T.trackingID " +
+       "WHERE R.rentalOrderID = '%s' AND R.login = '%s' " +
+       "ORDER BY G.gameID, T.trackingID;";
+
+    /**
+     * Fetches an order with its line items and shipments in one query,
+     * serving complete orders from the cache. An order that is no longer
+     * in the database is looked up in the archive.
+     *
+     * @return the order, or null if login has no such order
+     */
+    public OrderDetail orderDetail(String rentalOrderID, String login) throws SQLException, IOException {
+       rentalOrderID = rentalOrderID.trim();
+       login = login.trim();
+       OrderDetail cached = this._orders.lookup(rentalOrderID);
+       if (cached != null)
+          return cached.login.equals(login) ? cached : null;
+       OrderDetail order = OrderDetail.of(executeQueryAndReturnResult(String.format(ORDER_DETAIL,
+          rentalOrderID.replace("'", "''"), login.replace("'", "''"))));
+       if (order == null) order = this._archive.order(rentalOrderID, login);
+       if (order != null) this._orders.offer(order);
+       return order;
+    }//end orderDetail
+
+    /**
+     * Catches up with changes other instances announced since the last
+     * action.
+     *
+     * @return whether login changed (or may have) in the meantime
+     */
+    public boolean applyInvalidations(String login) {
+       if (this._listener == null) return false;
+       Set<String> users = this._listener.applyPending();
+       return users == null || users.contains(login.trim());
+    }//end applyInvalidations
+
+    /**
+     * Drops every cache and rebuilds it from the database.
+     */
+    public void reloadCaches() {
+       loadInventory();
+       this._orders.clear();
+       this._results.clear();
+       loadCatalog();
+       loadFavorites();
+    }//end reloadCaches
+
+    /**
+     * The connection whose Inventory counts. Every shard keeps a copy of
+     * the table so the catalog joins stay local, but stock is only taken
+     * and put back on the first shard's.
+     */
+    Connection stockConnection() {
+       return isSharded() ? this._shards.get(0) : this._connection;
+    }//end stockConnection
+
+    /**
+     * Takes amount copies of a game on connection, which must be the
+     * stock connection, if that many are on hand. The row stays locked
+     * until the caller's transaction ends, so concurrent orders, from this
+     * instance or any other, queue on it and never take the stock below
+     * zero.
+     *
+     * @return the copies left, or -1 when there were not enough
+     */
+    int reserveStock(Connection connection, String gameID, int amount) throws SQLException {
+       String id = gameID.replace("'", "''");
+       try (Statement stmt = connection.createStatement ()) {
+          ResultSet rs = stmt.executeQuery (String.format(
+             "UPDATE Inventory SET onHand = onHand - %d WHERE gameID = '%s' AND onHand >= %d RETURNING onHand;", amount, id, amount));
+          if (rs.next()) {
+             this._inventory.track(gameID, rs.getInt(1));
+             return rs.getInt(1);
+          }
+          rs = stmt.executeQuery (String.format("SELECT onHand FROM Inventory WHERE gameID = '%s';", id));
+          this._inventory.track(gameID, rs.next() ? rs.getInt(1) : 0);
+          return -1;
+       }
+    }//end reserveStock
+
+    /**
+     * Puts copies of games back on hand (returns and deliveries) on
+     * connection, which must be the stock connection, inside whatever
+     * transaction it has open.
+     *
+     * @return the number of games found
+     */
+    int restock(Connection connection, Map<String, Integer> copies) throws SQLException {
+       int found = 0;
+       try (Statement stmt = connection.createStatement ()) {
+          // in gameID order, so concurrent restocks lock rows in the same order
+          for (Map.Entry<String, Integer> c : new TreeMap<String, Integer>(copies).entrySet()) {
+             ResultSet rs = stmt.executeQuery (String.format("UPDATE Inventory SET onHand = onHand + %d WHERE gameID = '%s' RETURNING onHand;",
+                c.getValue(), c.getKey().replace("'", "''")));
+             if (rs.next()) {
+                this._inventory.track(c.getKey(), rs.getInt(1));
+                ++found;
+             }
+          }
+       }
+       this._results.invalidate("Inventory");
+       return found;
+    }//end restock
+
+    /**
+     * Last known stock per game, for telling a customer how many copies are
+     * left without asking the database again. It is only ever a copy of
+     * what the Inventory table reported: orders take their copies there, in
+     * the order's own transaction (see insertOrder), and returns and
+     * deliveries put them back there (see restock), so several instances
+     * and a crash at any point leave the table right.
+     */
+    static class InventoryLedger {
+       private final ConcurrentHashMap<String, Integer> onHand = new ConcurrentHashMap<String, Integer>();
+
+       void track(String gameID, int copies) {
+          onHand.put(gameID, copies);
+       }
+
+       int onHand(String gameID) {
+          return onHand.getOrDefault(gameID, 0);
+       }
+    }//end InventoryLedger
+
+    /**
+     * Management view of QueryMetrics, registered with the platform MBean
+     * server as GameRental:type=QueryMetrics.
+     */
+    public interface QueryMetricsMBean {
+       long getStatements();
+       long getErrors();
+       String getReport();
+       void reset();
+    }
+
+    /**
+     * Per-statement instrumentation for the execute helpers. Every call is
+     * grouped twice: by its normalized template (literals replaced with ?)
+     * and by the menu operation that issued it. Each group keeps a latency
+     * histogram plus call, row and error counters, all updated without
+     * locks. A template is nearly always issued from one place, so the
+     * stack is walked for its operation only the first time it is seen and
+     * for one call in gamerental.metrics.recheckEvery (default 64) after
+     * that; a template found issued by more than one operation is walked
+     * every time. The report is served over JMX and written every
+     * gamerental.metrics.dumpSeconds seconds (default 60, 0 disables) to
+     * gamerental-metrics.txt. At most gamerental.metrics.templates (default
+     * 500) templates are kept apart; statements of any further template are
+     * counted together under "(other templates)".
+     */
+    public static class QueryMetrics implements QueryMetricsMBean {
+       private static final int RECHECK_EVERY = Math.max(1, Integer.getInteger("gamerental.metrics.recheckEvery", 64));
+       private static final int MAX_TEMPLATES = Math.max(1, Integer.getInteger("gamerental.metrics.templates", 500));
+       static final String OTHER_TEMPLATES = "(other templates)";
+       // a list of ? such as an IN list or a VALUES row, and a run of such rows
+       private static final Pattern LIST = Pattern.compile("\\(\\?(?:, ?\\?)+\\)");
+       private static final Pattern ROWS = Pattern.compile("\\(\\?\\)(?:, ?\\(\\?\\))+");
+       // the statement normalized last on this thread, and its template
+       private static final ThreadLocal<String[]> lastNormalized = ThreadLocal.withInitial(() -> new String[2]);
+       // helper frames skipped when looking for the operation that issued a statement
+       private static final java.util.Set<String> HELPERS = new java.util.HashSet<String>(java.util.Arrays.asList(
+          "executeUpdate", "executeQuery", "executeQueryAndPrintResult", "executeQueryAndReturnResult", "cachedQuery", "finish", "explain", "recordResult"));
+
+       private final ConcurrentHashMap<String, Stat> byTemplate = new ConcurrentHashMap<String, Stat>();
+       private final ConcurrentHashMap<String, Stat> byOperation = new ConcurrentHashMap<String, Stat>();
+       private ScheduledExecutorService dumper = null;
+       // further report sections, such as the result cache's
+       private final List<java.util.function.Supplier<String>> sections = new java.util.concurrent.CopyOnWriteArrayList<java.util.function.Supplier<String>>();
+
+       /**
+        * Log-linear latency histogram in microseconds, in the spirit of
+        * HdrHistogram: values below 16 get their own bucket, larger values
+        * fall into 8 sub-buckets per power of two (at most 12.5% error).
+        */
+       static class Histogram {
+          static final int BUCKETS = 16 + 40 * 8;
+          final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+          static int bucket(long micros) {
+             if (micros < 16) return (int)Math.max(micros, 0);
+             int exp = 63 - Long.numberOfLeadingZeros(micros);
+             int index = 16 + (exp - 4) * 8 + (int)((micros >>> (exp - 3)) & 7);
+             return Math.min(index, BUCKETS - 1);
+          }
+
+          static long lowerBound(int index) {
+             if (index < 16) return index;
+             int exp = (index - 16) / 8 + 4;
+             return (8L + (index - 16) % 8) << (exp - 3);
+          }
+
+          void record(long micros) {
+             counts.incrementAndGet(bucket(micros));
+          }
+
+          long percentile(double p) {
+             long total = 0;
+             for (int i = 0; i < BUCKETS; ++i) total += counts.get(i);
+             if (total == 0) return 0;
+             long rank = (long)Math.ceil(total * p), seen = 0;
+             for (int i = 0; i < BUCKETS; ++i) {
+                seen += counts.get(i);
+                if (seen >= rank) return lowerBound(i);
+             }
+             return lowerBound(BUCKETS - 1);
+          }
+       }
+
+       static class Stat {
+          final Histogram latency = new Histogram();
+          final LongAdder calls = new LongAdder();
+          final LongAdder rows = new LongAdder();
+          final LongAdder errors = new LongAdder();
+          final LongAdder totalMicros = new LongAdder();
+          final AtomicLong maxHeapBytes = new AtomicLong();
+          final LongAdder spilledBytes = new LongAdder();
+          final AtomicLong maxMicros = new AtomicLong();
+          // for a template: the operation that issues it, and whether more than one does
+          volatile String operation = null;
+          volatile boolean manyOperations = false;
+
+          void add(long micros, long rowCount, boolean error) {
+             latency.record(micros);
+             if (micros > maxMicros.get()) maxMicros.accumulateAndGet(micros, Math::max);
+             calls.increment();
+             rows.add(rowCount);
+             totalMicros.add(micros);
+             if (error) errors.increment();
+          }
+       }
+
+       /**
+        * Replaces the literals of a statement with ? so that the same query
+        * issued with different values lands in the same group. One pass:
+        * quoted strings and numbers that stand alone become ?, runs of
+        * white space one space, and a random hex suffix of a name, as on the
+        * import staging tables, _?. Then lists of literals, such as IN lists
+        * and the rows of a multi-row VALUES, shrink to a single (?).
+        */
+       static String normalize(String sql) {
+          String[] last = lastNormalized.get();
+          if (last[0] == sql) return last[1];
+          int n = sql.length();
+          StringBuilder out = new StringBuilder(n);
+          boolean space = false;
+          for (int i = 0; i < n; ) {
+             char c = sql.charAt(i);
+             if (Character.isWhitespace(c)) {
+                space = true;
+                ++i;
+                continue;
+             }
+             if (space && out.length() > 0) out.append(' ');
+             space = false;
+             if (c == '\'') {
+                int end = i + 1;
+                while (end < n && (sql.charAt(end) != '\'' || (end + 1 < n && sql.charAt(end + 1) == '\'')))
+                   end += sql.charAt(end) == '\'' ? 2 : 1;
+                if (end < n) {
+                   out.append('?');
+                   i = end + 1;
+                   continue;
+                }
+             }
+             else if (isWordChar(c)) {
+                int end = i;
+                while (end < n && isWordChar(sql.charAt(end))) ++end;
+                if (Character.isDigit(c) && end < n - 1 && sql.charAt(end) == '.' && Character.isDigit(sql.charAt(end + 1)))
+                   for (end += 1; end < n && isWordChar(sql.charAt(end)); ) ++end;
+                boolean number = true;
+                for (int j = i; j < end && number; ++j) number = Character.isDigit(sql.charAt(j)) || sql.charAt(j) == '.';
+                int suffix = sql.lastIndexOf('_', end - 1) + 1;
+                if (number) out.append('?');
+                else if (suffix > i && end - suffix >= 8 && isHex(sql, suffix, end)) out.append(sql, i, suffix).append('?');
+                else out.append(sql, i, end);
+                i = end;
+                continue;
+             }
+             out.append(c);
+             ++i;
+          }
+          String template = out.toString();
+          if (template.contains("(?"))
+             template = ROWS.matcher(LIST.matcher(template).replaceAll("(?)")).replaceAll("(?)");
+          last[0] = sql;
+          last[1] = template;
+          return template;
+       }
+
+       private static boolean isWordChar(char c) {
+          return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+       }
+
+       private static boolean isHex(String s, int from, int to) {
+          for (int i = from; i < to; ++i) {
+             char c = s.charAt(i);
+             if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+          }
+          return true;
+       }
+
+       /**
+        * The group of a statement's template, or of the overflow once there
+        * are MAX_TEMPLATES; null when create is false and there is none yet.
+        */
+       private Stat templateStat(String sql, boolean create) {
+          String key = normalize(sql);
+          Stat stat = byTemplate.get(key);
+          if (stat != null || !create) return stat != null ? stat : byTemplate.get(OTHER_TEMPLATES);
+          if (byTemplate.size() >= MAX_TEMPLATES) key = OTHER_TEMPLATES;
+          return byTemplate.computeIfAbsent(key, k -> new Stat());
+       }
+
+       static String callingOperation() {
+          return StackWalker.getInstance().walk(frames -> frames
+             .filter(f -> f.getClassName().equals("GameRental") && !HELPERS.contains(f.getMethodName()))
+             .map(StackWalker.StackFrame::getMethodName)
+             .findFirst().orElse("other"));
+       }
+
+       /**
+        * Records how much heap a materialized result took and how much of it
+        * went to disk instead.
+        */
+       void recordResult(String sql, long heapBytes, long spilledBytes) {
+          Stat template = templateStat(sql, false);
+          if (template == null) return;
+          for (Stat s : new Stat[]{ template, template.operation == null ? null : byOperation.get(template.operation) }) {
+             if (s == null) continue;
+             s.maxHeapBytes.accumulateAndGet(heapBytes, Math::max);
+             s.spilledBytes.add(spilledBytes);
+          }
+       }
+
+       void record(String sql, long startNanos, long rows, boolean error) {
+          long micros = (System.nanoTime() - startNanos) / 1000;
+          Stat template = templateStat(sql, true);
+          template.add(micros, rows, error);
+          byOperation.computeIfAbsent(operationOf(template), k -> new Stat()).add(micros, rows, error);
+       }
+
+       /**
+        * The operation issuing a template, walking the stack only when the
+        * template is new, shared or due for a recheck.
+        */
+       private static String operationOf(Stat template) {
+          String known = template.operation;
+          if (known != null && !template.manyOperations && ThreadLocalRandom.current().nextInt(RECHECK_EVERY) != 0)
+             return known;
+          String walked = callingOperation();
+          if (known != null && !known.equals(walked)) template.manyOperations = true;
+          template.operation = walked;
+          return walked;
+       }
+
+       public long getStatements() {
+          long n = 0;
+          for (Stat s : byOperation.values()) n += s.calls.sum();
+          return n;
+       }
+
+       public long getErrors() {
+          long n = 0;
+          for (Stat s : byOperation.values()) n += s.errors.sum();
+          return n;
+       }
+
+       public void reset() {
+          byTemplate.clear();
+          byOperation.clear();
+       }
+
+       public String getReport() {
+          StringBuilder out = new StringBuilder();
+          appendGroup(out, "operation", byOperation);
+          out.append('\n');
+          appendGroup(out, "template", byTemplate);
+          for (java.util.function.Supplier<String> section : sections)
+             out.append('\n').append(section.get());
+          return out.toString();
+       }
+
+       void addSection(java.util.function.Supplier<String> section) {
+          sections.add(section);
+       }
+
+       private static void appendGroup(StringBuilder out, String title, Map<String, Stat> group) {
+          out.append(String.format("%-8s %-8s %-8s %-10s %-10s %-10s %-10s %-10s %-10s %s%n",
+             "calls", "errors", "rows", "mean_us", "p50_us", "p99_us", "max_us", "heap_kb", "spill_kb", title));
+          for (Map.Entry<String, Stat> e : new TreeMap<String, Stat>(group).entrySet()) {
+             Stat s = e.getValue();
+             long calls = s.calls.sum();
+             out.append(String.format("%-8d %-8d %-8d %-10d %-10d %-10d %-10d %-10d %-10d %s%n",
+                calls, s.errors.sum(), s.rows.sum(), calls == 0 ? 0 : s.totalMicros.sum() / calls,
+                s.latency.percentile(0.50), s.latency.percentile(0.99), s.maxMicros.get(),
+                s.maxHeapBytes.get() / 1024, s.spilledBytes.sum() / 1024, e.getKey()));
+          }
+       }
+
+       /**
+        * Registers the MBean and starts the periodic text dump.
+        */
+       void publish() {
+          try{
+             ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("GameRental:type=QueryMetrics,id=" + System.identityHashCode(this)));
+          }catch (Exception e){
+             System.err.println("Unable to register query metrics: " + e.getMessage());
+          }
+          long seconds = Long.getLong("gamerental.metrics.dumpSeconds", 60);
+          if (seconds > 0) {
+             dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "query-metrics-dump");
+                t.setDaemon(true);
+                return t;
+             });
+             dumper.scheduleAtFixedRate(this::dump, seconds, seconds, TimeUnit.SECONDS);
+          }
+       }
+
+       void dump() {
+          try (PrintWriter out = new PrintWriter(new FileWriter("gamerental-metrics.txt"))) {
+             out.print(getReport());
+          }catch (IOException e){
+             System.err.println("Unable to write query metrics: " + e.getMessage());
+          }
+       }
+    }//end QueryMetrics
+
+    /**
+     * Slow-query log. A statement slower than gamerental.slowQueryMs
+     * (default 200) is logged with its template, its parameters (passwords
+     * masked), elapsed time and row count. A gamerental.slowQuery.explainRate
+     * fraction (default 0.1) of slow SELECTs also gets its plan captured
+     * (see GameRental.explainLater).
+     * The log rotates over 5 files of 1 MB, gamerental-slow.0.log being the
+     * newest.
+     */
+    static class SlowQueryLog {
+       private static final Pattern PASSWORD_EQUALS = Pattern.compile("(?i)(password\\s*=\\s*)'(?:[^']|'')*'");
+       private static final Pattern INSERT_COLUMNS = Pattern.compile("(?is)^\\s*INSERT\\s+INTO\\s+\\w+\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\((.*)\\)\\s*;?\\s*$");
+       private static final Pattern PARAMETER = Pattern.compile("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+
+       private final long thresholdNanos = Long.getLong("gamerental.slowQueryMs", 200) * 1000000L;
+       private final double explainRate = Double.parseDouble(System.getProperty("gamerental.slowQuery.explainRate", "0.1"));
+       private Logger logger = null;
+
+       boolean isSlow(long elapsedNanos) {
+          return elapsedNanos >= thresholdNanos;
+       }
+
+       boolean sampleExplain(String sql) {
+          return sql.trim().regionMatches(true, 0, "SELECT", 0, 6)
+             && ThreadLocalRandom.current().nextDouble() < explainRate;
+       }
+
+       /**
+        * Masks the password literals of a statement, both in
+        * "password = '...'" predicates and in the password column of an
+        * INSERT ... (columns) VALUES (...).
+        */
+       static String maskPasswords(String sql) {
+          String masked = PASSWORD_EQUALS.matcher(sql).replaceAll("$1'***'");
+          Matcher insert = INSERT_COLUMNS.matcher(masked);
+          if (!insert.matches()) return masked;
+          String[] columns = insert.group(1).split(",");
+          int position = -1;
+          for (int i = 0; i < columns.length; ++i)
+             if (columns[i].trim().equalsIgnoreCase("password")) position = i;
+          if (position < 0) return masked;
+          // walk the VALUES list, splitting on commas outside quotes
+          String values = insert.group(2);
+          int value = 0, from = -1, to = -1;
+          boolean quoted = false;
+          for (int i = 0; i < values.length() && to < 0; ++i) {
+             char c = values.charAt(i);
+             if (c == '\'') quoted = !quoted;
+             else if (c == ',' && !quoted) {
+                if (value == position) to = i;
+                ++value;
+                continue;
+             }
+             if (value == position && from < 0) from = i;
+          }
+          if (from < 0) return masked;
+          if (to < 0) to = values.length();
+          String maskedValues = values.substring(0, from) + "'***'" + values.substring(to);
+          return masked.substring(0, insert.start(2)) + maskedValues + masked.substring(insert.end(2));
+       }
+
+       static List<String> parameters(String sql) {
+          List<String> params = new ArrayList<String>();
+          Matcher m = PARAMETER.matcher(maskPasswords(sql));
+          while (m.find()) params.add(m.group());
+          return params;
+       }
+
+       synchronized void log(String sql, long elapsedNanos, long rows, String plan) {
+          StringBuilder entry = new StringBuilder();
+          entry.append(String.format("%.1f ms, %d rows: %s%n", elapsedNanos / 1e6, rows, QueryMetrics.normalize(sql)));
+          entry.append("  params: ").append(parameters(sql)).append('\n');
+          if (plan != null)
+             entry.append("  plan:\n").append(plan);
+          try{
+             if (logger == null) {
+                FileHandler file = new FileHandler("gamerental-slow.%g.log", 1 << 20, 5, true);
+                file.setFormatter(new Formatter() {
+                   public String format(LogRecord r) {
+                      return new Timestamp(r.getMillis()) + " " + r.getMessage();
+                   }
+                });
+                logger = Logger.getLogger("GameRental.slowQuery");
+                logger.setUseParentHandlers(false);
+                logger.addHandler(file);
+             }
+             logger.log(Level.INFO, entry.toString());
+          }catch (IOException e){
+             System.err.println("Unable to write slow-query log: " + e.getMessage());
+          }
+       }
+    }//end SlowQueryLog
+
+    /**
+     * Result list with a heap budget. Records stay on the heap until their
+     * estimated size passes the budget, or the records of all results still
+     * reachable pass gamerental.resultTotalBudgetBytes; every later record
+     * is appended to a temporary file in a compact binary format and read
+     * back through a FileChannel when asked for, so callers still see a
+     * plain List<List<String>>. Once filled the list may be read from any
+     * number of threads.
+     *
+     * A spilled record is an int byte length, a short column count, then
+     * per column an int length (-1 for NULL) followed by the UTF-8 bytes.
+     * The temporary file is deleted, and the heap share given back, once the
+     * list is no longer reachable.
+     */
+    static class SpilledResult extends AbstractList<List<String>> {
+       private static final Cleaner CLEANER = Cleaner.create();
+       private static final int BUFFER_BYTES = 64 * 1024;
+       // estimated heap held by the in-heap records of every reachable result
+       private static final AtomicLong heapInUse = new AtomicLong();
+
+       private final long budget;
+       private final List<List<String>> inHeap = new ArrayList<List<String>>();
+       private long heapBytes = 0;
+       private HeapShare share = null;
+
+       // spill state, created with the first record that does not fit
+       private Spill spill = null;
+       private long[] offsets = new long[0];
+       private int spilledRows = 0;
+       private ByteBuffer writeBuffer = null;
+       // the last stretch of the file read, shared read-only between readers
+       private volatile Window window = null;
+
+       /**
+        * This list's part of heapInUse, handed back by the Cleaner.
+        */
+       private static class HeapShare implements Runnable {
+          final AtomicLong bytes = new AtomicLong();
+
+          public void run() {
+             heapInUse.addAndGet(-bytes.getAndSet(0));
+          }
+       }
+
+       private static final class Window {
+          final long start;
+          final ByteBuffer bytes;
+
+          Window(long start, ByteBuffer bytes) {
+             this.start = start;
+             this.bytes = bytes;
+          }
+       }
+
+       /**
+        * Owns the file, so the Cleaner can remove it without holding on to
+        * the list.
+        */
+       private static class Spill implements Runnable {
+          final Path path;
+          final FileChannel channel;
+          long size = 0;
+
+          Spill() throws IOException {
+             path = Files.createTempFile("gamerental-result", ".rows");
+             channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                        StandardOpenOption.DELETE_ON_CLOSE);
+          }
+
+          public void run() {
+             try{
+                channel.close();
+                Files.deleteIfExists(path);
+             }catch (IOException e){
+                // ignored.
+             }
+          }
+       }
+
+       SpilledResult(long budget) {
+          this.budget = budget;
+       }
+
+       /**
+        * Rough heap footprint of a record: list and String headers plus two
+        * bytes per character.
+        */
+       static long estimate(List<String> record) {
+          long bytes = 56;
+          for (String value : record)
+             bytes += value == null ? 8 : 48 + 2L * value.length();
+          return bytes;
+       }
+
+       public boolean add(List<String> record) {
+          long bytes = estimate(record);
+          if (spill == null && heapBytes + bytes <= budget && reserve(bytes)) {
+             inHeap.add(record);
+             heapBytes += bytes;
+             return true;
+          }
+          try{
+             write(record);
+          }catch (IOException e){
+             throw new UncheckedIOException(e);
+          }
+          return true;
+       }
+
+       private boolean reserve(long bytes) {
+          if (heapInUse.addAndGet(bytes) > RESULT_TOTAL_BUDGET_BYTES) {
+             heapInUse.addAndGet(-bytes);
+             return false;
+          }
+          if (share == null) {
+             share = new HeapShare();
+             CLEANER.register(this, share);
+          }
+          share.bytes.addAndGet(bytes);
+          return true;
+       }
+
+       private void write(List<String> record) throws IOException {
+          if (spill == null) {
+             spill = new Spill();
+             CLEANER.register(this, spill);
+             writeBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+          }
+          byte[][] values = new byte[record.size()][];
+          int length = 2;
+          for (int i = 0; i < values.length; ++i) {
+             String value = record.get(i);
+             values[i] = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+             length += 4 + (values[i] == null ? 0 : values[i].length);
+          }
+          if (spilledRows == offsets.length)
+             offsets = java.util.Arrays.copyOf(offsets, Math.max(1024, offsets.length * 2));
+          offsets[spilledRows++] = spill.size;
+          spill.size += 4 + length;
+
+          ByteBuffer out = writeBuffer;
+          if (4 + length > out.capacity()) {
+             flushWrites();
+             out = ByteBuffer.allocate(4 + length);
+          }
+          else if (4 + length > out.remaining()) {
+             flushWrites();
+          }
+          out.putInt(length).putShort((short)values.length);
+          for (byte[] value : values) {
+             out.putInt(value == null ? -1 : value.length);
+             if (value != null) out.put(value);
+          }
+          if (out != writeBuffer) {
+             out.flip();
+             while (out.hasRemaining()) spill.channel.write(out);
+          }
+       }
+
+       private void flushWrites() throws IOException {
+          writeBuffer.flip();
+          while (writeBuffer.hasRemaining()) spill.channel.write(writeBuffer);
+          writeBuffer.clear();
+       }
+
+       /**
+        * Ends filling: writes out what is still buffered. Called by
+        * executeQueryAndReturnResult before the list is handed out.
+        */
+       synchronized void seal() {
+          if (writeBuffer == null) return;
+          try{
+             flushWrites();
+          }catch (IOException e){
+             throw new UncheckedIOException(e);
+          }
+          writeBuffer = null;
+       }
+
+       public List<String> get(int index) {
+          if (index < inHeap.size()) return inHeap.get(index);
+          int spilled = index - inHeap.size();
+          if (spilled >= spilledRows) throw new IndexOutOfBoundsException("Index: " + index);
+          seal();
+          try{
+             return read(offsets[spilled]);
+          }catch (IOException e){
+             throw new UncheckedIOException(e);
+          }
+       }
+
+       private List<String> read(long offset) throws IOException {
+          ByteBuffer in = window(offset, 4);
+          int length = in.getInt();
+          in = window(offset + 4, length);
+          int columns = in.getShort();
+          List<String> record = new ArrayList<String>(columns);
+          for (int i = 0; i < columns; ++i) {
+             int size = in.getInt();
+             if (size < 0) {
+                record.add(null);
+                continue;
+             }
+             byte[] value = new byte[size];
+             in.get(value);
+             record.add(new String(value, StandardCharsets.UTF_8));
+          }
+          return Collections.unmodifiableList(record);
+       }
+
+       /**
+        * Returns a buffer of the caller's own positioned at offset with at
+        * least length bytes readable. While sequential reads stay inside the
+        * last window read they get views of it; otherwise a new window is
+        * read with positional reads, which do not move the channel.
+        */
+       private ByteBuffer window(long offset, int length) throws IOException {
+          Window last = window;
+          if (last != null && offset >= last.start && offset + length <= last.start + last.bytes.limit()) {
+             ByteBuffer view = last.bytes.duplicate();
+             view.position((int)(offset - last.start));
+             return view;
+          }
+          ByteBuffer fresh = ByteBuffer.allocate(Math.max(length, BUFFER_BYTES));
+          fresh.limit((int)Math.min(fresh.capacity(), spill.size - offset));
+          while (fresh.position() < length)
+             if (spill.channel.read(fresh, offset + fresh.position()) < 0) throw new IOException("truncated spill file");
+          fresh.flip();
+          if (length <= BUFFER_BYTES) window = new Window(offset, fresh.asReadOnlyBuffer());
+          return fresh;
+       }
+
+       public int size() {
+          return inHeap.size() + spilledRows;
+       }
+
+       long heapBytes() {
+          return heapBytes;
+       }
+
+       long spilledBytes() {
+          return spill == null ? 0 : spill.size;
+       }
+    }//end SpilledResult
+
+    /**
+     * The catalog held outside the Java heap, so the heap stays the same
+     * size however many games there are. Each game is a fixed-width record
+     * in one ByteBuffer: price in cents, genre ordinal, then offset and
+     * length of its gameID, name, genre, description and imageURL in a
+     * second buffer of UTF-8 text (genre text is stored once per genre).
+     * gameIDs and lower-cased names are found through open-addressing hash
+     * tables of record numbers, and the price and genre orderings are record
+     * numbers too, all in direct buffers. Strings are decoded only when a
+     * field is read, through a Game flyweight or the lazy row lists handed
+     * to the renderer.
+     *
+     * A store never changes once built, so readers need no locks; a catalog
+     * change builds a new store and publishes it. The layout is also the
+     * snapshot file format, so a store can be served straight from a
+     * mapped file. The buffers count against -XX:MaxDirectMemorySize, and
+     * the text of one store is limited to 2GB.
+     */
+    static final class CatalogStore {
+       // record layout: price, genre ordinal, then (offset, length) per string field
+       static final int RECORD = 56;
+       private static final int PRICE = 0, GENRE = 8, STRINGS = 12;
+       // string fields
+       static final int ID = 0, NAME = 1, GENRE_NAME = 2, DESCRIPTION = 3, IMAGE = 4;
+
+       static final CatalogStore EMPTY = new Builder(0).build();
+
+       private final int size;
+       private final ByteBuffer records;
+       private final ByteBuffer arena;
+       private final ByteBuffer idBytes, nameBytes, priceBytes, genreBytes;
+       private final IntBuffer byId;      // record + 1 per slot, 0 when empty
+       private final IntBuffer byName;
+       private final IntBuffer byPrice;   // records, cheapest first
+       private final IntBuffer byGenre;   // records grouped by genre ordinal
+       private final List<String> genres;
+       private final int[] genreStart;    // genre g is byGenre[genreStart[g], genreStart[g + 1])
+
+       private CatalogStore(int size, ByteBuffer records, ByteBuffer arena, ByteBuffer idBytes, ByteBuffer nameBytes,
+             ByteBuffer priceBytes, ByteBuffer genreBytes, List<String> genres, int[] genreStart) {
+          this.size = size;
+          this.records = records;
+          this.arena = arena;
+          this.idBytes = idBytes;
+          this.nameBytes = nameBytes;
+          this.priceBytes = priceBytes;
+          this.genreBytes = genreBytes;
+          this.byId = idBytes.asIntBuffer();
+          this.byName = nameBytes.asIntBuffer();
+          this.byPrice = priceBytes.asIntBuffer();
+          this.byGenre = genreBytes.asIntBuffer();
+          this.genres = genres;
+          this.genreStart = genreStart;
+       }
+
+       int size() {
+          return size;
+       }
+
+       long price(int record) {
+          return records.getLong(record * RECORD + PRICE);
+       }
+
+       String genre(int record) {
+          return genres.get(records.getInt(record * RECORD + GENRE));
+       }
+
+       String string(int record, int field) {
+          int at = record * RECORD + STRINGS + 8 * field;
+          int length = records.getInt(at + 4);
+          if (length < 0) return null;
+          byte[] bytes = new byte[length];
+          ByteBuffer text = arena.duplicate();
+          text.position(records.getInt(at));
+          text.get(bytes);
+          return new String(bytes, StandardCharsets.UTF_8);
+       }
+
+       /**
+        * @return the record as a row in CatalogSnapshot.HEADER order
+        */
+       String[] row(int record) {
+          return new String[]{string(record, ID), string(record, NAME), genre(record),
+             PricingEngine.format(price(record)), string(record, DESCRIPTION), string(record, IMAGE)};
+       }
+
+       /**
+        * @return the record of gameID, or -1
+        */
+       int find(String gameID) {
+          byte[] key = gameID.getBytes(StandardCharsets.UTF_8);
+          int mask = byId.capacity() - 1;
+          for (int slot = hash(ByteBuffer.wrap(key), 0, key.length) & mask; ; slot = (slot + 1) & mask) {
+             int entry = byId.get(slot);
+             if (entry == 0) return -1;
+             if (sameBytes(entry - 1, ID, key)) return entry - 1;
+          }
+       }
+
+       /**
+        * @return the record of the game with this name in any case, or -1
+        */
+       int findName(String name) {
+          String lower = name.toLowerCase();
+          byte[] key = lower.getBytes(StandardCharsets.UTF_8);
+          int mask = byName.capacity() - 1;
+          for (int slot = hash(ByteBuffer.wrap(key), 0, key.length) & mask; ; slot = (slot + 1) & mask) {
+             int entry = byName.get(slot);
+             if (entry == 0) return -1;
+             if (lower.equals(string(entry - 1, NAME).toLowerCase())) return entry - 1;
+          }
+       }
+
+       private boolean sameBytes(int record, int field, byte[] key) {
+          int at = record * RECORD + STRINGS + 8 * field;
+          if (records.getInt(at + 4) != key.length) return false;
+          int offset = records.getInt(at);
+          for (int i = 0; i < key.length; ++i)
+             if (arena.get(offset + i) != key[i]) return false;
+          return true;
+       }
+
+       // FNV-1a
+       private static int hash(ByteBuffer bytes, int offset, int length) {
+          int h = 0x811c9dc5;
+          for (int i = 0; i < length; ++i) h = (h ^ (bytes.get(offset + i) & 0xff)) * 0x01000193;
+          return h ^ (h >>> 16);
+       }
+
+       /**
+        * Reads records through the given ordering (null for record order),
+        * decoding each row only when it is asked for.
+        */
+       private List<List<String>> view(IntBuffer order, int from, int to, boolean reverse) {
+          return new AbstractList<List<String>>() {
+             public List<String> get(int i) {
+                int at = reverse ? to - 1 - i : from + i;
+                return Arrays.asList(row(order == null ? at : order.get(at)));
+             }
+
+             public int size() {
+                return to - from;
+             }
+          };
+       }
+
+       List<List<String>> all() {
+          return view(null, 0, size, false);
+       }
+
+       List<List<String>> byGenre(String genre) {
+          int g = genres.indexOf(genre);
+          return g < 0 ? view(null, 0, 0, false) : view(byGenre, genreStart[g], genreStart[g + 1], false);
+       }
+
+       /**
+        * Games priced strictly below the limit, cheapest first unless
+        * descending.
+        */
+       List<List<String>> below(long limitCents, boolean descending) {
+          int lo = 0, hi = size;
+          while (lo < hi) {
+             int mid = (lo + hi) >>> 1;
+             if (price(byPrice.get(mid)) < limitCents) lo = mid + 1;
+             else hi = mid;
+          }
+          return view(byPrice, 0, lo, descending);
+       }
+
+       /**
+        * A reusable view of one record; reads decode only the field asked for.
+        */
+       final class Game {
+          private int record = -1;
+
+          boolean moveTo(String gameID) {
+             record = find(gameID);
+             return record >= 0;
+          }
+
+          Game at(int record) {
+             this.record = record;
+             return this;
+          }
+
+          String id() { return string(record, ID); }
+          String name() { return string(record, NAME); }
+          String genre() { return CatalogStore.this.genre(record); }
+          long price() { return CatalogStore.this.price(record); }
+          String description() { return string(record, DESCRIPTION); }
+          String imageURL() { return string(record, IMAGE); }
+       }
+
+       Game cursor() {
+          return new Game();
+       }
+
+       /**
+        * Writes the store as: size, genre count, genre names (length-prefixed
+        * UTF-8), genre starts, the byte sizes of the records, text and two
+        * hash tables, then those regions and the price and genre orderings.
+        */
+       void write(FileChannel channel) throws IOException {
+          ByteArrayOutputStream header = new ByteArrayOutputStream();
+          DataOutputStream out = new DataOutputStream(header);
+          out.writeInt(size);
+          out.writeInt(genres.size());
+          for (String genre : genres) {
+             byte[] bytes = genre.getBytes(StandardCharsets.UTF_8);
+             out.writeInt(bytes.length);
+             out.write(bytes);
+          }
+          for (int start : genreStart) out.writeInt(start);
+          for (ByteBuffer region : new ByteBuffer[]{records, arena, idBytes, nameBytes}) out.writeInt(region.capacity());
+          out.flush();
+          ByteBuffer head = ByteBuffer.wrap(header.toByteArray());
+          while (head.hasRemaining()) channel.write(head);
+          for (ByteBuffer region : new ByteBuffer[]{records, arena, idBytes, nameBytes, priceBytes, genreBytes}) {
+             ByteBuffer all = region.duplicate();
+             all.clear();
+             while (all.hasRemaining()) channel.write(all);
+          }
+       }
+
+       /**
+        * Serves a store from buf, positioned where write started, without
+        * copying it.
+        */
+       static CatalogStore read(ByteBuffer buf) {
+          int size = buf.getInt();
+          List<String> genres = new ArrayList<String>();
+          int genreCount = buf.getInt();
+          for (int g = 0; g < genreCount; ++g) {
+             byte[] bytes = new byte[buf.getInt()];
+             buf.get(bytes);
+             genres.add(new String(bytes, StandardCharsets.UTF_8));
+          }
+          int[] genreStart = new int[genreCount + 1];
+          for (int g = 0; g <= genreCount; ++g) genreStart[g] = buf.getInt();
+          int recordBytes = buf.getInt(), arenaBytes = buf.getInt(), idBytes = buf.getInt(), nameBytes = buf.getInt();
+          return new CatalogStore(size, region(buf, recordBytes), region(buf, arenaBytes), region(buf, idBytes),
+             region(buf, nameBytes), region(buf, size * 4), region(buf, size * 4), genres, genreStart);
+       }
+
+       private static ByteBuffer region(ByteBuffer buf, int length) {
+          ByteBuffer region = buf.slice();
+          region.limit(length);
+          buf.position(buf.position() + length);
+          return region.slice();
+       }
+
+       /**
+        * Appends games to direct buffers that double as they fill, then
+        * builds the indexes.
+        */
+       static final class Builder {
+          private ByteBuffer records;
+          private ByteBuffer arena;
+          private int size = 0;
+          private final Map<String, Integer> genreIds = new HashMap<String, Integer>();
+          private final List<String> genres = new ArrayList<String>();
+          private final List<int[]> genreText = new ArrayList<int[]>();
+
+          Builder(int expected) {
+             records = ByteBuffer.allocateDirect(Math.max(expected, 16) * RECORD);
+             arena = ByteBuffer.allocateDirect(Math.max(expected, 16) * 256);
+          }
+
+          /**
+           * Adds a row in CatalogSnapshot.HEADER order.
+           */
+          Builder add(String[] row) {
+             startRecord(PricingEngine.parseCents(row[3]), row[2]);
+             int at = size * RECORD + STRINGS;
+             putText(at + 8 * ID, row[0]);
+             putText(at + 8 * NAME, row[1]);
+             putText(at + 8 * DESCRIPTION, row[4]);
+             putText(at + 8 * IMAGE, row[5]);
+             ++size;
+             return this;
+          }
+
+          /**
+           * Adds a record of another store without decoding its text.
+           */
+          Builder copy(CatalogStore from, int record) {
+             startRecord(from.price(record), from.genre(record));
+             int at = size * RECORD + STRINGS;
+             for (int field : new int[]{ID, NAME, DESCRIPTION, IMAGE}) {
+                int source = record * RECORD + STRINGS + 8 * field;
+                int offset = from.records.getInt(source), length = from.records.getInt(source + 4);
+                if (length < 0) {
+                   records.putInt(at + 8 * field, 0).putInt(at + 8 * field + 4, -1);
+                   continue;
+                }
+                ensureArena(length);
+                ByteBuffer text = from.arena.duplicate();
+                text.limit(offset + length).position(offset);
+                records.putInt(at + 8 * field, arena.position()).putInt(at + 8 * field + 4, length);
+                arena.put(text);
+             }
+             ++size;
+             return this;
+          }
+
+          private void startRecord(long price, String genre) {
+             if (records.capacity() < (size + 1) * RECORD) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(grow(records.capacity(), RECORD));
+                records.clear().limit(size * RECORD);
+                grown.put(records);
+                records = grown;
+             }
+             Integer g = genreIds.get(genre);
+             if (g == null) {
+                genreIds.put(genre, g = genres.size());
+                genres.add(genre);
+                genreText.add(new int[2]);
+                putText(-1, genre);
+             }
+             int at = size * RECORD;
+             records.putLong(at + PRICE, price).putInt(at + GENRE, g);
+             records.putInt(at + STRINGS + 8 * GENRE_NAME, genreText.get(g)[0]).putInt(at + STRINGS + 8 * GENRE_NAME + 4, genreText.get(g)[1]);
+          }
+
+          // writes value to the arena and its (offset, length) at "at", or for the newest genre when at < 0
+          private void putText(int at, String value) {
+             int offset = arena.position(), length = -1;
+             if (value != null) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                ensureArena(bytes.length);
+                offset = arena.position();
+                arena.put(bytes);
+                length = bytes.length;
+             }
+             if (at < 0) {
+                genreText.get(genreText.size() - 1)[0] = offset;
+                genreText.get(genreText.size() - 1)[1] = length;
+             }else{
+                records.putInt(at, offset).putInt(at + 4, length);
+             }
+          }
+
+          private void ensureArena(int more) {
+             if (arena.remaining() >= more) return;
+             ByteBuffer grown = ByteBuffer.allocateDirect(grow(arena.capacity(), more));
+             arena.flip();
+             grown.put(arena);
+             arena = grown;
+          }
+
+          private static int grow(int capacity, int more) {
+             long wanted = Math.max(2L * capacity, (long)capacity + more);
+             if (wanted > Integer.MAX_VALUE - 8) {
+                if ((long)capacity + more > Integer.MAX_VALUE - 8) throw new IllegalStateException("catalog too large for one store");
+                wanted = Integer.MAX_VALUE - 8;
+             }
+             return (int)wanted;
+          }
+
+          CatalogStore build() {
+             ByteBuffer used = records.duplicate();
+             used.clear().limit(size * RECORD);
+             ByteBuffer recordRegion = used.slice();
+             ByteBuffer text = arena.duplicate();
+             text.flip();
+             ByteBuffer arenaRegion = text.slice();
+             int slots = Integer.highestOneBit(Math.max(size, 1) * 2 + 1) * 2;
+             ByteBuffer ids = ByteBuffer.allocateDirect(slots * 4);
+             ByteBuffer names = ByteBuffer.allocateDirect(slots * 4);
+             ByteBuffer prices = ByteBuffer.allocateDirect(Math.max(size, 1) * 4);
+             ByteBuffer grouped = ByteBuffer.allocateDirect(Math.max(size, 1) * 4);
+             int[] genreStart = new int[genres.size() + 1];
+             for (int r = 0; r < size; ++r) ++genreStart[recordRegion.getInt(r * RECORD + GENRE) + 1];
+             for (int g = 0; g < genres.size(); ++g) genreStart[g + 1] += genreStart[g];
+             int[] next = Arrays.copyOf(genreStart, genres.size());
+             for (int r = 0; r < size; ++r) {
+                grouped.putInt(4 * next[recordRegion.getInt(r * RECORD + GENRE)]++, r);
+                prices.putInt(4 * r, r);
+             }
+             prices.limit(size * 4);
+             grouped.limit(size * 4);
+             CatalogStore store = new CatalogStore(size, recordRegion, arenaRegion, ids, names,
+                prices.slice(), grouped.slice(), genres, genreStart);
+             int mask = slots - 1;
+             for (int r = 0; r < size; ++r) {
+                // a repeated gameID or name resolves to the later record
+                int at = r * RECORD + STRINGS + 8 * ID;
+                int slot = hash(arenaRegion, recordRegion.getInt(at), recordRegion.getInt(at + 4)) & mask;
+                byte[] id = store.string(r, ID).getBytes(StandardCharsets.UTF_8);
+                while (store.byId.get(slot) != 0 && !store.sameBytes(store.byId.get(slot) - 1, ID, id)) slot = (slot + 1) & mask;
+                store.byId.put(slot, r + 1);
+                String name = store.string(r, NAME);
+                if (name == null) continue;
+                String lower = name.toLowerCase();
+                byte[] key = lower.getBytes(StandardCharsets.UTF_8);
+                slot = hash(ByteBuffer.wrap(key), 0, key.length) & mask;
+                while (store.byName.get(slot) != 0 && !lower.equals(store.string(store.byName.get(slot) - 1, NAME).toLowerCase())) slot = (slot + 1) & mask;
+                store.byName.put(slot, r + 1);
+             }
+             store.sortByPrice();
+             return store;
+          }
+       }
+
+       // heap sort of byPrice in place, ties in record order
+       private void sortByPrice() {
+          for (int i = size / 2 - 1; i >= 0; --i) siftDown(i, size);
+          for (int end = size - 1; end > 0; --end) {
+             swap(0, end);
+             siftDown(0, end);
+          }
+       }
+
+       private boolean before(int a, int b) {
+          long pa = price(a), pb = price(b);
+          return pa < pb || (pa == pb && a < b);
+       }
+
+       private void siftDown(int i, int n) {
+          while (true) {
+             int child = 2 * i + 1;
+             if (child >= n) return;
+             if (child + 1 < n && before(byPrice.get(child), byPrice.get(child + 1))) ++child;
+             if (!before(byPrice.get(i), byPrice.get(child))) return;
+             swap(i, child);
+             i = child;
+          }
+       }
+
+       private void swap(int i, int j) {
+          int t = byPrice.get(i);
+          byPrice.put(i, byPrice.get(j));
+          byPrice.put(j, t);
+       }
+    }//end CatalogStore
+
+    /**
+     * In-process copy of the Catalog table, held in a CatalogStore outside
+     * the heap and persisted as a versioned snapshot file. The file is
+     * memory-mapped at startup and served as it is, so a restart or a new
+     * instance serves catalog reads without first re-reading the table. It
+     * records the transaction watermark it reflects (see loadCatalog), and
+     * loadCatalog applies only the changes made from there on.
+     *
+     * Layout: "GRCS", format version, watermark, then the store as written
+     * by CatalogStore.write.
+     */
+    static class CatalogSnapshot {
+       static final int MAGIC = 0x47524353;   // "GRCS"
+       static final int FORMAT = 3;
+       static final String[] HEADER = {"gameid", "gamename", "genre", "price", "description", "imageurl"};
+
+       private final Path file;
+       private boolean loaded = false;
+       private long changeCounter = -1;
+       private volatile CatalogStore store = CatalogStore.EMPTY;
+
+       CatalogSnapshot(Path file) {
+          this.file = file;
+       }
+
+       synchronized boolean isLoaded() {
+          return loaded;
+       }
+
+       synchronized long changeCounter() {
+          return changeCounter;
+       }
+
+       /**
+        * The current store; it does not change under the caller.
+        */
+       CatalogStore store() {
+          return store;
+       }
+
+       /**
+        * Maps the snapshot file and serves the catalog from it. A missing,
+        * foreign or damaged file leaves the cache unloaded.
+        */
+       synchronized void map() {
+          if (!Files.exists(file)) return;
+          try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+             MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+             if (buf.getInt() != MAGIC || buf.getInt() != FORMAT) return;
+             long counter = buf.getLong();
+             store = CatalogStore.read(buf);
+             changeCounter = counter;
+             loaded = true;
+          }catch (Exception e){
+             System.err.println("Ignoring catalog snapshot: " + e.getMessage());
+          }
+       }
+
+       synchronized void replaceAll(List<List<String>> table, long counter) {
+          CatalogStore.Builder fresh = new CatalogStore.Builder(table.size());
+          for (List<String> row : table) fresh.add(trimmed(row));
+          publish(fresh.build(), counter);
+       }
+
+       /**
+        * Replaces the changed games with their current rows; changed ids
+        * without a row were deleted. Unchanged games are copied over as
+        * bytes.
+        *
+        * @param changedIds quoted ids as used in the IN list
+        */
+       synchronized void applyDelta(List<String> changedIds, List<List<String>> current, long counter) {
+          CatalogStore old = store;
+          BitSet replaced = new BitSet(old.size());
+          for (String id : changedIds) {
+             int record = old.find(id.substring(1, id.length() - 1).replace("''", "'"));
+             if (record >= 0) replaced.set(record);
+          }
+          CatalogStore.Builder fresh = new CatalogStore.Builder(old.size() + current.size());
+          for (int record = 0; record < old.size(); ++record)
+             if (!replaced.get(record)) fresh.copy(old, record);
+          for (List<String> row : current) fresh.add(trimmed(row));
+          publish(fresh.build(), counter);
+       }
+
+       private void publish(CatalogStore fresh, long counter) {
+          store = fresh;
+          changeCounter = counter;
+          loaded = true;
+       }
+
+       /**
+        * Writes the snapshot to a temporary file and moves it into place, so
+        * a concurrent reader never maps a half-written file.
+        */
+       synchronized void save() throws IOException {
+          Path tmp = Paths.get(file.toString() + ".tmp");
+          try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+             ByteBuffer head = ByteBuffer.allocate(16);
+             head.putInt(MAGIC).putInt(FORMAT).putLong(changeCounter).flip();
+             while (head.hasRemaining()) channel.write(head);
+             store.write(channel);
+          }
+          Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+       }
+
+       private static String[] trimmed(List<String> row) {
+          String[] r = new String[HEADER.length];
+          for (int i = 0; i < r.length; ++i) r[i] = row.get(i) == null ? null : row.get(i).trim();
+          return r;
+       }
+
+       List<List<String>> all() {
+          return store.all();
+       }
+
+       List<List<String>> byGenre(String genre) {
+          return store.byGenre(genre);
+       }
+
+       /**
+        * Games priced strictly below the limit, cheapest first unless
+        * descending.
+        */
+       List<List<String>> below(long limitCents, boolean descending) {
+          return store.below(limitCents, descending);
+       }
+
+       String[] get(String gameID) {
+          CatalogStore current = store;
+          int record = current.find(gameID);
+          return record < 0 ? null : current.row(record);
+       }
+
+       /**
+        * @return the gameID of the game with this name (in any case) or ID
+        */
+       String idOf(String nameOrID) {
+          CatalogStore current = store;
+          if (current.find(nameOrID) >= 0) return nameOrID;
+          int record = current.findName(nameOrID);
+          return record < 0 ? null : current.string(record, CatalogStore.ID);
+       }
+    }//end CatalogSnapshot
+
+    /**
+     * A compressed set of user numbers. Numbers are grouped by their high 16
+     * bits; a group of up to 4096 members is kept as a sorted char[] of the
+     * low bits, a fuller one as a 65536-bit long[]. A game listed by a
+     * handful of users costs a few bytes, one listed by everybody 8KB per
+     * 65536 users, and intersections work group by group.
+     */
+    static final class LoginBitmap {
+       static final int ARRAY_MAX = 4096;
+
+       private int[] keys = new int[0];        // high bits, ascending
+       private Object[] groups = new Object[0]; // char[] or long[1024]
+       private int[] sizes = new int[0];
+       private int count = 0;
+
+       int cardinality() {
+          return count;
+       }
+
+       boolean contains(int id) {
+          int g = Arrays.binarySearch(keys, id >>> 16);
+          if (g < 0) return false;
+          char low = (char)id;
+          if (groups[g] instanceof long[]) return (((long[])groups[g])[low >>> 6] & (1L << low)) != 0;
+          return Arrays.binarySearch((char[])groups[g], 0, sizes[g], low) >= 0;
+       }
+
+       void add(int id) {
+          int key = id >>> 16;
+          char low = (char)id;
+          int g = Arrays.binarySearch(keys, key);
+          if (g < 0) {
+             g = -g - 1;
+             keys = insert(keys, g, key);
+             sizes = insert(sizes, g, 0);
+             Object[] grown = new Object[groups.length + 1];
+             System.arraycopy(groups, 0, grown, 0, g);
+             System.arraycopy(groups, g, grown, g + 1, groups.length - g);
+             grown[g] = new char[4];
+             groups = grown;
+          }
+          if (groups[g] instanceof long[]) {
+             long[] bits = (long[])groups[g];
+             if ((bits[low >>> 6] & (1L << low)) != 0) return;
+             bits[low >>> 6] |= 1L << low;
+          }else{
+             char[] members = (char[])groups[g];
+             int at = Arrays.binarySearch(members, 0, sizes[g], low);
+             if (at >= 0) return;
+             at = -at - 1;
+             if (sizes[g] == ARRAY_MAX) {
+                long[] bits = new long[1024];
+                for (int i = 0; i < sizes[g]; ++i) bits[members[i] >>> 6] |= 1L << members[i];
+                bits[low >>> 6] |= 1L << low;
+                groups[g] = bits;
+             }else{
+                if (sizes[g] == members.length) groups[g] = members = Arrays.copyOf(members, Math.min(ARRAY_MAX, members.length * 2));
+                System.arraycopy(members, at, members, at + 1, sizes[g] - at);
+                members[at] = low;
+             }
+          }
+          ++sizes[g];
+          ++count;
+       }
+
+       void remove(int id) {
+          int g = Arrays.binarySearch(keys, id >>> 16);
+          if (g < 0) return;
+          char low = (char)id;
+          if (groups[g] instanceof long[]) {
+             long[] bits = (long[])groups[g];
+             if ((bits[low >>> 6] & (1L << low)) == 0) return;
+             bits[low >>> 6] &= ~(1L << low);
+             if (sizes[g] - 1 <= ARRAY_MAX / 2) groups[g] = toArray(bits, sizes[g] - 1);
+          }else{
+             char[] members = (char[])groups[g];
+             int at = Arrays.binarySearch(members, 0, sizes[g], low);
+             if (at < 0) return;
+             System.arraycopy(members, at + 1, members, at, sizes[g] - at - 1);
+          }
+          --sizes[g];
+          --count;
+       }
+
+       /**
+        * @return the members of both this and other
+        */
+       LoginBitmap and(LoginBitmap other) {
+          LoginBitmap result = new LoginBitmap();
+          for (int i = 0, j = 0; i < keys.length && j < other.keys.length; ) {
+             if (keys[i] < other.keys[j]) { ++i; continue; }
+             if (keys[i] > other.keys[j]) { ++j; continue; }
+             long[] bits = bits(i);
+             long[] theirs = other.bits(j);
+             int size = 0;
+             for (int w = 0; w < 1024; ++w) size += Long.bitCount(bits[w] &= theirs[w]);
+             if (size > 0) result.append(keys[i], size > ARRAY_MAX ? bits : toArray(bits, size), size);
+             ++i;
+             ++j;
+          }
+          return result;
+       }
+
+       /**
+        * @return the members of this or other
+        */
+       LoginBitmap or(LoginBitmap other) {
+          LoginBitmap result = new LoginBitmap();
+          for (int i = 0, j = 0; i < keys.length || j < other.keys.length; ) {
+             int key = j == other.keys.length || (i < keys.length && keys[i] < other.keys[j]) ? keys[i] : other.keys[j];
+             long[] bits = new long[1024];
+             if (i < keys.length && keys[i] == key) {
+                long[] mine = bits(i++);
+                for (int w = 0; w < 1024; ++w) bits[w] |= mine[w];
+             }
+             if (j < other.keys.length && other.keys[j] == key) {
+                long[] theirs = other.bits(j++);
+                for (int w = 0; w < 1024; ++w) bits[w] |= theirs[w];
+             }
+             int size = 0;
+             for (int w = 0; w < 1024; ++w) size += Long.bitCount(bits[w]);
+             result.append(key, size > ARRAY_MAX ? bits : toArray(bits, size), size);
+          }
+          return result;
+       }
+
+       /**
+        * @return up to limit members, ascending
+        */
+       int[] members(int limit) {
+          int[] members = new int[Math.min(limit, count)];
+          int n = 0;
+          for (int g = 0; g < keys.length && n < members.length; ++g) {
+             if (groups[g] instanceof long[]) {
+                long[] bits = (long[])groups[g];
+                for (int w = 0; w < 1024 && n < members.length; ++w)
+                   for (long word = bits[w]; word != 0 && n < members.length; word &= word - 1)
+                      members[n++] = keys[g] << 16 | w << 6 | Long.numberOfTrailingZeros(word);
+             }else{
+                char[] low = (char[])groups[g];
+                for (int i = 0; i < sizes[g] && n < members.length; ++i) members[n++] = keys[g] << 16 | low[i];
+             }
+          }
+          return members;
+       }
+
+       // a copy of group g as a bitset
+       private long[] bits(int g) {
+          if (groups[g] instanceof long[]) return ((long[])groups[g]).clone();
+          long[] bits = new long[1024];
+          char[] members = (char[])groups[g];
+          for (int i = 0; i < sizes[g]; ++i) bits[members[i] >>> 6] |= 1L << members[i];
+          return bits;
+       }
+
+       private void append(int key, Object group, int size) {
+          keys = Arrays.copyOf(keys, keys.length + 1);
+          keys[keys.length - 1] = key;
+          groups = Arrays.copyOf(groups, groups.length + 1);
+          groups[groups.length - 1] = group;
+          sizes = Arrays.copyOf(sizes, sizes.length + 1);
+          sizes[sizes.length - 1] = size;
+          count += size;
+       }
+
+       private static char[] toArray(long[] bits, int size) {
+          char[] members = new char[Math.max(size, 4)];
+          int n = 0;
+          for (int w = 0; w < 1024; ++w)
+             for (long word = bits[w]; word != 0; word &= word - 1)
+                members[n++] = (char)(w << 6 | Long.numberOfTrailingZeros(word));
+          return members;
+       }
+
+       private static int[] insert(int[] array, int at, int value) {
+          int[] grown = new int[array.length + 1];
+          System.arraycopy(array, 0, grown, 0, at);
+          grown[at] = value;
+          System.arraycopy(array, at, grown, at + 1, array.length - at);
+          return grown;
+       }
+    }//end LoginBitmap
+
+    /**
+     * The inverted index of UserFavGames: for every game, the LoginBitmap
+     * of the users who list it. Logins are numbered in the order they are
+     * first seen; numbers are not reused. Writes go to UserFavGames and then
+     * here, so the index answers audience counts and intersections without
+     * touching the database.
+     */
+    static class FavoritesIndex {
+       private final Map<String, Integer> ids = new HashMap<String, Integer>();
+       private final List<String> logins = new ArrayList<String>();
+       private final Map<String, LoginBitmap> byGame = new HashMap<String, LoginBitmap>();
+       // what each numbered user lists, to clear it on change
+       private final Map<Integer, List<String>> listed = new HashMap<Integer, List<String>>();
+
+       private int id(String login) {
+          Integer id = ids.get(login);
+          if (id == null) {
+             ids.put(login, id = logins.size());
+             logins.add(login);
+          }
+          return id;
+       }
+
+       /**
+        * Replaces the index with rows of (login, gameID).
+        */
+       synchronized void load(List<List<String>> rows) {
+          byGame.clear();
+          listed.clear();
+          for (List<String> r : rows) {
+             int id = id(r.get(0).trim());
+             String gameID = r.get(1).trim();
+             byGame.computeIfAbsent(gameID, k -> new LoginBitmap()).add(id);
+             listed.computeIfAbsent(id, k -> new ArrayList<String>()).add(gameID);
+          }
+       }
+
+       /**
+        * Replaces what login lists.
+        */
+       synchronized void set(String login, List<String> gameIDs) {
+          int id = id(login.trim());
+          List<String> before = listed.remove(id);
+          if (before != null)
+             for (String gameID : before) byGame.get(gameID).remove(id);
+          if (gameIDs.isEmpty()) return;
+          for (String gameID : gameIDs) byGame.computeIfAbsent(gameID, k -> new LoginBitmap()).add(id);
+          listed.put(id, new ArrayList<String>(gameIDs));
+       }
+
+       /**
+        * @return the users listing any (or, if all, every one) of gameIDs
+        */
+       synchronized LoginBitmap audience(List<String> gameIDs, boolean all) {
+          LoginBitmap audience = null;
+          for (String gameID : gameIDs) {
+             LoginBitmap fans = byGame.getOrDefault(gameID, new LoginBitmap());
+             audience = audience == null ? fans.or(new LoginBitmap())
+                : all ? audience.and(fans) : audience.or(fans);
+          }
+          return audience == null ? new LoginBitmap() : audience;
+       }
+
+       synchronized List<String> logins(LoginBitmap audience, int limit) {
+          List<String> names = new ArrayList<String>();
+          for (int id : audience.members(limit)) names.add(logins.get(id));
+          return names;
+       }
+
+       /**
+        * Reads favorite games as users type them: catalog names or gameIDs
+        * separated by commas, or by spaces, in which case the longest run
+        * of words naming a game wins.
+        *
+        * @return the gameIDs named, without repeats
+        */
+       static List<String> parse(String favGames, CatalogSnapshot catalog) {
+          Set<String> found = new LinkedHashSet<String>();
+          if (favGames == null) return new ArrayList<String>();
+          for (String part : favGames.split("[,;]")) {
+             part = part.trim();
+             if (part.isEmpty()) continue;
+             String gameID = catalog.idOf(part);
+             if (gameID != null) {
+                found.add(gameID);
+                continue;
+             }
+             String[] words = part.split("\\s+");
+             for (int start = 0; start < words.length; ) {
+                int end = Math.min(words.length, start + 8);
+                for (gameID = null; end > start && gameID == null; --end)
+                   gameID = catalog.idOf(String.join(" ", Arrays.asList(words).subList(start, end)));
+                if (gameID != null) found.add(gameID);
+                start = gameID != null ? end + 1 : start + 1;
+             }
+          }
+          return new ArrayList<String>(found);
+       }
+    }//end FavoritesIndex
+
+    /**
+     * Prices in long cents. Catalog prices are read from the fixed-width
+     * records of the current CatalogStore by record number, the game
+     * ordinal; a catalog change publishes a new store, so quoting reads one
+     * immutable table without locks. A cart takes the store when its first
+     * game is added and keeps it until cleared, so its ordinals and prices
+     * always come from the same store. quote fills caller-owned Cart
+     * objects in place: no boxing, no BigDecimal, no allocation per cart.
+     *
+     * A cart's total is its subtotal, less the multi-game discount
+     * (gamerental.pricing.discountBps basis points once it holds
+     * gamerental.pricing.discountUnits units or more), plus tax
+     * (gamerental.pricing.taxBps) on the discounted amount. The late-fee
+     * estimate is gamerental.pricing.lateFeeBps of the subtotal per day
+     * overdue. Every percentage rounds half up to the cent.
+     */
+    static class PricingEngine {
+       static final int BPS = 10000;
+
+       /**
+        * Reusable cart: clear it, add games, call price and quote, read the
+        * results.
+        */
+       static final class Cart {
+          final int[] games;
+          final int[] units;
+          final long[] unitCents;
+          int lines;
+          int daysOverdue;
+          long subtotal, discount, tax, total, lateFee;
+          // the store games[] are ordinals of, taken with the first game
+          CatalogStore prices;
+
+          Cart(int capacity) {
+             games = new int[capacity];
+             units = new int[capacity];
+             unitCents = new long[capacity];
+          }
+
+          void clear() {
+             lines = 0;
+             daysOverdue = 0;
+             prices = null;
+          }
+
+          /**
+           * Adds a line with a known price (games[i] is then -1).
+           */
+          void add(long cents, int count) {
+             games[lines] = -1;
+             unitCents[lines] = cents;
+             units[lines++] = count;
+          }
+       }
+
+       private final long taxBps = Long.getLong("gamerental.pricing.taxBps", 0);
+       private final long discountBps = Long.getLong("gamerental.pricing.discountBps", 0);
+       private final int discountUnits = Integer.getInteger("gamerental.pricing.discountUnits", 3);
+       private final long lateFeeBps = Long.getLong("gamerental.pricing.lateFeeBps", 100);
+
+       private volatile CatalogStore catalog = CatalogStore.EMPTY;
+
+       /**
+        * Prices from this store from now on.
+        */
+       void load(CatalogStore store) {
+          catalog = store;
+       }
+
+       /**
+        * @return whether a catalog with games has been loaded
+        */
+       boolean isLoaded() {
+          return catalog.size() > 0;
+       }
+
+       /**
+        * Adds count of a catalog game to the cart, by its ordinal in the
+        * cart's store.
+        *
+        * @return false if the game is not in the store
+        */
+       boolean add(Cart cart, String gameID, int count) {
+          if (cart.prices == null) cart.prices = catalog;
+          int game = cart.prices.find(gameID);
+          if (game < 0) return false;
+          cart.games[cart.lines] = game;
+          cart.unitCents[cart.lines] = 0;
+          cart.units[cart.lines++] = count;
+          return true;
+       }
+
+       /**
+        * Copies the price of every catalog line into the cart, from the
+        * cart's store.
+        *
+        * @return false if a line names a game outside the table
+        */
+       boolean price(Cart cart) {
+          if (cart.prices == null) cart.prices = catalog;
+          CatalogStore prices = cart.prices;
+          for (int i = 0; i < cart.lines; ++i) {
+             int game = cart.games[i];
+             if (game < 0) continue;
+             if (game >= prices.size()) return false;
+             cart.unitCents[i] = prices.price(game);
+          }
+          return true;
+       }
+
+       void quote(Cart cart) {
+          long subtotal = 0;
+          int count = 0;
+          for (int i = 0; i < cart.lines; ++i) {
+             subtotal += cart.unitCents[i] * cart.units[i];
+             count += cart.units[i];
+          }
+          long discount = count >= discountUnits ? percent(subtotal, discountBps) : 0;
+          long tax = percent(subtotal - discount, taxBps);
+          cart.subtotal = subtotal;
+          cart.discount = discount;
+          cart.tax = tax;
+          cart.total = subtotal - discount + tax;
+          cart.lateFee = lateFeePerDay(cart) * cart.daysOverdue;
+       }
+
+       long lateFeePerDay(Cart cart) {
+          return percent(cart.subtotal, lateFeeBps);
+       }
+
+       static long percent(long amount, long bps) {
+          return (amount * bps + BPS / 2) / BPS;
+       }
+
+       /**
+        * Parses a decimal amount such as "32.99" or "-5" into cents, rounding
+        * half up past the second decimal.
+        *
+        * @throws NumberFormatException if it is not an amount or does not fit
+        *         a long in cents
+        */
+       static long parseCents(CharSequence amount) {
+          int i = 0, n = amount.length();
+          while (i < n && amount.charAt(i) == ' ') ++i;
+          while (n > i && amount.charAt(n - 1) == ' ') --n;
+          boolean negative = i < n && amount.charAt(i) == '-';
+          if (i < n && (amount.charAt(i) == '-' || amount.charAt(i) == '+')) ++i;
+          if (i == n) throw new NumberFormatException("not an amount: " + amount);
+          long whole = 0;
+          int fraction = -1, digits = 0;
+          boolean roundUp = false;
+          for (; i < n; ++i) {
+             char c = amount.charAt(i);
+             if (c == '.' && fraction < 0) { fraction = 0; continue; }
+             if (c < '0' || c > '9') throw new NumberFormatException("not an amount: " + amount);
+             try{
+                if (fraction < 0) whole = Math.addExact(Math.multiplyExact(whole, 10), c - '0');
+                else if (fraction < 2) { whole = Math.addExact(Math.multiplyExact(whole, 10), c - '0'); ++fraction; }
+                else if (digits++ == 0) roundUp = c >= '5';
+             }catch (ArithmeticException e){
+                throw new NumberFormatException("amount out of range: " + amount);
+             }
+          }
+          try{
+             for (int f = Math.max(fraction, 0); f < 2; ++f) whole = Math.multiplyExact(whole, 10);
+             if (roundUp) whole = Math.addExact(whole, 1);
+          }catch (ArithmeticException e){
+             throw new NumberFormatException("amount out of range: " + amount);
+          }
+          return negative ? -whole : whole;
+       }
+
+       /**
+        * Formats cents as a decimal amount, e.g. 3299 as "32.99".
+        */
+       static String format(long cents) {
+          long abs = Math.abs(cents);
+          return String.format("%s%d.%02d", cents < 0 ? "-" : "", abs / 100, abs % 100);
+       }
+
+       /**
+        * Times quote over a batch of random carts; run with
+        * "java GameRental --bench-pricing [carts]".
+        */
+       static void bench(int carts) {
+          PricingEngine engine = new PricingEngine();
+          CatalogStore.Builder builder = new CatalogStore.Builder(500);
+          for (int i = 0; i < 500; ++i)
+             builder.add(new String[]{"game" + i, null, null, PricingEngine.format(499 + 100L * (i % 60)), null, null});
+          CatalogStore catalog = builder.build();
+          engine.load(catalog);
+          Cart[] batch = new Cart[carts];
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          for (int c = 0; c < carts; ++c) {
+             batch[c] = new Cart(8);
+             int lines = 1 + random.nextInt(8);
+             for (int l = 0; l < lines; ++l)
+                engine.add(batch[c], "game" + random.nextInt(catalog.size()), 1 + random.nextInt(3));
+             batch[c].daysOverdue = random.nextInt(10);
+          }
+          long checksum = 0;
+          for (int round = 0; round < 20; ++round) {
+             long start = System.nanoTime();
+             for (int c = 0; c < carts; ++c) {
+                engine.price(batch[c]);
+                engine.quote(batch[c]);
+             }
+             long elapsed = System.nanoTime() - start;
+             for (int c = 0; c < carts; ++c) checksum += batch[c].total;
+             System.out.println(String.format("round %2d%s: %.1f ns/cart", round, round < 10 ? " (warmup)" : "", (double)elapsed / carts));
+          }
+          System.out.println("checksum " + checksum);
+       }
+    }//end PricingEngine
+
+    /**
+     * Moves users between shards: after a login rename, and as the
+     * resharding tool run by "--reshard <host:port/db,...>" with the current
+     * layout in gamerental.shards. The tool first copies the shared tables
+     * (Catalog, Inventory) to the new shards, then walks the users of every
+     * old shard and moves each one whose login hashes elsewhere in the new
+     * layout.
+     *
+     * A user is copied to the target in one transaction and only then
+     * deleted from the source (the cascades remove the rest), so an
+     * interrupted run can simply be repeated; rows already copied are
+     * skipped with ON CONFLICT DO NOTHING. Audit rows go along with the
+     * user they are keyed by; one that also references a user or game the
+     * target lacks cannot be stored there and is written to the unrouted
+     * audit log instead (see AuditTrail.unrouted).
+     */
+    static class Resharder {
+       // tables shared by all shards, copied in this order
+       static final String[] SHARED_TABLES = {"Catalog", "Inventory"};
+       // references the audit rows need on the target
+       static final String USERS_AND_WORKER = "EXISTS (SELECT 1 FROM Users U WHERE U.login = rtrim(v.login_U)) AND EXISTS (SELECT 1 FROM Worker W WHERE W.login = rtrim(v.login_W))";
+       static final String GAME = "EXISTS (SELECT 1 FROM Catalog C WHERE C.gameID = rtrim(v.gameID))";
+       // rows belonging to a user, in foreign key order; %1$s is the login,
+       // and the optional third entry is a condition on the copied row v
+       // that has to hold on the target
+       static final String[][] USER_TABLES = {
+          {"Users", "login = '%s'"},
+          {"UserFavGames", "login = '%s'"},
+          {"Customer", "login = '%s'"},
+          {"Worker", "login = '%s'"},
+          {"RentalOrder", "login = '%s'"},
+          {"TrackingInfo", "rentalOrderID IN (SELECT rentalOrderID FROM RentalOrder WHERE login = '%s')"},
+          {"TrackingEvent", "trackingID IN (SELECT T.trackingID FROM TrackingInfo T, RentalOrder R WHERE T.rentalOrderID = R.rentalOrderID AND R.login = '%s')"},
+          {"TrackingLatest", "trackingID IN (SELECT T.trackingID FROM TrackingInfo T, RentalOrder R WHERE T.rentalOrderID = R.rentalOrderID AND R.login = '%s')"},
+          {"GamesInOrder", "rentalOrderID IN (SELECT rentalOrderID FROM RentalOrder WHERE login = '%s')"},
+          {"User_Catalog_views", "login = '%s'", GAME},
+          {"Worker_User_updates", "login_U = '%1$s' OR login_W = '%1$s'", USERS_AND_WORKER},
+          {"Worker_Catalog_updates", "login = '%s'", GAME},
+          {"Worker_TrackingInfo_updates", "login = '%s'"},
+          {"Worker_RentalOrder_updates", "login = '%s'"}};
+
+       private final GameRental esql;
+       private final List<Connection> target;
+
+       Resharder(GameRental esql, List<Connection> target) {
+          this.esql = esql;
+          this.target = target;
+       }
+
+       void run() throws SQLException {
+          List<Connection> source = esql.isSharded() ? esql._shards
+             : java.util.Collections.singletonList(esql._connection);
+          for (Connection to : target)
+             for (String table : SHARED_TABLES)
+                copyRows(source.get(0), to, table, "TRUE");
+          int moved = 0;
+          for (Connection from : source) {
+             List<String> logins = new ArrayList<String>();
+             try (Statement stmt = from.createStatement()) {
+                ResultSet rs = stmt.executeQuery("SELECT login FROM Users;");
+                while (rs.next()) logins.add(rs.getString(1).trim());
+             }
+             for (String login : logins) {
+                Connection to = target.get(shardFor(login, target.size()));
+                if (sameDatabase(from, to)) continue;
+                moveUser(from, to, login);
+                ++moved;
+             }
+          }
+          for (Connection to : target) to.close();
+          System.out.println(String.format("Moved %d user(s) to %d shard(s)", moved, target.size()));
+       }
+
+       static boolean sameDatabase(Connection a, Connection b) throws SQLException {
+          return a == b || a.getMetaData().getURL().equals(b.getMetaData().getURL());
+       }
+
+       static void moveUser(Connection from, Connection to, String login) throws SQLException {
+          String key = login.replace("'", "''");
+          boolean autoCommit = to.getAutoCommit();
+          Map<String,List<String[]>> unrouted = new TreeMap<String,List<String[]>>();
+          to.setAutoCommit(false);
+          try{
+             for (String[] table : USER_TABLES) {
+                List<String[]> refused = copyRows(from, to, table[0], String.format(table[1], key), table.length > 2 ? table[2] : null);
+                if (!refused.isEmpty()) unrouted.put(table[0], refused);
+             }
+             to.commit();
+          }catch (SQLException e){
+             to.rollback();
+             throw e;
+          }finally{
+             to.setAutoCommit(autoCommit);
+          }
+          for (Map.Entry<String,List<String[]>> table : unrouted.entrySet())
+             AuditTrail.unrouted(table.getKey(), table.getValue());
+          try (Statement stmt = from.createStatement()) {
+             stmt.executeUpdate(String.format("DELETE FROM Users WHERE login = '%s';", key));
+          }
+       }
+
+       static void copyRows(Connection from, Connection to, String table, String where) throws SQLException {
+          copyRows(from, to, table, where, null);
+       }
+
+       /**
+        * Copies the rows of table matching where from one database to
+        * another as a batch of literal INSERTs. With a guard, each row is
+        * first checked against it on the target and only copied if it holds.
+        *
+        * @return the rows the guard refused
+        */
+       static List<String[]> copyRows(Connection from, Connection to, String table, String where, String guard) throws SQLException {
+          List<String[]> refused = new ArrayList<String[]>();
+          try (Statement read = from.createStatement(); Statement write = to.createStatement()) {
+             ResultSet rs = read.executeQuery("SELECT * FROM " + table + " WHERE " + where + ";");
+             ResultSetMetaData rsmd = rs.getMetaData();
+             int numCol = rsmd.getColumnCount();
+             StringBuilder columns = new StringBuilder();
+             for (int i = 1; i <= numCol; ++i)
+                columns.append(i > 1 ? ", " : "").append(rsmd.getColumnName(i));
+             int batched = 0;
+             while (rs.next()) {
+                StringBuilder values = new StringBuilder();
+                String[] row = new String[numCol];
+                for (int i = 1; i <= numCol; ++i) {
+                   String value = row[i - 1] = rs.getString(i);
+                   values.append(i > 1 ? ", " : "")
+                         .append(value == null ? "NULL" : "'" + value.replace("'", "''") + "'");
+                }
+                if (guard != null && !holds(to, guard, columns, values)) {
+                   refused.add(row);
+                   continue;
+                }
+                write.addBatch(String.format("INSERT INTO %s (%s) VALUES (%s) ON CONFLICT DO NOTHING;", table, columns, values));
+                if (++batched % 500 == 0) write.executeBatch();
+             }
+             write.executeBatch();
+          }
+          return refused;
+       }
+
+       private static boolean holds(Connection to, String guard, CharSequence columns, CharSequence values) throws SQLException {
+          try (Statement stmt = to.createStatement()) {
+             ResultSet rs = stmt.executeQuery(String.format("SELECT %s FROM (VALUES (%s)) AS v(%s);", guard, values, columns));
+             return rs.next() && rs.getBoolean(1);
+          }
+       }
+    }//end Resharder
+
+    /**
+     * Audit trail of worker actions. Callers only put an event on a bounded
+     * ring; a daemon thread drains it over its own connections and writes
+     * each batch as one INSERT ... SELECT per Worker_*_updates table, so a
+     * worker action costs a queue offer instead of a round trip. Tracking
+     * updates are also recorded against their order in
+     * Worker_RentalOrder_updates.
+     *
+     * Catalog views go through the same ring into User_Catalog_views.
+     * Browsing shows the same games over and over, so each login keeps a
+     * bitset over game ordinals and only the first view of a game in the
+     * session is queued.
+     *
+     * gamerental.audit.mode decides what happens under pressure. "bounded"
+     * (the default) drops and counts events when the ring
+     * (gamerental.audit.capacity, default 8192) is full or a batch fails;
+     * "durable" blocks the worker until there is room, retries failed
+     * batches and drains the ring on close.
+     *
+     * Each row is offered to the shards in turn and kept by the first one
+     * holding the users and games it references; a tracking update's order is first
+     * looked up on whichever shard has it, since it belongs to the customer
+     * rather than the worker. A row that no shard can hold, such as a
+     * worker's update of a user on another shard, is appended to the
+     * unrouted log instead of being dropped.
+     */
+    static class AuditTrail {
+       static final String UNROUTED_LOG = System.getProperty("gamerental.audit.unroutedLog", "gamerental-audit-unrouted.log");
+       private static final String[] STOP = new String[0];
+       private static final int BATCH = 512;
+       private static final long FLUSH_MILLIS = 200;
+
+       private final GameRental esql;
+       private final boolean durable = "durable".equalsIgnoreCase(System.getProperty("gamerental.audit.mode", "bounded"));
+       private final ArrayBlockingQueue<String[]> ring = new ArrayBlockingQueue<String[]>(Integer.getInteger("gamerental.audit.capacity", 8192));
+       private final LongAdder dropped = new LongAdder();
+       private final LongAdder unroutedRows = new LongAdder();
+       private final Thread flusher;
+       private List<Connection> connections = null;
+       private final Map<String,Integer> gameOrdinals = new HashMap<String,Integer>();
+       private final Map<String,BitSet> viewed = new HashMap<String,BitSet>();
+
+       AuditTrail(GameRental esql) {
+          this.esql = esql;
+          this.flusher = new Thread(this::run, "GameRental-audit");
+          this.flusher.setDaemon(true);
+          this.flusher.start();
+       }
+
+       void userUpdated(String worker, String login) {
+          record("Worker_User_updates", login, worker);
+       }
+
+       void catalogUpdated(String worker, String gameID) {
+          record("Worker_Catalog_updates", worker, gameID);
+       }
+
+       void trackingUpdated(String worker, String trackingID) {
+          record("Worker_TrackingInfo_updates", worker, trackingID);
+       }
+
+       void catalogViewed(String login, String gameID) {
+          catalogViewed(login, Collections.singletonList(Collections.singletonList(gameID)));
+       }
+
+       /**
+        * Records that login saw the games whose IDs are in the first column
+        * of rows.
+        */
+       synchronized void catalogViewed(String login, List<List<String>> rows) {
+          login = login.trim();
+          BitSet seen = viewed.get(login);
+          if (seen == null) viewed.put(login, seen = new BitSet());
+          for (List<String> row : rows) {
+             String gameID = row.get(0).trim();
+             Integer ordinal = gameOrdinals.get(gameID);
+             if (ordinal == null) gameOrdinals.put(gameID, ordinal = gameOrdinals.size());
+             if (seen.get(ordinal)) continue;
+             seen.set(ordinal);
+             // a dropped view may be queued again the next time it is shown
+             if (!record("User_Catalog_views", login, gameID)) seen.clear(ordinal);
+          }
+       }
+
+       /**
+        * Forgets what login has seen, called when the session ends.
+        */
+       synchronized void endSession(String login) {
+          viewed.remove(login.trim());
+       }
+
+       private boolean record(String table, String first, String second) {
+          String[] event = {table, first.trim(), second.trim()};
+          if (!durable) {
+             if (ring.offer(event)) return true;
+             dropped.increment();
+             return false;
+          }
+          try{
+             ring.put(event);
+             return true;
+          }catch (InterruptedException e){
+             Thread.currentThread().interrupt();
+             dropped.increment();
+             return false;
+          }
+       }
+
+       private void run() {
+          List<String[]> batch = new ArrayList<String[]>(BATCH);
+          boolean stopping = false;
+          while (!stopping) {
+             try{
+                String[] first = ring.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                ring.drainTo(batch, BATCH - 1);
+             }catch (InterruptedException e){
+                return;
+             }
+             stopping = batch.remove(STOP);
+             while (!batch.isEmpty()) {
+                try{
+                   write(batch);
+                   batch.clear();
+                }catch (SQLException e){
+                   System.err.println("Audit batch failed: " + e.getMessage());
+                   disconnect();
+                   if (!durable) {
+                      dropped.add(batch.size());
+                      batch.clear();
+                   }
+                   else try{
+                      Thread.sleep(1000);
+                   }catch (InterruptedException ie){
+                      return;
+                   }
+                }
+             }
+          }
+          disconnect();
+       }
+
+       private void write(List<String[]> batch) throws SQLException {
+          List<Connection> connections = connect();
+          Map<String,Set<List<String>>> pending = new TreeMap<String,Set<List<String>>>();
+          for (String[] event : batch)
+             pending.computeIfAbsent(event[0], k -> new LinkedHashSet<List<String>>()).add(Arrays.asList(event[1], event[2]));
+          Map<String,Set<List<String>>> unrouted = new TreeMap<String,Set<List<String>>>();
+          // a tracked order lives on its customer's shard, not necessarily the worker's
+          Set<List<String>> tracking = pending.get("Worker_TrackingInfo_updates");
+          if (tracking != null) {
+             Set<List<String>> orders = new LinkedHashSet<List<String>>();
+             Set<List<String>> unresolved = new LinkedHashSet<List<String>>(tracking);
+             StringBuilder ids = new StringBuilder();
+             for (List<String> event : tracking)
+                ids.append(ids.length() == 0 ? "" : ",").append('\'').append(event.get(1).replace("'", "''")).append('\'');
+             for (Connection connection : connections) {
+                try (Statement stmt = connection.createStatement()) {
+                   ResultSet rs = stmt.executeQuery(String.format("SELECT trackingID, rentalOrderID FROM TrackingInfo WHERE trackingID IN (%s);", ids));
+                   while (rs.next()) {
+                      String trackingID = rs.getString(1).trim();
+                      for (List<String> event : tracking)
+                         if (event.get(1).equals(trackingID)) {
+                            orders.add(Arrays.asList(event.get(0), rs.getString(2).trim()));
+                            unresolved.remove(event);
+                         }
+                   }
+                }
+             }
+             if (!orders.isEmpty()) pending.put("Worker_RentalOrder_updates", orders);
+             if (!unresolved.isEmpty()) unrouted.put("Worker_RentalOrder_updates", unresolved);
+          }
+          // each row is stored on the shards holding what it references; what no shard holds is left over
+          for (Connection connection : connections) {
+             Statement stmt = connection.createStatement();
+             try{
+                for (Map.Entry<String,Set<List<String>>> e : pending.entrySet()) {
+                   if (e.getValue().isEmpty()) continue;
+                   ResultSet rs = stmt.executeQuery(insert(e.getKey(), e.getValue()));
+                   while (rs.next())
+                      e.getValue().remove(Arrays.asList(rs.getString(1).trim(), rs.getString(2).trim()));
+                }
+                connection.commit();
+             }catch (SQLException e){
+                connection.rollback();
+                throw e;
+             }finally{
+                stmt.close();
+             }
+          }
+          for (Map.Entry<String,Set<List<String>>> e : pending.entrySet())
+             if (!e.getValue().isEmpty()) unrouted.merge(e.getKey(), e.getValue(), (x, y) -> { x.addAll(y); return x; });
+          for (Map.Entry<String,Set<List<String>>> e : unrouted.entrySet()) {
+             List<String[]> rows = new ArrayList<String[]>();
+             for (List<String> row : e.getValue()) rows.add(row.toArray(new String[0]));
+             unrouted(e.getKey(), rows);
+             unroutedRows.add(rows.size());
+          }
+       }
+
+       /**
+        * An INSERT of rows into table that keeps the rows whose references
+        * this shard holds and returns them.
+        */
+       private static String insert(String table, Set<List<String>> rows) {
+          StringBuilder values = new StringBuilder();
+          for (List<String> row : rows)
+             values.append(values.length() == 0 ? "" : ",")
+                   .append(String.format("('%s','%s')", row.get(0).replace("'", "''"), row.get(1).replace("'", "''")));
+          String references;
+          switch (table) {
+             case "Worker_User_updates":
+                references = "JOIN Users U ON U.login = v.a JOIN Worker W ON W.login = v.b";
+                break;
+             case "Worker_Catalog_updates":
+             case "User_Catalog_views":
+                references = "JOIN Users U ON U.login = v.a JOIN Catalog C ON C.gameID = v.b";
+                break;
+             default:
+                // Worker_TrackingInfo_updates and Worker_RentalOrder_updates only reference the worker
+                references = "JOIN Users U ON U.login = v.a";
+                break;
+          }
+          return String.format("WITH v(a,b) AS (VALUES %s), stored AS (SELECT v.a, v.b FROM v %s), " +
+             "inserted AS (INSERT INTO %s SELECT a, b FROM stored ON CONFLICT DO NOTHING) SELECT a, b FROM stored;",
+             values, references, table);
+       }
+
+       private List<Connection> connect() throws SQLException {
+          if (connections == null) {
+             String shards = System.getProperty("gamerental.shards");
+             connections = shards == null
+                ? new ArrayList<Connection>(Collections.singletonList(esql.openConnection()))
+                : connectShards(shards, esql._user, esql._passwd);
+             for (Connection connection : connections)
+                connection.setAutoCommit(false);
+          }
+          return connections;
+       }
+
+       private void disconnect() {
+          if (connections == null) return;
+          for (Connection connection : connections) {
+             try{
+                connection.close();
+             }catch (SQLException e){
+                // nothing left to do with a broken audit connection
+             }
+          }
+          connections = null;
+       }
+
+       /**
+        * Appends audit rows that no shard can hold, because the users or
+        * games they reference live on different shards, to UNROUTED_LOG:
+        * one tab-separated line per row after the time and table.
+        */
+       static synchronized void unrouted(String table, List<String[]> rows) {
+          try (PrintWriter log = new PrintWriter(new FileWriter(UNROUTED_LOG, true))) {
+             Timestamp now = new Timestamp(System.currentTimeMillis());
+             for (String[] row : rows) {
+                StringBuilder line = new StringBuilder().append(now).append('\t').append(table);
+                for (String column : row) line.append('\t').append(column == null ? "" : column.trim());
+                log.println(line);
+             }
+          }catch (IOException e){
+             System.err.println(String.format("Unable to log %d unrouted %s row(s): %s", rows.size(), table, e.getMessage()));
+          }
+       }
+
+       /**
+        * Stops the flusher once the ring is empty. In durable mode this waits
+        * for the last batch to be written.
+        */
+       void close() {
+          try{
+             if (durable) ring.put(STOP);
+             else ring.offer(STOP);
+             flusher.join(durable ? 30000 : 2 * FLUSH_MILLIS + 1000);
+          }catch (InterruptedException e){
+             Thread.currentThread().interrupt();
+          }
+          long lost = dropped.sum();
+          if (flusher.isAlive())
+             for (String[] event : ring)
+                if (event != STOP) ++lost;
+          if (lost > 0)
+             System.err.println(String.format("%d audit events were not recorded", lost));
+          if (unroutedRows.sum() > 0)
+             System.err.println(String.format("%d audit rows no shard could hold are in %s", unroutedRows.sum(), UNROUTED_LOG));
+       }
+    }//end AuditTrail
+
+    /**
+     * Writes query results to standard out a page at a time. A page is
+     * formatted into one reusable buffer and handed to System.out in a
+     * single call, instead of one synchronized print per cell. Column
+     * widths come from the header and the first page and stay fixed for
+     * later pages. When interactive, the next page is only fetched after
+     * the user asks for it.
+     */
+    static class ConsoleRenderer {
+       static final int PAGE_ROWS = Integer.getInteger("gamerental.pageRows", 50);
+       static final int MAX_WIDTH = 40;
+
+       private final StringBuilder page = new StringBuilder(64 * 1024);
+
+       /**
+        * @return the number of rows printed
+        */
+       int render(ResultSet rs, boolean interactive) throws SQLException {
+          ResultSetMetaData rsmd = rs.getMetaData ();
+          int numCol = rsmd.getColumnCount ();
+          String[] header = new String[numCol];
+          for (int i = 0; i < numCol; ++i) header[i] = rsmd.getColumnName(i + 1);
+
+          int[] widths = null;
+          int rowCount = 0;
+          List<String[]> rows = new ArrayList<String[]>(PAGE_ROWS);
+          while (true) {
+             rows.clear();
+             while (rows.size() < PAGE_ROWS && rs.next()) {
+                String[] row = new String[numCol];
+                for (int i = 0; i < numCol; ++i) row[i] = rs.getString(i + 1);
+                rows.add(row);
+             }
+             if (rows.isEmpty()) break;
+             if (widths == null) {
+                widths = sampleWidths(header, rows);
+                appendRow(header, widths);
+             }
+             for (String[] row : rows) appendRow(row, widths);
+             rowCount += rows.size();
+             flush();
+             if (rows.size() < PAGE_ROWS || (interactive && !more())) break;
+          }
+          return rowCount;
+       }
+
+       /**
+        * Same layout for rows that are already in memory.
+        */
+       int render(String[] header, List<List<String>> rows) {
+          return render(header, rows, false);
+       }
+
+       /**
+        * Same layout for rows that are already in memory, such as cached
+        * results, a page at a time when interactive.
+        *
+        * @return the number of rows printed
+        */
+       int render(String[] header, List<List<String>> rows, boolean interactive) {
+          List<String[]> sample = new ArrayList<String[]>();
+          for (int i = 0; i < rows.size() && i < PAGE_ROWS; ++i)
+             sample.add(rows.get(i).toArray(new String[0]));
+          int[] widths = sampleWidths(header, sample);
+          if (!rows.isEmpty()) appendRow(header, widths);
+          for (int i = 0; i < rows.size(); ++i) {
+             appendRow(rows.get(i).toArray(new String[0]), widths);
+             if ((i + 1) % PAGE_ROWS == 0 && i + 1 < rows.size()) {
+                flush();
+                if (interactive && !more()) return i + 1;
+             }
+             else if (page.length() >= 60 * 1024) flush();
+          }
+          flush();
+          return rows.size();
+       }
+
+       static int[] sampleWidths(String[] header, List<String[]> rows) {
+          int[] widths = new int[header.length];
+          for (int i = 0; i < header.length; ++i) widths[i] = Math.min(MAX_WIDTH, header[i].length());
+          for (String[] row : rows)
+             for (int i = 0; i < row.length && i < widths.length; ++i)
+                widths[i] = Math.max(widths[i], Math.min(MAX_WIDTH, String.valueOf(row[i]).trim().length()));
+          return widths;
+       }
+
+       private void appendRow(String[] row, int[] widths) {
+          for (int i = 0; i < row.length; ++i) {
+             String value = String.valueOf(row[i]).trim();
+             page.append(value);
+             if (i < row.length - 1)
+                for (int pad = value.length(); pad <= widths[i]; ++pad) page.append(' ');
+          }
+          page.append('\n');
+       }
+
+       private void flush() {
+          System.out.print(page);
+          System.out.flush();
+          page.setLength(0);
+       }
+
+       private static boolean more() {
+          System.out.print("-- Enter for more, q to stop --");
+          try{
+             String answer = in.readLine();
+             return answer != null && !answer.trim().equalsIgnoreCase("q");
+          }catch (IOException e){
+             return false;
+          }
+       }
+    }//end ConsoleRenderer
+
+    /**
+     * Bulk export of a table or filtered query to a file. CSV goes through
+     * the COPY-out protocol straight into a FileChannel when the JDBC
+     * driver offers it (PgJDBC's CopyManager, looked up reflectively so the
+     * bundled 7.3 driver still compiles and runs). Otherwise rows are
+     * streamed with a cursor and encoded into a reusable buffer.
+     *
+     * The binary columnar format is "GRC1", the column count and names,
+     * then blocks of up to BLOCK_ROWS rows. Each block is the row count
+     * followed by one segment per column: every value's length (-1 for
+     * NULL), then all of the column's UTF-8 bytes.
+     *
+     * With parts > 1 the query is split into key ranges of equal row count
+     * (ntile over the key column), each exported on its own connection to
+     * file.partN; rows without a key go with the first part. The parts all
+     * read the snapshot exported by the connection that split the ranges
+     * (pg_export_snapshot), so together they are the result of one query
+     * whatever is written meanwhile. When sharded, every shard is split and
+     * exported that way, its parts numbered on after the previous shard's;
+     * shards are separate servers, so each has a snapshot of its own.
+     */
+    static class BulkExporter {
+       static final int BLOCK_ROWS = 4096;
+       static final int FETCH_ROWS = 10000;
+       static final int BUFFER_BYTES = 1 << 20;
+
+       private final GameRental esql;
+       private final boolean columnar;
+       private final boolean gzip;
+
+       BulkExporter(GameRental esql, boolean columnar, boolean gzip) {
+          this.esql = esql;
+          this.columnar = columnar;
+          this.gzip = gzip;
+       }
+
+       /**
+        * Exports query (a SELECT without trailing semicolon) to path, split
+        * into parts key ranges of keyColumn on every shard.
+        *
+        * @return the number of rows written
+        */
+       long export(String query, String keyColumn, String path, int parts) throws Exception {
+          List<Connection> sources = esql.isSharded() ? esql._shards : Collections.singletonList(esql._connection);
+          if (parts <= 1 && sources.size() == 1) return exportPart(esql._connection, query, path);
+
+          ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parts) * sources.size());
+          List<Connection> snapshots = new ArrayList<Connection>();
+          try{
+             List<Future<Long>> results = new ArrayList<Future<Long>>();
+             for (Connection source : sources) {
+                Connection snapshot = esql.openConnection(source);
+                snapshots.add(snapshot);
+                String id = exportSnapshot(snapshot);
+                for (String range : ranges(snapshot, query, keyColumn, parts)) {
+                   String part = String.format("SELECT * FROM (%s) s WHERE %s", query, range);
+                   String file = path + ".part" + results.size();
+                   results.add(pool.submit(() -> {
+                      Connection connection = esql.openConnection(source);
+                      try{
+                         importSnapshot(connection, id);
+                         long rows = exportPart(connection, part, file);
+                         connection.commit();
+                         return rows;
+                      }finally{
+                         connection.close();
+                      }
+                   }));
+                }
+             }
+             long rows = 0;
+             for (Future<Long> result : results) rows += result.get();
+             return rows;
+          }finally{
+             pool.shutdown();
+             for (Connection snapshot : snapshots) {
+                try{
+                   snapshot.rollback();
+                   snapshot.close();
+                }catch (SQLException e){
+                   // the snapshot goes with the connection
+                }
+             }
+          }
+       }
+
+       /**
+        * Exports query as read on connection alone, such as one shard, in
+        * the transaction it has open if any.
+        *
+        * @return the number of rows written
+        */
+       long export(Connection connection, String query, String path) throws Exception {
+          return exportPart(connection, query, path);
+       }
+
+       /**
+        * Opens a repeatable-read transaction on connection and exports its
+        * snapshot, which stays valid while the transaction is open.
+        *
+        * @return the snapshot's ID
+        */
+       static String exportSnapshot(Connection connection) throws SQLException {
+          connection.setAutoCommit(false);
+          try (Statement stmt = connection.createStatement()) {
+             stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ;");
+             ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot();");
+             rs.next();
+             return rs.getString(1);
+          }
+       }
+
+       /**
+        * Opens a repeatable-read transaction on connection that reads the
+        * exported snapshot id.
+        */
+       static void importSnapshot(Connection connection, String id) throws SQLException {
+          connection.setAutoCommit(false);
+          try (Statement stmt = connection.createStatement()) {
+             stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ;");
+             stmt.execute(String.format("SET TRANSACTION SNAPSHOT '%s';", id));
+          }
+       }
+
+       /**
+        * Splits query into at most parts ranges of keyColumn with about as
+        * many rows each, read on connection. The first range also takes the
+        * rows whose key is NULL, which no comparison matches.
+        */
+       static List<String> ranges(Connection connection, String query, String keyColumn, int parts) throws SQLException {
+          if (parts <= 1) return Collections.singletonList("TRUE");
+          List<String> bounds = new ArrayList<String>();
+          try (Statement stmt = connection.createStatement()) {
+             ResultSet rs = stmt.executeQuery(String.format(
+                "SELECT MAX(k) FROM (SELECT %1$s AS k, NTILE(%2$d) OVER (ORDER BY %1$s) AS t FROM (%3$s) s WHERE %1$s IS NOT NULL) x GROUP BY t ORDER BY t;",
+                keyColumn, parts, query));
+             while (rs.next()) bounds.add(rs.getString(1).replace("'", "''"));
+          }
+          List<String> ranges = new ArrayList<String>();
+          if (bounds.isEmpty()) {
+             ranges.add("TRUE");
+             return ranges;
+          }
+          for (int i = 0; i < bounds.size(); ++i)
+             ranges.add(i == 0
+                ? String.format("(%1$s <= '%2$s' OR %1$s IS NULL)", keyColumn, bounds.get(i))
+                : String.format("%1$s > '%2$s' AND %1$s <= '%3$s'", keyColumn, bounds.get(i - 1), bounds.get(i)));
+          return ranges;
+       }
+
+       private long exportPart(Connection connection, String query, String path) throws Exception {
+          try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+             OutputStream out = Channels.newOutputStream(channel);
+             if (gzip) out = new GZIPOutputStream(out, BUFFER_BYTES);
+             try{
+                if (!columnar) {
+                   long copied = copyOut(connection, query, out);
+                   if (copied >= 0) return copied;
+                }
+                return stream(connection, query, channel, out);
+             }finally{
+                out.close();
+             }
+          }
+       }
+
+       /**
+        * Runs COPY (query) TO STDOUT through the driver's CopyManager.
+        *
+        * @return rows copied, or -1 if the driver has no COPY support
+        */
+       private long copyOut(Connection connection, String query, OutputStream out) throws SQLException {
+          Object copyApi;
+          try{
+             Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+             copyApi = pgConnection.getMethod("getCopyAPI").invoke(driverConnection(connection, pgConnection));
+          }catch (Throwable e){
+             return -1;
+          }
+          try{
+             Object rows = copyApi.getClass().getMethod("copyOut", String.class, OutputStream.class)
+                .invoke(copyApi, "COPY (" + query + ") TO STDOUT WITH CSV HEADER", out);
+             return ((Number)rows).longValue();
+          }catch (java.lang.reflect.InvocationTargetException e){
+             if (e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+             throw new SQLException(e.getCause());
+          }catch (ReflectiveOperationException e){
+             return -1;
+          }
+       }
+
+       /**
+        * Streams the rows with a server-side cursor (a fetch size inside a
+        * transaction) and encodes them in the chosen format. A transaction
+        * the caller has open is used and left open; otherwise one is opened
+        * for the cursor and ended here.
+        */
+       private long stream(Connection connection, String query, FileChannel channel, OutputStream out) throws Exception {
+          boolean autoCommit = connection.getAutoCommit();
+          if (autoCommit) connection.setAutoCommit(false);
+          try (Statement stmt = connection.createStatement()) {
+             stmt.setFetchSize(FETCH_ROWS);
+             ResultSet rs = stmt.executeQuery(query);
+             ResultSetMetaData rsmd = rs.getMetaData();
+             int numCol = rsmd.getColumnCount();
+             Sink sink = new Sink(channel, out);
+             long rows = columnar ? writeColumnar(rs, rsmd, numCol, sink) : writeCsv(rs, rsmd, numCol, sink);
+             sink.flush();
+             return rows;
+          }finally{
+             if (autoCommit) {
+                connection.commit();
+                connection.setAutoCommit(true);
+             }
+          }
+       }
+
+       private long writeCsv(ResultSet rs, ResultSetMetaData rsmd, int numCol, Sink sink) throws Exception {
+          for (int i = 1; i <= numCol; ++i) {
+             if (i > 1) sink.put((byte)',');
+             sink.put(csvField(rsmd.getColumnName(i)));
+          }
+          sink.put((byte)'\n');
+          long rows = 0;
+          while (rs.next()) {
+             for (int i = 1; i <= numCol; ++i) {
+                if (i > 1) sink.put((byte)',');
+                String value = rs.getString(i);
+                if (value != null) sink.put(csvField(value));
+             }
+             sink.put((byte)'\n');
+             ++rows;
+          }
+          return rows;
+       }
+
+       // quotes a value the way COPY ... CSV does: only when needed, and "" for empty strings
+       static byte[] csvField(String value) {
+          boolean quote = value.isEmpty();
+          for (int i = 0; i < value.length() && !quote; ++i) {
+             char c = value.charAt(i);
+             quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+          }
+          String field = quote ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+          return field.getBytes(StandardCharsets.UTF_8);
+       }
+
+       private long writeColumnar(ResultSet rs, ResultSetMetaData rsmd, int numCol, Sink sink) throws Exception {
+          sink.put("GRC1".getBytes(StandardCharsets.US_ASCII));
+          sink.putInt(numCol);
+          for (int i = 1; i <= numCol; ++i) {
+             byte[] name = rsmd.getColumnName(i).getBytes(StandardCharsets.UTF_8);
+             sink.putInt(name.length);
+             sink.put(name);
+          }
+          byte[][][] block = new byte[numCol][BLOCK_ROWS][];
+          long rows = 0;
+          int inBlock = 0;
+          while (rs.next()) {
+             for (int i = 0; i < numCol; ++i) {
+                String value = rs.getString(i + 1);
+                block[i][inBlock] = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+             }
+             ++rows;
+             if (++inBlock == BLOCK_ROWS) {
+                writeBlock(block, inBlock, sink);
+                inBlock = 0;
+             }
+          }
+          if (inBlock > 0) writeBlock(block, inBlock, sink);
+          return rows;
+       }
+
+       private static void writeBlock(byte[][][] block, int rows, Sink sink) throws IOException {
+          sink.putInt(rows);
+          for (byte[][] column : block) {
+             for (int r = 0; r < rows; ++r)
+                sink.putInt(column[r] == null ? -1 : column[r].length);
+             for (int r = 0; r < rows; ++r)
+                if (column[r] != null) sink.put(column[r]);
+          }
+       }
+
+       /**
+        * Write buffer in front of the file. Without gzip it goes straight to
+        * the channel; with gzip it goes through the compressing stream.
+        */
+       private class Sink {
+          final FileChannel channel;
+          final OutputStream out;
+          final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+
+          Sink(FileChannel channel, OutputStream out) {
+             this.channel = channel;
+             this.out = out;
+          }
+
+          void put(byte b) throws IOException {
+             if (!buffer.hasRemaining()) flush();
+             buffer.put(b);
+          }
+
+          void putInt(int v) throws IOException {
+             if (buffer.remaining() < 4) flush();
+             buffer.putInt(v);
+          }
+
+          void put(byte[] bytes) throws IOException {
+             if (bytes.length > buffer.remaining()) flush();
+             if (bytes.length > buffer.capacity()) {
+                write(ByteBuffer.wrap(bytes));
+                return;
+             }
+             buffer.put(bytes);
+          }
+
+          void flush() throws IOException {
+             buffer.flip();
+             write(buffer);
+             buffer.clear();
+          }
+
+          private void write(ByteBuffer bytes) throws IOException {
+             if (gzip) {
+                out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                bytes.position(bytes.limit());
+             }
+             else {
+                while (bytes.hasRemaining()) channel.write(bytes);
+             }
+          }
+       }
+    }//end BulkExporter
+
+    /**
+     * Bulk upsert of games from a CSV file laid out like data/catalog.csv
+     * (a header, then gameID, gameName, genre, price, description,
+     * imageURL). The file is staged into a temporary table, through COPY
+     * FROM STDIN when the driver offers it and multi-row INSERTs of
+     * STAGE_ROWS otherwise, then merged in one transaction: new games are
+     * inserted with an empty Inventory row, games whose columns differ are
+     * updated and identical ones are left alone. When a gameID appears more
+     * than once, its last line wins. When sharded, every shard stages and
+     * merges as part of one onAllShards transaction.
+     */
+    static class CatalogImporter {
+       static final int STAGE_ROWS = 1000;
+
+       private final GameRental esql;
+       private String table;
+
+       CatalogImporter(GameRental esql) {
+          this.esql = esql;
+       }
+
+       /**
+        * @return the number of games staged from the file
+        */
+       long load(String path, String worker) throws SQLException, IOException {
+          if (esql.isSharded()) {
+             // PREPARE TRANSACTION refuses temporary tables, so the shards stage into a table of this import's own
+             table = "Catalog_import_" + Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+             long[] staged = {0};
+             esql.<IOException>onAllShards(shard -> {
+                esql.executeUpdate(String.format("CREATE UNLOGGED TABLE %s (LIKE Catalog, line bigserial);", table));
+                staged[0] = stageAndMerge(shard, path, worker);
+                esql.executeUpdate(String.format("DROP TABLE %s;", table));
+             });
+             return staged[0];
+          }
+          table = "Catalog_import";
+          Connection connection = esql._connection;
+          boolean autoCommit = connection.getAutoCommit();
+          connection.setAutoCommit(false);
+          try{
+             esql.executeUpdate("CREATE TEMP TABLE Catalog_import (LIKE Catalog, line bigserial) ON COMMIT DROP;");
+             long staged = stageAndMerge(connection, path, worker);
+             esql.commit();
+             return staged;
+          }catch (SQLException | IOException e){
+             esql.rollback();
+             throw e;
+          }finally{
+             connection.setAutoCommit(autoCommit);
+          }
+       }
+
+       private long stageAndMerge(Connection connection, String path, String worker) throws SQLException, IOException {
+          long staged = copyIn(connection, path);
+          if (staged < 0) staged = insertIn(path);
+          merge(worker);
+          return staged;
+       }
+
+       private void merge(String worker) throws SQLException {
+          String latest = "SELECT DISTINCT ON (gameID) gameID, gameName, genre, price, description, imageURL FROM " + table + " ORDER BY gameID, line DESC";
+          esql.executeUpdate("INSERT INTO Catalog (gameID, gameName, genre, price, description, imageURL) " + latest +
+             " ON CONFLICT (gameID) DO UPDATE SET gameName = EXCLUDED.gameName, genre = EXCLUDED.genre, price = EXCLUDED.price," +
+             " description = EXCLUDED.description, imageURL = EXCLUDED.imageURL" +
+             " WHERE (Catalog.gameName, Catalog.genre, Catalog.price, Catalog.description, Catalog.imageURL)" +
+             " IS DISTINCT FROM (EXCLUDED.gameName, EXCLUDED.genre, EXCLUDED.price, EXCLUDED.description, EXCLUDED.imageURL);");
+          esql.executeUpdate("INSERT INTO Inventory (gameID, onHand) SELECT DISTINCT gameID, 0 FROM " + table + " ON CONFLICT DO NOTHING;");
+          esql.executeUpdate(String.format("INSERT INTO Worker_Catalog_updates (login, gameID) SELECT DISTINCT U.login, I.gameID FROM Users U, %s I WHERE U.login = '%s' ON CONFLICT DO NOTHING;", table, worker.trim()));
+       }
+
+       /**
+        * Streams the file through the driver's CopyManager.
+        *
+        * @return rows copied, or -1 if the driver has no COPY support
+        */
+       private long copyIn(Connection connection, String path) throws SQLException, IOException {
+          Object copyApi;
+          try{
+             Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+             copyApi = pgConnection.getMethod("getCopyAPI").invoke(driverConnection(connection, pgConnection));
+          }catch (Throwable e){
+             return -1;
+          }
+          try (Reader file = new BufferedReader(new FileReader(path))) {
+             Object rows = copyApi.getClass().getMethod("copyIn", String.class, Reader.class)
+                .invoke(copyApi, "COPY " + table + " (gameID, gameName, genre, price, description, imageURL) FROM STDIN WITH CSV HEADER", file);
+             return ((Number)rows).longValue();
+          }catch (java.lang.reflect.InvocationTargetException e){
+             if (e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+             throw new SQLException(e.getCause());
+          }catch (ReflectiveOperationException e){
+             return -1;
+          }
+       }
+
+       /**
+        * Parses the file and stages it with multi-row INSERTs.
+        */
+       private long insertIn(String path) throws SQLException, IOException {
+          long rows = 0;
+          try (BufferedReader file = new BufferedReader(new FileReader(path))) {
+             readCsvRecord(file); // header
+             StringBuilder values = new StringBuilder();
+             int pending = 0;
+             List<String> record;
+             while ((record = readCsvRecord(file)) != null) {
+                if (record.size() == 1 && record.get(0).isEmpty()) continue;
+                if (record.size() != 6)
+                   throw new IOException(String.format("record %d has %d fields, expected 6", rows + 1, record.size()));
+                values.append(pending == 0 ? "" : ",").append('(');
+                for (int i = 0; i < 6; ++i) {
+                   String field = record.get(i).replace("'", "''");
+                   values.append(i == 0 ? "" : ", ").append('\'').append(field).append('\'');
+                }
+                values.append(')');
+                ++rows;
+                if (++pending == STAGE_ROWS) {
+                   stage(values);
+                   pending = 0;
+                }
+             }
+             if (pending > 0) stage(values);
+          }
+          return rows;
+       }
+
+       private void stage(StringBuilder values) throws SQLException {
+          esql.executeUpdate("INSERT INTO " + table + " (gameID, gameName, genre, price, description, imageURL) VALUES " + values + ";");
+          values.setLength(0);
+       }
+
+       /**
+        * Reads one CSV record, following quoted fields across line breaks.
+        *
+        * @return the fields, or null at the end of the file
+        */
+       static List<String> readCsvRecord(BufferedReader in) throws IOException {
+          String line = in.readLine();
+          if (line == null) return null;
+          List<String> fields = new ArrayList<String>();
+          StringBuilder field = new StringBuilder();
+          boolean quoted = false;
+          for (int i = 0; ; ++i) {
+             if (i == line.length()) {
+                if (!quoted) break;
+                // a quoted field spans lines
+                String next = in.readLine();
+                if (next == null) break;
+                field.append('\n');
+                line = next;
+                i = -1;
+                continue;
+             }
+             char c = line.charAt(i);
+             if (quoted) {
+                if (c != '"') field.append(c);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"') field.append(line.charAt(++i));
+                else quoted = false;
+             }
+             else if (c == '"') quoted = true;
+             else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+             }
+             else field.append(c);
+          }
+          fields.add(field.toString());
+          return fields;
+       }
+    }//end CatalogImporter
+
+    /**
+     * An order as customer support sees it: the RentalOrder header, its line
+     * items with the games' names and genres, and the current state of its
+     * shipments from TrackingLatest.
+     */
+    static class OrderDetail {
+       static final String[] LINE_HEADER = {"gameid", "gamename", "genre", "unitsordered"};
+       static final String[] SHIPMENT_HEADER = {"trackingid", "status", "currentlocation", "couriername", "lastupdatedate"};
+
+       final String rentalOrderID;
+       final String login;
+       final int noOfGames;
+       final BigDecimal totalPrice;
+       final Timestamp orderTimestamp;
+       final Timestamp dueDate;
+       final List<List<String>> lines = new ArrayList<List<String>>();
+       final List<List<String>> shipments = new ArrayList<List<String>>();
+
+       OrderDetail(List<String> row) {
+          this.rentalOrderID = row.get(0).trim();
+          this.login = row.get(1).trim();
+          this.noOfGames = Integer.parseInt(row.get(2).trim());
+          this.totalPrice = new BigDecimal(row.get(3).trim());
+          this.orderTimestamp = Timestamp.valueOf(row.get(4).trim());
+          this.dueDate = Timestamp.valueOf(row.get(5).trim());
+       }
+
+       /**
+        * Builds the order from the rows of GameRental.ORDER_DETAIL, one per
+        * (line item, shipment) pair.
+        *
+        * @return null when there are no rows
+        */
+       static OrderDetail of(List<List<String>> rows) {
+          if (rows.isEmpty()) return null;
+          OrderDetail order = new OrderDetail(rows.get(0));
+          Map<String, List<String>> lines = new LinkedHashMap<String, List<String>>();
+          Map<String, List<String>> shipments = new LinkedHashMap<String, List<String>>();
+          for (List<String> row : rows) {
+             if (row.get(6) != null && !lines.containsKey(row.get(6)))
+                lines.put(row.get(6), new ArrayList<String>(row.subList(6, 10)));
+             if (row.get(10) != null && !shipments.containsKey(row.get(10)))
+                shipments.put(row.get(10), new ArrayList<String>(row.subList(10, 15)));
+          }
+          order.lines.addAll(lines.values());
+          order.shipments.addAll(shipments.values());
+          return order;
+       }
+
+       /**
+        * An order is complete once every shipment is delivered or returned;
+        * after that nothing about it changes.
+        */
+       boolean isComplete() {
+          if (shipments.isEmpty()) return false;
+          for (List<String> shipment : shipments) {
+             String status = shipment.get(1);
+             if (status == null || !(isReturned(status) || status.trim().equalsIgnoreCase("Delivered"))) return false;
+          }
+          return true;
+       }
+
+       boolean ships(String trackingID) {
+          for (List<String> shipment : shipments)
+             if (shipment.get(0).trim().equals(trackingID)) return true;
+          return false;
+       }
+
+       void print(ConsoleRenderer renderer) {
+          System.out.println(String.format("Order %s for %s: %d games, total %s", rentalOrderID, login, noOfGames, totalPrice.toPlainString()));
+          System.out.println(String.format("Ordered %s, due %s", orderTimestamp, dueDate));
+          renderer.render(LINE_HEADER, lines);
+          renderer.render(SHIPMENT_HEADER, shipments);
+       }
+    }//end OrderDetail
+
+    /**
+     * Least-recently-used cache of complete orders, bounded to
+     * gamerental.orderCache entries (default 1024).
+     */
+    static class OrderDetailCache {
+       private final int capacity = Integer.getInteger("gamerental.orderCache", 1024);
+       // in access order, so the first entry is the least recently used
+       private final LinkedHashMap<String, OrderDetail> orders = new LinkedHashMap<String, OrderDetail>(16, 0.75f, true);
+
+       synchronized OrderDetail lookup(String rentalOrderID) {
+          return orders.get(rentalOrderID);
+       }
+
+       synchronized void offer(OrderDetail order) {
+          if (!order.isComplete()) return;
+          orders.put(order.rentalOrderID, order);
+          if (orders.size() > capacity) {
+             Iterator<OrderDetail> eldest = orders.values().iterator();
+             eldest.next();
+             eldest.remove();
+          }
+       }
+
+       /**
+        * Drops the orders placed by login.
+        */
+       synchronized void invalidateLogin(String login) {
+          orders.values().removeIf(order -> order.login.equals(login));
+       }
+
+       /**
+        * Drops the orders shipped under any of trackingIDs.
+        */
+       synchronized void invalidate(List<String> trackingIDs) {
+          for (Iterator<OrderDetail> cached = orders.values().iterator(); cached.hasNext(); ) {
+             OrderDetail order = cached.next();
+             for (String trackingID : trackingIDs)
+                if (order.ships(trackingID)) {
+                   cached.remove();
+                   break;
+                }
+          }
+       }
+
+       synchronized void clear() {
+          orders.clear();
+       }
+    }//end OrderDetailCache
+
+    /**
+     * Results of read-only queries, keyed by query template and the
+     * parameters bound into it. A template is registered with a time to
+     * live (gamerental.resultCache.ttl.NAME seconds overrides its default)
+     * and the tables it reads; a write to one of those tables, through
+     * executeUpdate or announced by another instance, drops the template's
+     * entries. A write also drops what the database changes in other tables
+     * for it, by a cascading foreign key or a trigger (see CASCADES), so
+     * deleting a user drops the cached orders and tracking too. Entries are
+     * evicted least recently used once there are more than
+     * gamerental.resultCache.entries (default 1024) of them or their
+     * estimated size passes gamerental.resultCache.kb (default 4096).
+     * Concurrent misses on the same key run the query once and share its
+     * result.
+     */
+    static class ResultCache {
+       // tables named after these keywords are the ones a statement writes
+       private static final Pattern WRITTEN_TABLE = Pattern.compile(
+          "(?i)\\b(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?|ALTER\\s+TABLE|DROP\\s+TABLE(?:\\s+IF\\s+EXISTS)?|COPY)\\s+(?:ONLY\\s+)?\"?(\\w+)");
+
+       // a table, then the tables a write to it can change through ON DELETE or
+       // ON UPDATE CASCADE and the triggers of create_tables.sql
+       static final String[][] CASCADES = {
+          {"Users", "RentalOrder", "UserFavGames", "Customer", "Worker", "User_Catalog_views",
+             "Worker_User_updates", "Worker_Catalog_updates", "Worker_TrackingInfo_updates", "Worker_RentalOrder_updates"},
+          {"Worker", "Worker_User_updates"},
+          {"Catalog", "GamesInOrder", "Inventory", "UserFavGames", "User_Catalog_views", "Worker_Catalog_updates", "Catalog_changes"},
+          {"RentalOrder", "TrackingInfo", "GamesInOrder", "RentalOrderDeletes"},
+          {"TrackingInfo", "TrackingEvent", "TrackingLatest"},
+          {"TrackingEvent", "TrackingLatest"}};
+
+       interface Loader {
+          List<List<String>> load(String sql) throws SQLException;
+       }
+
+       static final class Template {
+          final String name;
+          final String sql;
+          final long ttlNanos;
+          final Set<String> tables = new HashSet<String>();
+          final LongAdder hits = new LongAdder();
+          final LongAdder misses = new LongAdder();
+          final LongAdder shared = new LongAdder();
+
+          /**
+           * @param sql the query, with String.format placeholders for the parameters
+           * @param tables every table the query reads, including those maintained by triggers
+           */
+          Template(String name, String sql, long ttlSeconds, String... tables) {
+             this.name = name;
+             this.sql = sql;
+             this.ttlNanos = Long.getLong("gamerental.resultCache.ttl." + name, ttlSeconds) * 1000000000L;
+             for (String table : tables) this.tables.add(table.toLowerCase());
+          }
+       }
+
+       private static final class Entry {
+          final Template template;
+          final List<List<String>> rows;
+          final long weight;
+          final long expires;
+
+          Entry(Template template, List<List<String>> rows, long weight) {
+             this.template = template;
+             this.rows = rows;
+             this.weight = weight;
+             this.expires = System.nanoTime() + template.ttlNanos;
+          }
+       }
+
+       private final int maxEntries = Integer.getInteger("gamerental.resultCache.entries", 1024);
+       private final long maxWeight = Long.getLong("gamerental.resultCache.kb", 4096) * 1024;
+
+       // guarded by this, least recently used first
+       private final LinkedHashMap<List<String>, Entry> entries = new LinkedHashMap<List<String>, Entry>(16, 0.75f, true);
+       private long weight = 0;
+       // bumped by every invalidation; a load started before a table's last one is not stored
+       private long generation = 0;
+       private long clearedAt = 0;
+       private final Map<String, Long> invalidatedAt = new HashMap<String, Long>();
+       // tables some template reads; writes to others are not tracked
+       private final Set<String> readTables = ConcurrentHashMap.newKeySet();
+
+       private final ConcurrentHashMap<List<String>, CompletableFuture<List<List<String>>>> loading =
+          new ConcurrentHashMap<List<String>, CompletableFuture<List<List<String>>>>();
+       private final LongAdder evictions = new LongAdder();
+       private final Set<Template> templates = ConcurrentHashMap.newKeySet();
+
+       /**
+        * The rows of template with params bound, from the cache or from
+        * loader. The rows returned must not be modified. Concurrent misses
+        * all get the one list loaded; when that is a SpilledResult read back
+        * from disk it is not cached, but is still shared by every waiter,
+        * which is safe as a filled SpilledResult may be read from any number
+        * of threads.
+        */
+       List<List<String>> get(Template template, Object[] params, Loader loader) throws SQLException {
+          List<String> key = new ArrayList<String>(params.length + 1);
+          key.add(template.name);
+          for (Object param : params) key.add(String.valueOf(param));
+          if (templates.add(template)) readTables.addAll(template.tables);
+          long started;
+          synchronized (this) {
+             Entry entry = entries.get(key);
+             if (entry != null && entry.expires - System.nanoTime() > 0) {
+                template.hits.increment();
+                return entry.rows;
+             }
+             if (entry != null) remove(key);
+             started = generation;
+          }
+          CompletableFuture<List<List<String>>> mine = new CompletableFuture<List<List<String>>>();
+          CompletableFuture<List<List<String>>> running = loading.putIfAbsent(key, mine);
+          if (running != null) {
+             template.shared.increment();
+             return await(running);
+          }
+          template.misses.increment();
+          try{
+             List<List<String>> rows = store(template, key, loader.load(String.format(template.sql, params)), started);
+             mine.complete(rows);
+             return rows;
+          }catch (SQLException | RuntimeException e){
+             mine.completeExceptionally(e);
+             throw e;
+          }finally{
+             loading.remove(key, mine);
+          }
+       }
+
+       private static List<List<String>> await(CompletableFuture<List<List<String>>> running) throws SQLException {
+          try{
+             return running.get();
+          }catch (InterruptedException e){
+             Thread.currentThread().interrupt();
+             throw new SQLException("Interrupted waiting for a shared query");
+          }catch (ExecutionException e){
+             if (e.getCause() instanceof SQLException) {
+                SQLException cause = (SQLException)e.getCause();
+                throw new SQLException(cause.getMessage(), cause.getSQLState(), cause);
+             }
+             throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+          }
+       }
+
+       /**
+        * Keeps a loaded result unless a table it reads was written while it
+        * loaded, or it is too large to be worth the space (spilled to disk,
+        * or over an eighth of the budget).
+        */
+       private List<List<String>> store(Template template, List<String> key, List<List<String>> rows, long started) {
+          if (rows instanceof SpilledResult && ((SpilledResult)rows).spilledBytes() > 0) return rows;
+          long size = 64;
+          List<List<String>> copy = new ArrayList<List<String>>(rows.size());
+          for (List<String> row : rows) {
+             size += 48;
+             for (String value : row) size += value == null ? 8 : 48 + 2L * value.length();
+             copy.add(Collections.unmodifiableList(row));
+             if (size > maxWeight / 8) return rows;
+          }
+          copy = Collections.unmodifiableList(copy);
+          synchronized (this) {
+             if (started < clearedAt) return copy;
+             for (String table : template.tables)
+                if (invalidatedAt.getOrDefault(table, -1L) > started) return copy;
+             remove(key);
+             entries.put(key, new Entry(template, copy, size));
+             weight += size;
+             for (Iterator<Entry> eldest = entries.values().iterator();
+                   eldest.hasNext() && (entries.size() > maxEntries || weight > maxWeight); ) {
+                weight -= eldest.next().weight;
+                eldest.remove();
+                evictions.increment();
+             }
+          }
+          return copy;
+       }
+
+       private void remove(List<String> key) {
+          Entry entry = entries.remove(key);
+          if (entry != null) weight -= entry.weight;
+       }
+
+       /**
+        * Drops the entries of every template that reads table, or a table
+        * a write to it cascades to.
+        */
+       synchronized void invalidate(String table) {
+          List<String> tables = new ArrayList<String>();
+          tables.add(table.toLowerCase());
+          for (int i = 0; i < tables.size(); ++i)
+             for (String[] cascade : CASCADES)
+                if (cascade[0].equalsIgnoreCase(tables.get(i)))
+                   for (int j = 1; j < cascade.length; ++j)
+                      if (!tables.contains(cascade[j].toLowerCase())) tables.add(cascade[j].toLowerCase());
+          long at = ++generation;
+          boolean read = false;
+          for (String t : tables) {
+             invalidatedAt.put(t, at);
+             read |= readTables.contains(t);
+          }
+          if (!read) return;
+          for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+             Entry entry = it.next();
+             if (!Collections.disjoint(entry.template.tables, tables)) {
+                weight -= entry.weight;
+                it.remove();
+             }
+          }
+       }
+
+       /**
+        * Called after a write: drops what the tables it wrote could have
+        * changed.
+        */
+       void invalidateWrite(String sql) {
+          for (String table : written(sql)) invalidate(table);
+       }
+
+       /**
+        * @return the tables a statement writes
+        */
+       static Set<String> written(String sql) {
+          Set<String> tables = new HashSet<String>();
+          Matcher written = WRITTEN_TABLE.matcher(sql);
+          while (written.find()) tables.add(written.group(1));
+          return tables;
+       }
+
+       synchronized void clear() {
+          clearedAt = ++generation;
+          entries.clear();
+          weight = 0;
+       }
+
+       synchronized String report() {
+          StringBuilder out = new StringBuilder(String.format("%-8s %-8s %-8s %s%n", "hits", "misses", "shared", "cached query"));
+          for (Template t : templates)
+             out.append(String.format("%-8d %-8d %-8d %s%n", t.hits.sum(), t.misses.sum(), t.shared.sum(), t.name));
+          out.append(String.format("%d entries, %d kb, %d evicted%n", entries.size(), weight / 1024, evictions.sum()));
+          return out.toString();
+       }
+    }//end ResultCache
+
+    /**
+     * Cold storage for closed orders. The archival job moves orders placed
+     * before January 1st, N years back, whose shipments are all delivered
+     * or returned, into gzipped CSV files in gamerental.archiveDir (default
+     * "archive"): one file per table, year and run, e.g.
+     * rentalorder-2014-1718000000000.csv.gz. Tracking rows are archived
+     * with their latest state. The files are written before the rows are
+     * deleted, so an interrupted run loses nothing; readers skip orders seen
+     * twice. A per-login index of archived years keeps the history views
+     * and order lookups to the files of years the user has orders in. The
+     * files never change once written, so each one read is kept decoded,
+     * grouped by login or rentalOrderID, until more than
+     * gamerental.archive.cachedRecords (default 200000) records are kept;
+     * then the least recently used files are dropped.
+     */
+    static class OrderArchive {
+       static final String[] TABLES = {"RentalOrder", "GamesInOrder", "TrackingInfo"};
+
+       private final GameRental esql;
+       private final Path dir = Paths.get(System.getProperty("gamerental.archiveDir", "archive"));
+       // login -> years it has archived orders in, over the files in indexed
+       private final Map<String, SortedSet<Integer>> yearsByLogin = new HashMap<String, SortedSet<Integer>>();
+       private final Set<Path> indexed = new HashSet<Path>();
+       // decoded files, least recently used first, and their records in all
+       private final LinkedHashMap<Path, Run> decoded = new LinkedHashMap<Path, Run>(16, 0.75f, true);
+       private long decodedRecords = 0;
+       private final long maxDecodedRecords = Long.getLong("gamerental.archive.cachedRecords", 200000);
+
+       /**
+        * The records of one file, by the column lookups go through.
+        */
+       private static final class Run {
+          final Map<String, List<List<String>>> byKey = new HashMap<String, List<List<String>>>();
+          int records = 0;
+       }
+
+       OrderArchive(GameRental esql) {
+          this.esql = esql;
+       }
+
+       /**
+        * @return the number of orders archived
+        */
+       long archive(int years) throws Exception {
+          Files.createDirectories(dir);
+          List<Connection> databases = esql.isSharded() ? esql._shards : Collections.singletonList(esql._connection);
+          Connection current = esql._connection;
+          long archived = 0;
+          try{
+             for (int shard = 0; shard < databases.size(); ++shard) {
+                esql._connection = databases.get(shard);
+                esql.executeUpdate("DROP TABLE IF EXISTS Archiving;");
+                esql.executeUpdate(String.format(
+                   "CREATE TEMP TABLE Archiving AS SELECT R.rentalOrderID, R.orderTimestamp FROM RentalOrder R " +
+                   "WHERE R.orderTimestamp < date_trunc('year', CURRENT_DATE) - interval '%d years' " +
+                   "AND NOT EXISTS (SELECT 1 FROM TrackingInfo T, TrackingLatest L " +
+                   "WHERE T.rentalOrderID = R.rentalOrderID AND T.orderTimestamp = R.orderTimestamp AND L.trackingID = T.trackingID " +
+                   "AND NOT (L.status = 'Delivered' OR L.status LIKE 'Returned%%'));", years));
+                String run = System.currentTimeMillis() + (esql.isSharded() ? "s" + shard : "");
+                // Archiving only exists on the primary, so it is never read through a replica
+                for (String year : column("SELECT DISTINCT EXTRACT(YEAR FROM orderTimestamp)::integer FROM Archiving;"))
+                   write(Integer.parseInt(year.trim()), run);
+                archived += Long.parseLong(column("SELECT COUNT(*) FROM Archiving;").get(0).trim());
+                // the children and tracking history go with the order
+                esql.executeUpdate("DELETE FROM RentalOrder R USING Archiving A WHERE R.rentalOrderID = A.rentalOrderID AND R.orderTimestamp = A.orderTimestamp;");
+                esql.executeUpdate("DROP TABLE Archiving;");
+             }
+          }finally{
+             esql._connection = current;
+          }
+          return archived;
+       }
+
+       private List<String> column(String query) throws SQLException {
+          List<String> values = new ArrayList<String>();
+          try (Statement stmt = esql._connection.createStatement()) {
+             ResultSet rs = stmt.executeQuery(query);
+             while (rs.next()) values.add(rs.getString(1));
+          }
+          return values;
+       }
+
+       private void write(int year, String run) throws Exception {
+          String range = String.format("X.orderTimestamp >= '%d-01-01' AND X.orderTimestamp < '%d-01-01'", year, year + 1);
+          String archiving = "JOIN Archiving A ON A.rentalOrderID = X.rentalOrderID AND A.orderTimestamp = X.orderTimestamp";
+          String[] queries = {
+             String.format("SELECT X.* FROM RentalOrder X %s WHERE %s", archiving, range),
+             String.format("SELECT X.* FROM GamesInOrder X %s WHERE %s", archiving, range),
+             String.format("SELECT X.trackingID, X.rentalOrderID, COALESCE(L.status, X.status) AS status, " +
+                "COALESCE(L.currentLocation, X.currentLocation) AS currentLocation, COALESCE(L.courierName, X.courierName) AS courierName, " +
+                "COALESCE(L.lastUpdateDate, X.lastUpdateDate) AS lastUpdateDate, X.additionalComments, X.orderTimestamp " +
+                "FROM TrackingInfo X %s LEFT JOIN TrackingLatest L ON L.trackingID = X.trackingID WHERE %s", archiving, range)};
+          for (int i = 0; i < TABLES.length; ++i) {
+             Path file = file(TABLES[i], year, run);
+             Path partial = Paths.get(file + ".tmp");
+             new BulkExporter(esql, false, true).export(esql._connection, queries[i], partial.toString());
+             Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+          }
+          logins(file(TABLES[0], year, run));
+       }
+
+       private Path file(String table, int year, String run) {
+          return dir.resolve(String.format("%s-%d-%s.csv.gz", table.toLowerCase(), year, run));
+       }
+
+       /**
+        * The years login has archived orders in, oldest first. Next to each
+        * rentalorder file is the sorted list of its logins (FILE.logins),
+        * written by the run or, for older runs, the first time the index
+        * meets the file, so the index is built without decompressing the
+        * archive and only new files are read.
+        */
+       synchronized SortedSet<Integer> years(String login) throws IOException {
+          if (Files.isDirectory(dir)) {
+             try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "rentalorder-*.csv.gz")) {
+                for (Path file : files) {
+                   if (indexed.contains(file)) continue;
+                   int year = Integer.parseInt(file.getFileName().toString().split("-")[1]);
+                   for (String archived : logins(file))
+                      yearsByLogin.computeIfAbsent(archived, k -> new TreeSet<Integer>()).add(year);
+                   indexed.add(file);
+                }
+             }
+          }
+          SortedSet<Integer> years = yearsByLogin.get(login.trim());
+          return years == null ? new TreeSet<Integer>() : new TreeSet<Integer>(years);
+       }
+
+       private static List<String> logins(Path file) throws IOException {
+          Path list = Paths.get(file + ".logins");
+          if (Files.exists(list)) return Files.readAllLines(list, StandardCharsets.UTF_8);
+          Set<String> logins = new TreeSet<String>();
+          try (BufferedReader in = open(file)) {
+             CatalogImporter.readCsvRecord(in); // header
+             List<String> r;
+             while ((r = CatalogImporter.readCsvRecord(in)) != null)
+                if (r.size() >= 6) logins.add(r.get(1).trim());
+          }
+          Path partial = Paths.get(list + ".tmp");
+          Files.write(partial, logins, StandardCharsets.UTF_8);
+          Files.move(partial, list, StandardCopyOption.ATOMIC_MOVE);
+          return new ArrayList<String>(logins);
+       }
+
+       private static BufferedReader open(Path file) throws IOException {
+          return new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8));
+       }
+
+       /**
+        * The records of every run's file for table and year whose key is
+        * key: the login for RentalOrder, the rentalOrderID for the others.
+        */
+       private List<List<String>> records(String table, int year, String key) throws IOException {
+          List<List<String>> records = new ArrayList<List<String>>();
+          if (!Files.isDirectory(dir)) return records;
+          try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, table.toLowerCase() + "-" + year + "-*.csv.gz")) {
+             for (Path file : files) {
+                List<List<String>> matching = run(file, table.equals("GamesInOrder") ? 0 : 1).byKey.get(key);
+                if (matching != null) records.addAll(matching);
+             }
+          }
+          return records;
+       }
+
+       /**
+        * A file decoded and grouped by column keyColumn, read the first time
+        * it is asked for.
+        */
+       private Run run(Path file, int keyColumn) throws IOException {
+          synchronized (decoded) {
+             Run run = decoded.get(file);
+             if (run != null) return run;
+          }
+          Run run = new Run();
+          try (BufferedReader in = open(file)) {
+             CatalogImporter.readCsvRecord(in); // header
+             List<String> r;
+             while ((r = CatalogImporter.readCsvRecord(in)) != null) {
+                if (r.size() <= keyColumn) continue;
+                run.byKey.computeIfAbsent(r.get(keyColumn).trim(), k -> new ArrayList<List<String>>()).add(r);
+                ++run.records;
+             }
+          }
+          synchronized (decoded) {
+             Run kept = decoded.putIfAbsent(file, run);
+             if (kept != null) return kept;
+             decodedRecords += run.records;
+             for (Iterator<Run> eldest = decoded.values().iterator(); decodedRecords > maxDecodedRecords && decoded.size() > 1; ) {
+                decodedRecords -= eldest.next().records;
+                eldest.remove();
+             }
+          }
+          return run;
+       }
+
+       /**
+        * Reads the archived orders of login placed in year as rentalOrderID,
+        * orderTimestamp, dueDate and totalPrice, newest first.
+        */
+       List<List<String>> orders(String login, int year) throws IOException {
+          Map<String, List<String>> orders = new HashMap<String, List<String>>();
+          for (List<String> r : records("RentalOrder", year, login.trim()))
+             if (r.size() >= 6)
+                orders.put(r.get(0), Arrays.asList(r.get(0), r.get(4), r.get(5), r.get(3)));
+          List<List<String>> newestFirst = new ArrayList<List<String>>(orders.values());
+          newestFirst.sort((a, b) -> b.get(1).compareTo(a.get(1)));
+          return newestFirst;
+       }
+
+       /**
+        * Reads an archived order of login with its line items and shipments,
+        * searching only the years login has archived orders in.
+        *
+        * @return the order, or null if login has no such archived order
+        */
+       OrderDetail order(String rentalOrderID, String login) throws IOException {
+          for (int year : years(login)) {
+             List<String> order = null;
+             for (List<String> r : records("RentalOrder", year, login.trim()))
+                if (r.size() >= 6 && r.get(0).trim().equals(rentalOrderID)) order = r.subList(0, 6);
+             if (order == null) continue;
+             // the same columns as ORDER_DETAIL: order, line item, shipment
+             CatalogStore.Game game = esql._catalog.store().cursor();
+             List<List<String>> lines = new ArrayList<List<String>>();
+             for (List<String> r : records("GamesInOrder", year, rentalOrderID))
+                if (r.size() >= 3) {
+                   boolean known = game.moveTo(r.get(1).trim());
+                   lines.add(Arrays.asList(r.get(1), known ? game.name() : null, known ? game.genre() : null, r.get(2)));
+                }
+             List<List<String>> shipments = new ArrayList<List<String>>();
+             for (List<String> r : records("TrackingInfo", year, rentalOrderID))
+                if (r.size() >= 6)
+                   shipments.add(Arrays.asList(r.get(0), r.get(2), r.get(3), r.get(4), r.get(5)));
+             if (lines.isEmpty()) lines.add(Arrays.asList((String)null, null, null, null));
+             if (shipments.isEmpty()) shipments.add(Arrays.asList((String)null, null, null, null, null));
+             List<List<String>> rows = new ArrayList<List<String>>();
+             for (List<String> line : lines)
+                for (List<String> shipment : shipments) {
+                   List<String> row = new ArrayList<String>(order);
+                   row.addAll(line);
+                   row.addAll(shipment);
+                   rows.add(row);
+                }
+             return OrderDetail.of(rows);
+          }
+          return null;
+       }
+    }//end OrderArchive
+
+    /**
+     * Keeps this instance's caches in step with writes made by other
+     * instances. Triggers on Catalog, TrackingEvent, Users and UserFavGames
+     * NOTIFY channel "gamerental_KIND" (KIND being c, t, u or f) with
+     * "kind:key" payloads. A daemon thread LISTENs on its own connection to every database and
+     * collects notifications until the channels have been quiet for
+     * gamerental.notify.coalesceMs (default 50), so a bulk write costs one
+     * invalidation.
+     *
+     * Order evictions are applied by the listener thread; anything that has
+     * to query the database (the catalog, a user's role) is flagged and
+     * applied by the session at its next action through applyInvalidations,
+     * so no cache is ever served past a change it has been told about. The
+     * server delivers every committed notification to a session that is
+     * listening, so only a reconnect means some may have been missed, and
+     * it triggers a full reload. A driver without payloads, such
+     * as pg73jdbc3, still names the channel, so everything of that kind is
+     * dropped. A driver that cannot deliver notifications at all leaves the
+     * listener polling: the session checks the catalog version at every
+     * action, so prices are never served stale, and the other caches are
+     * reloaded every gamerental.notify.pollReloadMs (default 30000).
+     */
+    static class ChangeListener {
+       static final String CHANNEL = "gamerental";
+       static final String[] KINDS = {"c", "t", "u", "f"};
+
+       private final GameRental esql;
+       private final long coalesceMillis = Long.getLong("gamerental.notify.coalesceMs", 50);
+       private final long pollReloadMillis = Long.getLong("gamerental.notify.pollReloadMs", 30000);
+       private final AtomicBoolean catalogStale = new AtomicBoolean();
+       private final AtomicBoolean fullReload = new AtomicBoolean();
+       private final AtomicBoolean allUsersChanged = new AtomicBoolean();
+       private final AtomicBoolean allFavoritesChanged = new AtomicBoolean();
+       private final Set<String> changedUsers = ConcurrentHashMap.newKeySet();
+       private final Set<String> changedFavorites = ConcurrentHashMap.newKeySet();
+       private final Thread thread;
+       private volatile boolean running = true;
+       private volatile boolean polling = false;
+       private List<Connection> connections = null;
+
+       ChangeListener(GameRental esql) {
+          this.esql = esql;
+          this.thread = new Thread(this::run, "GameRental-listener");
+          this.thread.setDaemon(true);
+          this.thread.start();
+       }
+
+       private void run() {
+          List<String> burst = new ArrayList<String>();
+          long backoff = 1000;
+          while (running) {
+             try{
+                if (polling) {
+                   Thread.sleep(pollReloadMillis);
+                   fullReload.set(true);
+                   continue;
+                }
+                if (connections == null) {
+                   connect();
+                   // anything may have changed while we were not listening
+                   fullReload.set(true);
+                   backoff = 1000;
+                }
+                long quietSince = System.currentTimeMillis();
+                do {
+                   if (poll(burst, burst.isEmpty() ? 500 : coalesceMillis)) quietSince = System.currentTimeMillis();
+                } while (!burst.isEmpty() && System.currentTimeMillis() - quietSince < coalesceMillis && running);
+                if (!burst.isEmpty()) {
+                   apply(burst);
+                   burst.clear();
+                }
+             }catch (InterruptedException e){
+                break;
+             }catch (LinkageError | ReflectiveOperationException | ClassCastException e){
+                // the driver cannot hand out notifications
+                System.err.println("Change listener polling instead, the driver has no notifications: " + e);
+                disconnect();
+                polling = true;
+             }catch (Throwable e){
+                if (!running) break;
+                System.err.println("Change listener lost its connection: " + e);
+                disconnect();
+                try{
+                   Thread.sleep(backoff);
+                }catch (InterruptedException ie){
+                   break;
+                }
+                backoff = Math.min(backoff * 2, 30000);
+             }
+          }
+          disconnect();
+       }
+
+       private void connect() throws SQLException {
+          String shards = System.getProperty("gamerental.shards", "").trim();
+          connections = shards.isEmpty()
+             ? new ArrayList<Connection>(Collections.singletonList(esql.openConnection()))
+             : connectShards(shards, esql._user, esql._passwd);
+          for (Connection connection : connections) {
+             try (Statement stmt = connection.createStatement()) {
+                for (String kind : KINDS)
+                   stmt.execute("LISTEN " + CHANNEL + "_" + kind + ";");
+             }
+          }
+       }
+
+       private void disconnect() {
+          if (connections == null) return;
+          for (Connection connection : connections) {
+             try{
+                connection.close();
+             }catch (SQLException e){
+                // the connection is being dropped anyway
+             }
+          }
+          connections = null;
+       }
+
+       /**
+        * Collects pending notifications from every database into burst as
+        * "kind:key", the key left empty when the driver gives no payload,
+        * waiting up to waitMillis when there are none.
+        *
+        * @return whether anything arrived
+        */
+       private boolean poll(List<String> burst, long waitMillis) throws Exception {
+          boolean arrived = false;
+          long perConnection = Math.max(1, waitMillis / connections.size());
+          for (int i = 0; i < connections.size(); ++i) {
+             for (Object notification : notifications(connections.get(i), perConnection)) {
+                String channel = call(notification, "getName");
+                if (channel == null || !channel.startsWith(CHANNEL + "_")) continue;
+                arrived = true;
+                String kind = channel.substring(CHANNEL.length() + 1);
+                String payload = call(notification, "getParameter");
+                if (payload == null || payload.isEmpty()) {
+                   burst.add(kind + ":");
+                   continue;
+                }
+                if (payload.indexOf(':') < 0) {
+                   fullReload.set(true);
+                   continue;
+                }
+                burst.add(payload);
+             }
+          }
+          return arrived;
+       }
+
+       /**
+        * Fetches the driver's pending notifications. PgJDBC 42.2+ can wait
+        * for them; older drivers only see what a round trip brings in.
+        */
+       private Object[] notifications(Connection connection, long waitMillis) throws Exception {
+          Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+          Object pg = driverConnection(connection, pgConnection);
+          Object[] notifications;
+          try{
+             notifications = (Object[])pgConnection.getMethod("getNotifications", int.class).invoke(pg, (int)waitMillis);
+          }catch (NoSuchMethodException e){
+             try (Statement stmt = connection.createStatement()) {
+                stmt.executeQuery("SELECT 1;").close();
+             }
+             notifications = (Object[])pgConnection.getMethod("getNotifications").invoke(pg);
+             if (notifications == null || notifications.length == 0) Thread.sleep(waitMillis);
+          }catch (java.lang.reflect.InvocationTargetException e){
+             throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+          }
+          return notifications == null ? new Object[0] : notifications;
+       }
+
+       // getName and getParameter of a notification; pg73jdbc3 has no getParameter
+       private static String call(Object notification, String getter) {
+          try{
+             return (String)notification.getClass().getMethod(getter).invoke(notification);
+          }catch (ReflectiveOperationException e){
+             return null;
+          }
+       }
+
+       /**
+        * Applies a burst of "kind:key" changes; an empty key stands for any
+        * key of that kind.
+        */
+       private void apply(List<String> burst) {
+          List<String> trackingIDs = new ArrayList<String>();
+          boolean anyTracking = false;
+          for (String change : burst) {
+             String kind = change.substring(0, change.indexOf(':'));
+             String key = change.substring(kind.length() + 1).trim();
+             switch (kind) {
+                case "c":
+                   catalogStale.set(true);
+                   esql._results.invalidate("Catalog");
+                   break;
+                case "t":
+                   if (key.isEmpty()) anyTracking = true;
+                   else trackingIDs.add(key);
+                   break;
+                case "u":
+                   if (key.isEmpty()) {
+                      esql._orders.clear();
+                      allUsersChanged.set(true);
+                   }
+                   else {
+                      esql._orders.invalidateLogin(key);
+                      changedUsers.add(key);
+                   }
+                   // a rename or delete cascades to the orders
+                   esql._results.invalidate("Users");
+                   break;
+                case "f":
+                   if (key.isEmpty()) allFavoritesChanged.set(true);
+                   else changedFavorites.add(key);
+                   break;
+             }
+          }
+          if (anyTracking) esql._orders.clear();
+          else if (!trackingIDs.isEmpty()) esql._orders.invalidate(trackingIDs);
+          if (anyTracking || !trackingIDs.isEmpty()) {
+             // every new order also starts a tracking history
+             for (String table : new String[]{"TrackingEvent", "TrackingLatest", "TrackingInfo", "RentalOrder"})
+                esql._results.invalidate(table);
+          }
+       }
+
+       /**
+        * Called by the session: reloads what was flagged and returns the
+        * logins changed since the last call.
+        */
+       Set<String> applyPending() {
+          if (fullReload.getAndSet(false)) {
+             catalogStale.set(false);
+             allUsersChanged.set(false);
+             allFavoritesChanged.set(false);
+             changedUsers.clear();
+             changedFavorites.clear();
+             esql.reloadCaches();
+             // every login may have changed
+             return null;
+          }
+          // while polling, the catalog version is checked at every action
+          if (catalogStale.getAndSet(false) || polling) esql.loadCatalog();
+          if (allFavoritesChanged.getAndSet(false)) {
+             changedFavorites.clear();
+             esql.loadFavorites();
+          }
+          Set<String> favorites = new HashSet<String>();
+          for (Iterator<String> it = changedFavorites.iterator(); it.hasNext(); ) {
+             favorites.add(it.next());
+             it.remove();
+          }
+          esql.reloadFavorites(favorites);
+          if (allUsersChanged.getAndSet(false)) {
+             changedUsers.clear();
+             return null;
+          }
+          Set<String> users = new HashSet<String>();
+          for (Iterator<String> it = changedUsers.iterator(); it.hasNext(); ) {
+             users.add(it.next());
+             it.remove();
+          }
+          return users;
+       }
+
+       void close() {
+          running = false;
+          thread.interrupt();
+       }
+    }//end ChangeListener
+
+    /**
+     * Receives due-date reminders. Set gamerental.reminders.sink to the name
+     * of a class with a no-argument constructor to replace the default,
+     * which appends to gamerental-reminders.log.
+     */
+    public interface ReminderSink {
+       void remind(Reminder reminder) throws Exception;
+    }
+
+    public static class Reminder {
+       public final String rentalOrderID;
+       public final String login;
+       public final String dueDate;
+       // "T-2", "DUE" or "OVERDUE+<days>"
+       public final String kind;
+       public final long fireAtMillis;
+
+       Reminder(String rentalOrderID, String login, String dueDate, String kind, long fireAtMillis) {
+          this.rentalOrderID = rentalOrderID;
+          this.login = login;
+          this.dueDate = dueDate;
+          this.kind = kind;
+          this.fireAtMillis = fireAtMillis;
+       }
+
+       public String toString() {
+          return String.format("%s order %s of %s due %s", kind, rentalOrderID, login, dueDate);
+       }
+    }
+
+    static class LogReminderSink implements ReminderSink {
+       public synchronized void remind(Reminder reminder) throws IOException {
+          try (PrintWriter log = new PrintWriter(new FileWriter("gamerental-reminders.log", true))) {
+             log.println(new Timestamp(reminder.fireAtMillis) + " " + reminder);
+          }
+       }
+    }
+
+    /**
+     * Hierarchical timing wheel: LEVELS wheels of SLOTS slots, a slot of
+     * level L spanning SLOTS^L ticks. A timer sits in the lowest wheel that
+     * can reach it and drops a level each time its slot comes round, so
+     * adding and expiring are constant time whatever the number of timers.
+     * Timers past the top wheel wait in an overflow list.
+     */
+    static class TimingWheel<T> {
+       static final int SLOTS = 64;
+       static final int LEVELS = 3;
+
+       private static final class Timer<T> {
+          final long tick;
+          final T item;
+
+          Timer(long tick, T item) {
+             this.tick = tick;
+             this.item = item;
+          }
+       }
+
+       private final List<List<Timer<T>>> slots = new ArrayList<List<Timer<T>>>();
+       private final List<Timer<T>> overflow = new ArrayList<Timer<T>>();
+       private final List<T> due = new ArrayList<T>();
+       private long currentTick;
+       private int size = 0;
+
+       TimingWheel(long startTick) {
+          this.currentTick = startTick;
+          for (int i = 0; i < SLOTS * LEVELS; ++i) slots.add(null);
+       }
+
+       private static long span(int level) {
+          return 1L << (6 * level);
+       }
+
+       long currentTick() {
+          return currentTick;
+       }
+
+       int size() {
+          return size;
+       }
+
+       void add(long tick, T item) {
+          ++size;
+          place(new Timer<T>(tick, item));
+       }
+
+       private void place(Timer<T> timer) {
+          if (timer.tick <= currentTick) {
+             due.add(timer.item);
+             return;
+          }
+          for (int level = 0; level < LEVELS; ++level) {
+             long bucket = timer.tick / span(level);
+             if (bucket - currentTick / span(level) < SLOTS) {
+                int index = level * SLOTS + (int)(bucket % SLOTS);
+                if (slots.get(index) == null) slots.set(index, new ArrayList<Timer<T>>());
+                slots.get(index).add(timer);
+                return;
+             }
+          }
+          overflow.add(timer);
+       }
+
+       /**
+        * Moves time forward to tick and returns every item that came due,
+        * oldest first.
+        */
+       List<T> advance(long tick) {
+          List<T> fired = new ArrayList<T>(due);
+          due.clear();
+          while (currentTick < tick) {
+             ++currentTick;
+             if (currentTick % span(LEVELS) == 0) {
+                List<Timer<T>> waiting = new ArrayList<Timer<T>>(overflow);
+                overflow.clear();
+                for (Timer<T> timer : waiting) place(timer);
+             }
+             for (int level = LEVELS - 1; level > 0; --level) {
+                if (currentTick % span(level) != 0) continue;
+                int index = level * SLOTS + (int)((currentTick / span(level)) % SLOTS);
+                List<Timer<T>> cascading = slots.get(index);
+                slots.set(index, null);
+                if (cascading != null)
+                   for (Timer<T> timer : cascading) place(timer);
+             }
+             List<Timer<T>> expiring = slots.get((int)(currentTick % SLOTS));
+             slots.set((int)(currentTick % SLOTS), null);
+             if (expiring != null)
+                for (Timer<T> timer : expiring) fired.add(timer.item);
+             fired.addAll(due);
+             due.clear();
+          }
+          size -= fired.size();
+          return fired;
+       }
+    }//end TimingWheel
+
+    /**
+     * Due-date reminders: two days before the due date, on it, and at each
+     * of gamerental.reminders.overdueDays (default 1,7,14,30) days after,
+     * for orders not yet returned. Enabled with gamerental.reminders=true.
+     *
+     * Every minute a daemon thread moves a TimingWheel (one-minute ticks)
+     * forward and hands what fired to the sink, after dropping orders
+     * returned in the meantime. Only the next gamerental.reminders.windowHours
+     * (default 24) of reminders are in the wheel: when less than half a
+     * window is loaded, the next window is read with one range scan over
+     * dueDate per database. The time up to which every reminder has been
+     * delivered is checkpointed to gamerental.reminders.checkpoint (default
+     * reminders.checkpoint) after each delivery; a restart resumes from it,
+     * catching up on what came due while nothing was running.
+     *
+     * A reminder leaves the wheel only once the sink has taken it: when the
+     * re-check or the sink fails, the rest of the batch goes back into the
+     * wheel and fires again at the next tick. A window read again after a
+     * partial load skips the (rentalOrderID, kind) pairs it already added. dueDate has no time zone; it is read
+     * as local time in the session's TimeZone on both sides of the window.
+     */
+    static class ReminderScheduler {
+       static final long TICK_MILLIS = 60 * 1000L;
+
+       private final GameRental esql;
+       private final ReminderSink sink;
+       private final long windowTicks = Long.getLong("gamerental.reminders.windowHours", 24) * 60;
+       private final Path checkpoint = Paths.get(System.getProperty("gamerental.reminders.checkpoint", "reminders.checkpoint"));
+       private final String offsets;
+       private final TimingWheel<Reminder> wheel;
+       private final ScheduledExecutorService ticker;
+       private List<Connection> connections = null;
+       private long loadedUntil;
+       // rentalOrderID:kind -> tick of the reminders read from a window not
+       // yet fully loaded, so reading it again adds none of them twice
+       private final Map<String, Long> scheduled = new HashMap<String, Long>();
+
+       ReminderScheduler(GameRental esql) throws Exception {
+          this.esql = esql;
+          String sinkClass = System.getProperty("gamerental.reminders.sink");
+          this.sink = sinkClass == null ? new LogReminderSink()
+             : (ReminderSink)Class.forName(sinkClass).getDeclaredConstructor().newInstance();
+          StringBuilder kinds = new StringBuilder("('T-2', interval '-2 days'), ('DUE', interval '0 days')");
+          for (String days : System.getProperty("gamerental.reminders.overdueDays", "1,7,14,30").split(","))
+             kinds.append(String.format(", ('OVERDUE+%1$d', interval '%1$d days')", Integer.parseInt(days.trim())));
+          this.offsets = kinds.toString();
+          long start = System.currentTimeMillis() / TICK_MILLIS;
+          if (Files.exists(checkpoint))
+             start = Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+          this.wheel = new TimingWheel<Reminder>(start);
+          this.loadedUntil = start;
+          this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+             Thread t = new Thread(r, "GameRental-reminders");
+             t.setDaemon(true);
+             return t;
+          });
+          this.ticker.scheduleWithFixedDelay(this::tick, 0, 1, TimeUnit.MINUTES);
+       }
+
+       private void tick() {
+          List<Reminder> fired = new ArrayList<Reminder>();
+          try{
+             long now = System.currentTimeMillis() / TICK_MILLIS;
+             while (loadedUntil - now < windowTicks / 2) {
+                load(loadedUntil, loadedUntil + windowTicks);
+                loadedUntil += windowTicks;
+                // windows before loadedUntil are never read again
+                scheduled.values().removeIf(tick -> tick < loadedUntil);
+             }
+             fired = wheel.advance(now);
+             if (!fired.isEmpty()) deliver(fired);
+             save(now);
+          }catch (Exception e){
+             System.err.println("Reminder scheduler: " + e.getMessage());
+             disconnect();
+             // not delivered yet: due again at the next tick
+             for (Reminder reminder : fired) wheel.add(reminder.fireAtMillis / TICK_MILLIS, reminder);
+          }
+       }
+
+       private static String key(Reminder reminder) {
+          return reminder.rentalOrderID + ":" + reminder.kind;
+       }
+
+       private List<Connection> connect() throws SQLException {
+          if (connections == null) {
+             String shards = System.getProperty("gamerental.shards", "").trim();
+             connections = shards.isEmpty()
+                ? new ArrayList<Connection>(Collections.singletonList(esql.openConnection()))
+                : connectShards(shards, esql._user, esql._passwd);
+          }
+          return connections;
+       }
+
+       private void disconnect() {
+          if (connections == null) return;
+          for (Connection connection : connections) {
+             try{
+                connection.close();
+             }catch (SQLException e){
+                // reconnected on the next tick
+             }
+          }
+          connections = null;
+       }
+
+       private static final String OPEN =
+          "NOT EXISTS (SELECT 1 FROM TrackingInfo T, TrackingLatest L WHERE T.rentalOrderID = R.rentalOrderID " +
+          "AND T.orderTimestamp = R.orderTimestamp AND L.trackingID = T.trackingID AND L.status LIKE 'Returned%%')";
+
+       /**
+        * Loads the reminders firing in [fromTick, toTick).
+        */
+       private void load(long fromTick, long toTick) throws SQLException {
+          String query = String.format(
+             "SELECT R.rentalOrderID, R.login, R.dueDate, k.kind, " +
+             "(EXTRACT(EPOCH FROM (R.dueDate + k.shift) AT TIME ZONE current_setting('TimeZone')) * 1000)::bigint " +
+             "FROM RentalOrder R, (VALUES %s) AS k(kind, shift) " +
+             "WHERE R.dueDate >= to_timestamp(%d) AT TIME ZONE current_setting('TimeZone') - k.shift " +
+             "AND R.dueDate < to_timestamp(%d) AT TIME ZONE current_setting('TimeZone') - k.shift AND " + OPEN + ";",
+             offsets, fromTick * 60, toTick * 60);
+          for (Connection connection : connect()) {
+             boolean autoCommit = connection.getAutoCommit();
+             connection.setAutoCommit(false);
+             try (Statement stmt = connection.createStatement()) {
+                stmt.setFetchSize(10000);
+                ResultSet rs = stmt.executeQuery(query);
+                while (rs.next()) {
+                   long fireAt = rs.getLong(5);
+                   Reminder reminder = new Reminder(rs.getString(1).trim(), rs.getString(2).trim(),
+                      rs.getString(3), rs.getString(4), fireAt);
+                   if (scheduled.putIfAbsent(key(reminder), fireAt / TICK_MILLIS) == null) wheel.add(fireAt / TICK_MILLIS, reminder);
+                }
+             }finally{
+                connection.commit();
+                connection.setAutoCommit(autoCommit);
+             }
+          }
+       }
+
+       /**
+        * Drops reminders for orders returned since they were loaded and hands
+        * the rest to the sink, removing each from fired once it is done
+        * with, so fired ends up holding what is still to deliver.
+        */
+       private void deliver(List<Reminder> fired) throws Exception {
+          List<String> ids = new ArrayList<String>();
+          for (Reminder reminder : fired) ids.add(reminder.rentalOrderID);
+          Set<String> returned = new HashSet<String>();
+          String query = String.format(
+             "SELECT R.rentalOrderID FROM RentalOrder R WHERE R.rentalOrderID IN (%s) AND NOT " + OPEN + ";",
+             quotedList(ids));
+          for (Connection connection : connect()) {
+             try (Statement stmt = connection.createStatement()) {
+                ResultSet rs = stmt.executeQuery(query);
+                while (rs.next()) returned.add(rs.getString(1).trim());
+             }
+          }
+          for (Iterator<Reminder> it = fired.iterator(); it.hasNext(); ) {
+             Reminder reminder = it.next();
+             if (!returned.contains(reminder.rentalOrderID)) sink.remind(reminder);
+             it.remove();
+          }
+       }
+
+       private void save(long tick) throws IOException {
+          Path partial = Paths.get(checkpoint + ".tmp");
+          Files.write(partial, Long.toString(tick).getBytes(StandardCharsets.UTF_8));
+          Files.move(partial, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+       }
+
+       void close() {
+          ticker.shutdownNow();
+          disconnect();
+       }
+    }//end ReminderScheduler
+
+    /**
+     * Revenue and rental reports for managers: revenue by genre, by month
+     * and by courier, and open against returned rentals, over live and
+     * archived orders.
+     *
+     * Live orders are aggregated by the database. Orders never change once
+     * placed, so revenue by genre and by month is kept in a cache folded up
+     * to a high-water mark on orderTimestamp; a refresh folds in only what
+     * was placed since, and aggregates the last gamerental.reports.lagSeconds
+     * (default 300) afresh each time, so orders committed late or stamped by
+     * a skewed clock are not missed. Orders are deleted though, by the
+     * archive and with their user; a trigger counts the statements that
+     * delete them in RentalOrderDeletes, and the cache is folded again from
+     * scratch when that count moves. Courier and status follow tracking,
+     * which does change, and are aggregated afresh only when the newest
+     * eventNo in TrackingEvent (placing an order adds one too) or the delete
+     * count has moved, or the lag has passed since they last were, which
+     * covers events committed out of eventNo order.
+     *
+     * Archived orders are read from the archive files, one fork/join task
+     * per archive run, joining lines to the catalog in memory; each run is
+     * read once. An order is counted once however many runs hold it, and not
+     * at all from the archive while it is still live, as it is after an
+     * archive run that was interrupted before its delete.
+     *
+     * A genre's revenue is its share of each order's total in proportion to
+     * the list price of its lines at the time the order was folded.
+     */
+    static class RentalReports {
+       static final String[] GENRE_HEADER = {"genre", "units", "revenue"};
+       static final String[] MONTH_HEADER = {"month", "orders", "revenue"};
+       static final String[] COURIER_HEADER = {"courier", "orders", "revenue"};
+       static final String[] STATUS_HEADER = {"status", "orders", "revenue"};
+       static final String[] STATUS = {"Open", "Returned"};
+
+       /**
+        * Counts and cents keyed by small ordinals.
+        */
+       static final class Tally {
+          long[] counts = new long[16];
+          long[] cents = new long[16];
+          int size = 0;
+
+          void add(int key, long count, long amount) {
+             if (key >= counts.length) {
+                int length = Math.max(key + 1, counts.length * 2);
+                counts = Arrays.copyOf(counts, length);
+                cents = Arrays.copyOf(cents, length);
+             }
+             counts[key] += count;
+             cents[key] += amount;
+             size = Math.max(size, key + 1);
+          }
+
+          void addAll(Tally other) {
+             for (int key = 0; key < other.size; ++key)
+                if (other.counts[key] != 0 || other.cents[key] != 0) add(key, other.counts[key], other.cents[key]);
+          }
+
+       }
+
+       /**
+        * One archived order's share of the totals.
+        */
+       static final class Order {
+          final int month;
+          final long cents;
+          int courier;
+          int status;
+          // genre ordinal, units and cents of each line
+          long[] lines = new long[0];
+
+          Order(int month, long cents) {
+             this.month = month;
+             this.cents = cents;
+          }
+
+          void line(int genre, long units, long amount) {
+             lines = Arrays.copyOf(lines, lines.length + 3);
+             lines[lines.length - 3] = genre;
+             lines[lines.length - 2] = units;
+             lines[lines.length - 1] = amount;
+          }
+
+          void addTo(Totals totals) {
+             totals.months.add(month, 1, cents);
+             for (int i = 0; i < lines.length; i += 3) totals.genres.add((int)lines[i], lines[i + 1], lines[i + 2]);
+             totals.couriers.add(courier, 1, cents);
+             totals.status.add(status, 1, cents);
+          }
+       }
+
+       static final class Totals {
+          final Tally genres = new Tally();     // units by genre ordinal
+          final Tally months = new Tally();     // orders by months since 1900-01
+          final Tally couriers = new Tally();   // orders by courier ordinal
+          final Tally status = new Tally();     // orders by index into STATUS
+
+          Totals addAll(Totals other) {
+             genres.addAll(other.genres);
+             months.addAll(other.months);
+             couriers.addAll(other.couriers);
+             status.addAll(other.status);
+             return this;
+          }
+       }
+
+       /**
+        * Interns names as ordinals, safely from several threads.
+        */
+       static final class Names {
+          private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+          private final List<String> names = new ArrayList<String>();
+
+          int id(String name) {
+             Integer id = ids.get(name);
+             if (id != null) return id;
+             synchronized (this) {
+                id = ids.get(name);
+                if (id == null) {
+                   id = names.size();
+                   names.add(name);
+                   ids.put(name, id);
+                }
+                return id;
+             }
+          }
+
+          synchronized String name(int id) {
+             return names.get(id);
+          }
+       }
+
+       private static final String GENRES =
+          "SELECT genre, SUM(units), ROUND(SUM(share))::bigint FROM (" +
+          "SELECT C.genre, G.unitsOrdered AS units, R.totalPrice * 100 * CASE WHEN SUM(G.unitsOrdered * C.price) OVER w > 0 " +
+          "THEN G.unitsOrdered * C.price / SUM(G.unitsOrdered * C.price) OVER w " +
+          "ELSE G.unitsOrdered::numeric / NULLIF(SUM(G.unitsOrdered) OVER w, 0) END AS share " +
+          "FROM RentalOrder R JOIN GamesInOrder G ON G.rentalOrderID = R.rentalOrderID AND G.orderTimestamp = R.orderTimestamp " +
+          "JOIN Catalog C ON C.gameID = G.gameID WHERE R.orderTimestamp > '%s' AND R.orderTimestamp <= '%s' " +
+          "WINDOW w AS (PARTITION BY R.rentalOrderID, R.orderTimestamp)) X GROUP BY genre;";
+
+       private static final String MONTHS =
+          "SELECT ((EXTRACT(YEAR FROM orderTimestamp) - 1900) * 12 + EXTRACT(MONTH FROM orderTimestamp) - 1)::integer, " +
+          "COUNT(*), ROUND(SUM(totalPrice) * 100)::bigint FROM RentalOrder " +
+          "WHERE orderTimestamp > '%s' AND orderTimestamp <= '%s' GROUP BY 1;";
+
+       // the latest tracking state of each order
+       private static final String COURIERS =
+          "SELECT courier, returned, COUNT(*), ROUND(SUM(totalPrice) * 100)::bigint FROM (" +
+          "SELECT DISTINCT ON (R.rentalOrderID, R.orderTimestamp) COALESCE(L.courierName, T.courierName, '(none)') AS courier, " +
+          "CASE WHEN COALESCE(L.status, T.status) LIKE 'Returned%' THEN 1 ELSE 0 END AS returned, R.totalPrice " +
+          "FROM RentalOrder R LEFT JOIN TrackingInfo T ON T.rentalOrderID = R.rentalOrderID AND T.orderTimestamp = R.orderTimestamp " +
+          "LEFT JOIN TrackingLatest L ON L.trackingID = T.trackingID " +
+          "ORDER BY R.rentalOrderID, R.orderTimestamp, COALESCE(L.lastUpdateDate, T.lastUpdateDate) DESC NULLS LAST) X " +
+          "GROUP BY courier, returned;";
+
+       // what the cached totals were built at, per shard
+       private static final String MARKS =
+          "SELECT (SELECT deletes FROM RentalOrderDeletes), (SELECT MAX(eventNo) FROM TrackingEvent);";
+
+       private final GameRental esql;
+       private final Path dir = Paths.get(System.getProperty("gamerental.archiveDir", "archive"));
+       private final long lagMillis = Long.getLong("gamerental.reports.lagSeconds", 300) * 1000;
+       private final Names genres = new Names();
+       private final Names couriers = new Names();
+       // archived orders of each run, keyed by rentalOrderID and orderTimestamp
+       private final Map<String, Map<String, Order>> runs = new HashMap<String, Map<String, Order>>();
+       private Totals archived = new Totals();
+       private Set<String> stillLive = Collections.emptySet();
+       private String newestArchived = null;
+       private Totals folded = new Totals();
+       private String foldedUntil = "-infinity";
+       private List<String> foldedDeletes = null;
+       private Totals tracked = null;
+       private List<List<String>> trackedMarks = null;
+       private long trackedAt = 0;
+
+       RentalReports(GameRental esql) {
+          this.esql = esql;
+       }
+
+       String genre(int id) {
+          return genres.name(id);
+       }
+
+       String courier(int id) {
+          return couriers.name(id);
+       }
+
+       /**
+        * @return the totals over every live and archived order
+        */
+       synchronized Totals refresh() throws Exception {
+          Set<String> current = archiveRuns();
+          boolean changed = !current.equals(runs.keySet());
+          if (changed) {
+             runs.keySet().retainAll(current);
+             List<String> unread = new ArrayList<String>(current);
+             unread.removeAll(runs.keySet());
+             if (!unread.isEmpty()) runs.putAll(ForkJoinPool.commonPool().invoke(new ArchiveTask(unread)));
+             newestArchived = null;
+             for (Map<String, Order> run : runs.values())
+                for (String key : run.keySet()) {
+                   String timestamp = key.substring(key.indexOf('|') + 1);
+                   if (newestArchived == null || timestamp.compareTo(newestArchived) > 0) newestArchived = timestamp;
+                }
+          }
+          List<List<String>> marks = esql.executeQueryAndReturnResultOnAllShards(MARKS);
+          List<String> deletes = new ArrayList<String>();
+          for (List<String> r : marks) deletes.add(r.get(0));
+          boolean deleted = !deletes.equals(foldedDeletes);
+          // archived orders whose rows are still in the database, which only
+          // changes with the archive runs or when orders are deleted
+          Set<String> live = stillLive;
+          if (changed || deleted) {
+             live = new HashSet<String>();
+             if (newestArchived != null) {
+                for (List<String> r : esql.executeQueryAndReturnResultOnAllShards(String.format(
+                      "SELECT rentalOrderID, orderTimestamp FROM RentalOrder WHERE orderTimestamp <= '%s';", newestArchived)))
+                   live.add(r.get(0).trim() + "|" + r.get(1).trim());
+             }
+          }
+          if (changed || !live.equals(stillLive)) {
+             stillLive = live;
+             archived = new Totals();
+             Set<String> counted = new HashSet<String>(live);
+             List<String> names = new ArrayList<String>(runs.keySet());
+             Collections.sort(names, Collections.reverseOrder());
+             // the newest run holding an order has its latest tracking
+             for (String name : names)
+                for (Map.Entry<String, Order> order : runs.get(name).entrySet())
+                   if (counted.add(order.getKey())) order.getValue().addTo(archived);
+          }
+          if (deleted) {
+             folded = new Totals();
+             foldedUntil = "-infinity";
+             foldedDeletes = deletes;
+          }
+          String until = new Timestamp(System.currentTimeMillis() - lagMillis).toString();
+          if (until.compareTo(foldedUntil) > 0) {
+             aggregate(folded, foldedUntil, until);
+             foldedUntil = until;
+          }
+          Totals totals = new Totals().addAll(folded);
+          aggregate(totals, foldedUntil, "infinity");
+          if (!marks.equals(trackedMarks) || System.currentTimeMillis() - trackedAt >= lagMillis) {
+             tracked = new Totals();
+             trackedAt = System.currentTimeMillis();
+             for (List<String> r : esql.executeQueryAndReturnResultOnAllShards(COURIERS)) {
+                long count = Long.parseLong(r.get(2).trim());
+                long cents = Long.parseLong(r.get(3).trim());
+                tracked.couriers.add(couriers.id(r.get(0).trim()), count, cents);
+                tracked.status.add(Integer.parseInt(r.get(1).trim()), count, cents);
+             }
+             trackedMarks = marks;
+          }
+          return totals.addAll(tracked).addAll(archived);
+       }
+
+       private void aggregate(Totals totals, String from, String to) throws SQLException {
+          for (List<String> r : esql.executeQueryAndReturnResultOnAllShards(String.format(GENRES, from, to)))
+             totals.genres.add(genres.id(r.get(0).trim()), Long.parseLong(r.get(1).trim()), Long.parseLong(r.get(2).trim()));
+          months(totals, from, to);
+       }
+
+       private void months(Totals totals, String from, String to) throws SQLException {
+          for (List<String> r : esql.executeQueryAndReturnResultOnAllShards(String.format(MONTHS, from, to)))
+             totals.months.add(Integer.parseInt(r.get(0).trim()), Long.parseLong(r.get(1).trim()), Long.parseLong(r.get(2).trim()));
+       }
+
+       /**
+        * @return the archive runs on disk, as "year-run"
+        */
+       private Set<String> archiveRuns() throws IOException {
+          Set<String> found = new HashSet<String>();
+          if (!Files.isDirectory(dir)) return found;
+          try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "rentalorder-*.csv.gz")) {
+             for (Path file : files) {
+                String name = file.getFileName().toString();
+                found.add(name.substring("rentalorder-".length(), name.length() - ".csv.gz".length()));
+             }
+          }
+          return found;
+       }
+
+       private class ArchiveTask extends RecursiveTask<Map<String, Map<String, Order>>> {
+          private static final long serialVersionUID = 1L;
+          private final List<String> runs;
+
+          ArchiveTask(List<String> runs) {
+             this.runs = runs;
+          }
+
+          protected Map<String, Map<String, Order>> compute() {
+             if (runs.size() == 1) {
+                try{
+                   return Collections.singletonMap(runs.get(0), read(runs.get(0)));
+                }catch (IOException e){
+                   throw new UncheckedIOException(e);
+                }
+             }
+             int half = runs.size() / 2;
+             ArchiveTask left = new ArchiveTask(runs.subList(0, half));
+             left.fork();
+             Map<String, Map<String, Order>> result = new HashMap<String, Map<String, Order>>(new ArchiveTask(runs.subList(half, runs.size())).compute());
+             result.putAll(left.join());
+             return result;
+          }
+       }
+
+       private List<List<String>> records(String table, String run) throws IOException {
+          List<List<String>> records = new ArrayList<List<String>>();
+          Path file = dir.resolve(table + "-" + run + ".csv.gz");
+          if (!Files.exists(file)) return records;
+          try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                  new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+             CatalogImporter.readCsvRecord(in); // header
+             List<String> r;
+             while ((r = CatalogImporter.readCsvRecord(in)) != null) records.add(r);
+          }
+          return records;
+       }
+
+       /**
+        * Reads one archive run, joining its lines to the catalog.
+        *
+        * @return the run's orders, keyed by rentalOrderID and orderTimestamp
+        */
+       private Map<String, Order> read(String run) throws IOException {
+          Map<String, Order> result = new HashMap<String, Order>();
+          // list price and units of each order
+          Map<String, long[]> orders = new HashMap<String, long[]>();
+          for (List<String> r : records("rentalorder", run)) {
+             if (r.size() < 6) continue;
+             long cents = PricingEngine.parseCents(r.get(3).trim());
+             String key = r.get(0).trim() + "|" + r.get(4).trim();
+             orders.put(key, new long[]{cents, 0, 0});
+             result.put(key, new Order(month(r.get(4).trim()), cents));
+          }
+          Map<String, List<long[]>> lines = new HashMap<String, List<long[]>>();
+          CatalogStore.Game game = esql._catalog.store().cursor();
+          for (List<String> r : records("gamesinorder", run)) {
+             if (r.size() < 4) continue;
+             String key = r.get(0).trim() + "|" + r.get(3).trim();
+             long[] order = orders.get(key);
+             if (order == null) continue;
+             boolean known = game.moveTo(r.get(1).trim());
+             long units = Long.parseLong(r.get(2).trim());
+             long price = known ? game.price() : 0;
+             order[1] += units * price;
+             order[2] += units;
+             lines.computeIfAbsent(key, k -> new ArrayList<long[]>()).add(
+                new long[]{genres.id(known ? game.genre() : "(removed)"), units, price});
+          }
+          for (Map.Entry<String, List<long[]>> order : lines.entrySet()) {
+             long[] o = orders.get(order.getKey());
+             for (long[] line : order.getValue()) {
+                double weight = o[1] > 0 ? (double)(line[1] * line[2]) / o[1] : (double)line[1] / o[2];
+                result.get(order.getKey()).line((int)line[0], line[1], Math.round(o[0] * weight));
+             }
+          }
+          // the latest tracking row of each order
+          Map<String, List<String>> latest = new HashMap<String, List<String>>();
+          for (List<String> r : records("trackinginfo", run)) {
+             if (r.size() < 8) continue;
+             latest.merge(r.get(1).trim() + "|" + r.get(7).trim(), r,
+                (a, b) -> a.get(5).compareTo(b.get(5)) >= 0 ? a : b);
+          }
+          for (Map.Entry<String, Order> order : result.entrySet()) {
+             List<String> tracking = latest.get(order.getKey());
+             order.getValue().courier = couriers.id(tracking == null ? "(none)" : tracking.get(4).trim());
+             order.getValue().status = tracking != null && tracking.get(2).trim().startsWith("Returned") ? 1 : 0;
+          }
+          return result;
+       }
+
+       static int month(String timestamp) {
+          int year = Integer.parseInt(timestamp.substring(0, 4));
+          int month = Integer.parseInt(timestamp.substring(5, 7));
+          return Math.max(0, (year - 1900) * 12 + month - 1);
+       }
+
+       static String monthName(int month) {
+          return String.format("%d-%02d", 1900 + month / 12, month % 12 + 1);
+       }
+    }//end RentalReports
+
+    /**
+     * Concurrent sessions against a scratch set of users, to exercise the
+     * write paths under contention; run with
+     * "java GameRental <dbname> <port> <user> --stress [threads [seconds]]".
+     *
+     * Each thread is its own GameRental instance, as separate processes
+     * would be, and loops over a mix of placing orders, renaming users,
+     * updating tracking and reading orders back, on users shared by all
+     * threads so renames race with orders. Afterwards the invariants are
+     * checked over the scratch users: every order has line items and a
+     * shipment, noOfGames and totalPrice agree with the lines and the
+     * catalog prices, order and tracking IDs are unique and nothing is
+     * orphaned. The scratch users and their orders are then deleted and
+     * their stock put back, unless gamerental.stress.keep is set.
+     */
+    static class StressTest {
+       static final String[] OPERATIONS = {"order", "rename", "track", "read"};
+       // out of 100, in the order of OPERATIONS
+       static final int[] MIX = {55, 10, 15, 20};
+       static final String[] STATUSES = {"shipped", "in transit", "out for delivery", "delivered"};
+
+       private final GameRental esql;
+       private final String[] args;
+       private final int threads;
+       private final long millis;
+       // short enough for the 15 characters of Customer.login, with the "r" of a rename
+       private final String prefix = "st" + Long.toString(System.currentTimeMillis() % 1679616, 36);
+       private final AtomicReferenceArray<String> logins;
+       private final QueryMetrics.Stat[] stats = new QueryMetrics.Stat[OPERATIONS.length];
+       private final LongAdder outOfStock = new LongAdder();
+       private final LongAdder lostToRename = new LongAdder();
+       private final LongAdder renamesRolledBack = new LongAdder();
+       private final LongAdder deadlocks = new LongAdder();
+       private final LongAdder serializationFailures = new LongAdder();
+       private final ConcurrentHashMap<String, LongAdder> rented = new ConcurrentHashMap<String, LongAdder>();
+       private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+       StressTest(GameRental esql, String[] args, int threads, int seconds) {
+          this.esql = esql;
+          this.args = args;
+          this.threads = threads;
+          this.millis = seconds * 1000L;
+          this.logins = new AtomicReferenceArray<String>(threads * 4);
+          for (int i = 0; i < stats.length; ++i) stats[i] = new QueryMetrics.Stat();
+       }
+
+       void run() throws Exception {
+          for (int i = 0; i < logins.length(); ++i) {
+             logins.set(i, prefix + "_" + i);
+             esql.useShardFor(logins.get(i));
+             esql.executeUpdate(String.format("INSERT INTO Users (login,password,phoneNum,role,favGames,numOverdueGames) VALUES('%s','stress','0','customer','',0);", logins.get(i)));
+             esql.executeUpdate(String.format("INSERT INTO Customer (login) VALUES('%s');", logins.get(i)));
+          }
+          // sessions are opened one by one, as they share the catalog snapshot file
+          List<GameRental> sessions = new ArrayList<GameRental>();
+          for (int t = 0; t < threads; ++t) {
+             GameRental session = new GameRental(args[0], args[1], args[2], "");
+             session.loadInventory();
+             session.loadCatalog();
+             sessions.add(session);
+          }
+          Map<String, Long> before = retries();
+          long start = System.currentTimeMillis();
+          List<Thread> workers = new ArrayList<Thread>();
+          for (GameRental session : sessions) {
+             Thread worker = new Thread(() -> work(session, start + millis), "GameRental-stress-" + workers.size());
+             workers.add(worker);
+             worker.start();
+          }
+          for (Thread worker : workers) worker.join();
+          long elapsed = System.currentTimeMillis() - start;
+          for (GameRental session : sessions) session.cleanup();
+          Map<String, Long> retried = retries();
+          for (Map.Entry<String, Long> kind : before.entrySet()) retried.merge(kind.getKey(), -kind.getValue(), Long::sum);
+          report(elapsed, retried);
+          int violations = check();
+          System.out.println(violations == 0 ? "All invariants hold" : violations + " invariant violation(s)");
+          if (!Boolean.getBoolean("gamerental.stress.keep")) clean();
+       }
+
+       private static Map<String, Long> retries() {
+          Map<String, Long> retries = new TreeMap<String, Long>();
+          for (Map.Entry<String, LongAdder> kind : orderRetries.entrySet()) retries.put(kind.getKey(), kind.getValue().sum());
+          return retries;
+       }
+
+       private void work(GameRental session, long until) {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          List<String[]> placed = new ArrayList<String[]>();
+          CatalogStore games = session._catalog.store();
+          CatalogStore.Game game = games.cursor();
+          while (System.currentTimeMillis() < until) {
+             int pick = random.nextInt(100), op = 0;
+             while (pick >= MIX[op]) pick -= MIX[op++];
+             if (placed.isEmpty() && op >= 2) op = 0;
+             int user = random.nextInt(logins.length());
+             String login = logins.get(user);
+             long begin = System.nanoTime();
+             boolean failed = false;
+             try{
+                switch (op) {
+                   case 0: {
+                      String gameID = game.at(random.nextInt(games.size())).id();
+                      PricingEngine.Cart cart = session._cart;
+                      cart.clear();
+                      if (!session._pricing.add(cart, gameID, 1)) cart.add(game.price(), 1);
+                      session._pricing.price(cart);
+                      session._pricing.quote(cart);
+                      session.useShardFor(login);
+                      String[] ids = insertOrder(session, login, gameID, 1, PricingEngine.format(cart.total));
+                      if (ids == null) {
+                         outOfStock.increment();
+                         break;
+                      }
+                      placed.add(new String[]{ids[0], ids[1], login});
+                      rented.computeIfAbsent(gameID, k -> new LongAdder()).increment();
+                      break;
+                   }
+                   case 1: {
+                      String renamed = login.endsWith("r") ? login.substring(0, login.length() - 1) : login + "r";
+                      List<String[]> change = new ArrayList<String[]>();
+                      change.add(new String[]{login, "login", renamed});
+                      if (applyUserChanges(session, "stress", change) == 1) logins.compareAndSet(user, login, renamed);
+                      else renamesRolledBack.increment();
+                      break;
+                   }
+                   case 2: {
+                      String[] order = placed.get(random.nextInt(placed.size()));
+                      appendTrackingEvents(session, "stress", "status", STATUSES[random.nextInt(STATUSES.length)], Collections.singletonList(order[1]));
+                      session._orders.invalidate(Collections.singletonList(order[1]));
+                      break;
+                   }
+                   default: {
+                      String[] order = placed.get(random.nextInt(placed.size()));
+                      // the owner may have been renamed since
+                      session.useShardFor(order[2]);
+                      session.orderDetail(order[0], order[2]);
+                      break;
+                   }
+                }
+             }catch (SQLException e){
+                failed = true;
+                String kind = failureKind(e);
+                if (kind.equals("deadlock")) deadlocks.increment();
+                else if (kind.equals("serialization")) serializationFailures.increment();
+                else if (kind.equals("foreign key") && op == 0) lostToRename.increment();
+                else if (errors.size() < 20) errors.add(OPERATIONS[op] + ": " + e.getMessage());
+             }catch (Exception e){
+                failed = true;
+                if (errors.size() < 20) errors.add(OPERATIONS[op] + ": " + e);
+             }
+             stats[op].add((System.nanoTime() - begin) / 1000, 1, failed);
+          }
+       }
+
+       private void report(long elapsed, Map<String, Long> retries) {
+          long total = 0;
+          List<List<String>> rows = new ArrayList<List<String>>();
+          for (int op = 0; op < OPERATIONS.length; ++op) {
+             long calls = stats[op].calls.sum();
+             total += calls;
+             rows.add(Arrays.asList(OPERATIONS[op], Long.toString(calls), Long.toString(stats[op].errors.sum()),
+                String.format("%.1f", calls * 1000.0 / elapsed),
+                Long.toString(stats[op].latency.percentile(0.5)), Long.toString(stats[op].latency.percentile(0.99))));
+          }
+          System.out.println(String.format("%d threads, %d operations in %d ms (%.1f/s)", threads, total, elapsed, total * 1000.0 / elapsed));
+          esql._renderer.render(new String[]{"operation", "calls", "failed", "per second", "p50 us", "p99 us"}, rows);
+          System.out.println("order placements retried: " + (retries.isEmpty() ? "none" : retries));
+          System.out.println(String.format("failed on deadlock %d, on serialization failure %d; orders lost to a rename %d; renames rolled back %d; out of stock %d",
+             deadlocks.sum(), serializationFailures.sum(), lostToRename.sum(), renamesRolledBack.sum(), outOfStock.sum()));
+          for (String error : errors) System.out.println("  " + error);
+       }
+
+       private int violation(String invariant, String query) throws SQLException {
+          List<List<String>> rows = esql.executeQueryAndReturnResultOnAllShards(query);
+          int found = 0;
+          for (List<String> row : rows) found += Integer.parseInt(row.get(0).trim());
+          System.out.println(String.format("%-48s %s", invariant, found == 0 ? "ok" : found + " violation(s)"));
+          return found;
+       }
+
+       /**
+        * @return the number of invariant violations found
+        */
+       int check() throws SQLException {
+          String mine = String.format("R.login LIKE '%s\\_%%'", prefix);
+          int found = 0;
+          found += violation("every order has a shipment", String.format(
+             "SELECT COUNT(*) FROM RentalOrder R WHERE %s AND NOT EXISTS (SELECT 1 FROM TrackingInfo T " +
+             "WHERE T.rentalOrderID = R.rentalOrderID AND T.orderTimestamp = R.orderTimestamp);", mine));
+          found += violation("every order has line items matching noOfGames", String.format(
+             "SELECT COUNT(*) FROM RentalOrder R WHERE %s AND R.noOfGames <> COALESCE((SELECT SUM(G.unitsOrdered) FROM GamesInOrder G " +
+             "WHERE G.rentalOrderID = R.rentalOrderID AND G.orderTimestamp = R.orderTimestamp), 0);", mine));
+          found += violation("every shipment has its first event", String.format(
+             "SELECT COUNT(*) FROM RentalOrder R JOIN TrackingInfo T ON T.rentalOrderID = R.rentalOrderID AND T.orderTimestamp = R.orderTimestamp " +
+             "WHERE %s AND NOT EXISTS (SELECT 1 FROM TrackingEvent E WHERE E.trackingID = T.trackingID);", mine));
+          found += violation("order IDs are unique", String.format(
+             "SELECT COUNT(*) FROM (SELECT R.rentalOrderID FROM RentalOrder R GROUP BY R.rentalOrderID HAVING COUNT(*) > 1 " +
+             "AND bool_or(%s)) X;", mine));
+          found += violation("tracking IDs are unique",
+             "SELECT COUNT(*) FROM (SELECT trackingID FROM TrackingInfo GROUP BY trackingID HAVING COUNT(*) > 1) X;");
+          found += violation("no orders without a user",
+             "SELECT COUNT(*) FROM RentalOrder R WHERE NOT EXISTS (SELECT 1 FROM Users U WHERE U.login = R.login);");
+          found += violation("no events or latest state without a shipment",
+             "SELECT (SELECT COUNT(*) FROM TrackingEvent E WHERE NOT EXISTS (SELECT 1 FROM TrackingInfo T WHERE T.trackingID = E.trackingID)) + " +
+             "(SELECT COUNT(*) FROM TrackingLatest L WHERE NOT EXISTS (SELECT 1 FROM TrackingInfo T WHERE T.trackingID = L.trackingID));");
+          // totals are priced again by the database from the lines and the
+          // catalog, which the run does not change, so a PricingEngine bug
+          // cannot check itself: cents, discount past discountUnits units,
+          // tax on the rest, each rounded half up
+          PricingEngine pricing = esql._pricing;
+          found += violation("totals match catalog prices", String.format(
+             "SELECT COUNT(*) FROM (SELECT R.totalPrice, SUM(G.unitsOrdered * C.price * 100)::bigint AS subtotal, SUM(G.unitsOrdered) AS units " +
+             "FROM RentalOrder R JOIN GamesInOrder G ON G.rentalOrderID = R.rentalOrderID AND G.orderTimestamp = R.orderTimestamp " +
+             "JOIN Catalog C ON C.gameID = G.gameID WHERE %s GROUP BY R.rentalOrderID, R.orderTimestamp, R.totalPrice) O, " +
+             "LATERAL (SELECT O.subtotal - CASE WHEN O.units >= %d THEN (O.subtotal * %d + 5000) / 10000 ELSE 0 END AS net) D " +
+             "WHERE O.totalPrice * 100 <> D.net + (D.net * %d + 5000) / 10000;",
+             mine, pricing.discountUnits, pricing.discountBps, pricing.taxBps));
+          return found;
+       }
+
+       private void clean() throws SQLException {
+          esql.executeUpdateOnAllShards(String.format("DELETE FROM Users WHERE login LIKE '%s\\_%%';", prefix));
+          Map<String, Integer> copies = new HashMap<String, Integer>();
+          for (Map.Entry<String, LongAdder> game : rented.entrySet()) copies.put(game.getKey(), game.getValue().intValue());
+          esql.restock(esql.stockConnection(), copies);
+          System.out.println("Removed the stress users and returned their stock");
+       }
+    }//end StressTest
+
+    /**
+     * Streaming leaderboard of rented units per game. Every game keeps an
+     * all-time total and a ring of daily buckets covering the last
+     * WINDOW_DAYS days, so "top K overall / per genre / in the last N days"
+     * is answered from memory with a K-sized heap instead of a GROUP BY
+     * over the whole history.
+     */
+    static class TrendingBoard {
+       static final int WINDOW_DAYS = 365;
+
+       private static class Counter {
+          final String gameID;
+          final String genre;
+          long total = 0;
+          // epoch day held by each slot, and the units rented on that day
+          final long[] days = new long[WINDOW_DAYS];
+          final int[] units = new int[WINDOW_DAYS];
+
+          Counter(String gameID, String genre) {
+             this.gameID = gameID;
+             this.genre = genre;
+          }
+
+          long unitsSince(long fromDay) {
+             if (fromDay == Long.MIN_VALUE) return total;
+             long sum = 0;
+             for (int i = 0; i < WINDOW_DAYS; ++i)
+                if (days[i] >= fromDay && units[i] > 0) sum += units[i];
+             return sum;
+          }
+       }
+
+       private final Map<String, Counter> counters = new HashMap<String, Counter>();
+
+       /**
+        * Adds rented units for a game on the given epoch day. Days that fell
+        * out of the window only count towards the all-time total.
+        */
+       synchronized void add(String gameID, String genre, long day, int units, long today) {
+          Counter c = counters.get(gameID);
+          if (c == null) {
+             c = new Counter(gameID, genre);
+             counters.put(gameID, c);
+          }
+          c.total += units;
+          if (day > today - WINDOW_DAYS && day <= today) {
+             int slot = (int)Math.floorMod(day, (long)WINDOW_DAYS);
+             if (c.days[slot] != day) {
+                c.days[slot] = day;
+                c.units[slot] = 0;
+             }
+             c.units[slot] += units;
+          }
+       }
+
+       /**
+        * Returns up to k rows of (gameID, genre, units) ordered by units
+        * descending.
+        *
+        * @param genre only rank games of this genre, or null for all
+        * @param days  only count the last days days, or 0 for all time
+        */
+       synchronized List<List<String>> top(int k, String genre, int days) {
+          long fromDay = Long.MIN_VALUE;
+          if (days > 0)
+             fromDay = LocalDate.now().toEpochDay() - Math.min(days, WINDOW_DAYS) + 1;
+          PriorityQueue<long[]> heap = new PriorityQueue<long[]>(k + 1, (a, b) -> Long.compare(a[0], b[0]));
+          List<Counter> all = new ArrayList<Counter>(counters.values());
+          for (int i = 0; i < all.size(); ++i) {
+             Counter c = all.get(i);
+             if (genre != null && !c.genre.equalsIgnoreCase(genre)) continue;
+             long units = c.unitsSince(fromDay);
+             if (units <= 0) continue;
+             if (heap.size() < k) heap.add(new long[]{units, i});
+             else if (heap.peek()[0] < units) {
+                heap.poll();
+                heap.add(new long[]{units, i});
+             }
+          }
+          List<List<String>> result = new ArrayList<List<String>>();
+          while (!heap.isEmpty()) {
+             long[] e = heap.poll();
+             Counter c = all.get((int)e[1]);
+             List<String> row = new ArrayList<String>();
+             row.add(c.gameID);
+             row.add(c.genre);
+             row.add(Long.toString(e[0]));
+             result.add(row);
+          }
+          Collections.reverse(result);
+          return result;
+       }
+    }//end TrendingBoard
+
     /**
      * The main execution method
      *
      * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
      */
     public static void main (String[] args) {
-       if (args.length != 3) {
+       if (args.length >= 1 && args[0].equals("--bench-pricing")) {
+          PricingEngine.bench(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+          return;
+       }
+       if (args.length != 3 && !(args.length == 5 && args[3].equals("--reshard"))
+             && !(args.length == 4 && args[3].equals("--backfill-favorites"))
+             && !(args.length >= 4 && args.length <= 6 && args[3].equals("--stress"))) {
           System.err.println (
              "Usage: " +
              "java [-classpath <classpath>] " +
              GameRental.class.getName () +
-             " <dbname> <port> <user>");
+             " <dbname> <port> <user> [--reshard <host:port/db,...> | --backfill-favorites | --stress [threads [seconds]]]" +
+             " | --bench-pricing [carts]");
           return;
        }//end if
  
@@ -253,7 +5932,27 @@ import java.util.Random;
           String dbport = args[1];
           String user = args[2];
           esql = new GameRental (dbname, dbport, user, "");
- 
+          String command = args.length > 3 ? args[3] : "";
+          if (command.equals("--reshard")) {
+             new Resharder(esql, connectShards(args[4], user, "")).run();
+             return;
+          }
+          esql.seedTrending();
+          esql.loadInventory();
+          esql.loadCatalog();
+          if (command.equals("--stress")) {
+             new StressTest(esql, args, args.length > 4 ? Integer.parseInt(args[4]) : 8,
+                args.length > 5 ? Integer.parseInt(args[5]) : 30).run();
+             return;
+          }
+          if (command.equals("--backfill-favorites")) {
+             backfillFavorites(esql);
+             return;
+          }
+          esql.loadFavorites();
+          if (Boolean.getBoolean("gamerental.reminders"))
+             esql._reminders = new ReminderScheduler(esql);
+
           boolean keepon = true;
           while(keepon) {
              // These are sample SQL statements
@@ -292,16 +5991,31 @@ import java.util.Random;
                    if(role.equals("managers")){
                       System.out.println("10. Update Catalog");
                       System.out.println("11. Update User");
+                      System.out.println("12. Export Data");
+                      System.out.println("13. Bulk Update Users");
+                      System.out.println("14. Archive Old Orders");
+                      System.out.println("15. Reports");
+                      System.out.println("16. Promotion Audience");
                    }
                    //the following functionalities basically used by managers
                  }
  
                  System.out.println(".........................");
                  System.out.println("20. Log out");
-                 switch (readChoice()){
+                 int choice = readChoice();
+                 esql.useShardFor(authorisedUser);
+                 // catch up with other instances before acting
+                 if (esql.applyInvalidations(authorisedUser)) {
+                    role = CheckRole(esql,authorisedUser);
+                    if (role == null) {
+                       System.out.println("Your account was changed, please log in again");
+                       break;
+                    }
+                 }
+                 switch (choice){
                     case 1: viewProfile(esql,authorisedUser); break;
                     case 2: updateProfile(esql,authorisedUser); break;
-                    case 3: viewCatalog(esql); break;
+                    case 3: viewCatalog(esql,authorisedUser); break;
                     case 4: placeOrder(esql,authorisedUser); break;
                     case 5: viewAllOrders(esql); break;
                     case 6: viewRecentOrders(esql); break;
@@ -309,7 +6023,7 @@ import java.util.Random;
                     case 8: viewTrackingInfo(esql); break;
                     case 9: 
                       if(role.equals("employees") || role.equals("managers")){
-                         updateTrackingInfo(esql,role); 
+                         updateTrackingInfo(esql,role,authorisedUser); 
                       }
                       else{
                          System.out.println("For employees");
@@ -317,14 +6031,14 @@ import java.util.Random;
                       break;
                     case 10: 
                      if(role.equals("managers")){
-                        updateCatalog(esql);
+                        updateCatalog(esql,authorisedUser);
                      }
                      else{
                         System.out.println("For managers");
                      }
                      break;
                     case 11: 
-                    if(!(role.equals("managers"))){
+                    if(role.equals("managers")){
                       authorisedUser = updateUser  (esql,authorisedUser);
                       role=CheckRole(esql,authorisedUser);
                     }
@@ -332,7 +6046,47 @@ import java.util.Random;
                       System.out.println("For managers");
                     }
                     break;
-                    case 20: usermenu = false; break;
+                    case 12:
+                    if(role.equals("managers")){
+                      exportData(esql);
+                    }
+                    else{
+                      System.out.println("For managers");
+                    }
+                    break;
+                    case 13:
+                    if(role.equals("managers")){
+                      bulkUpdateUsers(esql,authorisedUser);
+                    }
+                    else{
+                      System.out.println("For managers");
+                    }
+                    break;
+                    case 14:
+                    if(role.equals("managers")){
+                      archiveOrders(esql);
+                    }
+                    else{
+                      System.out.println("For managers");
+                    }
+                    break;
+                    case 15:
+                    if(role.equals("managers")){
+                      viewReports(esql);
+                    }
+                    else{
+                      System.out.println("For managers");
+                    }
+                    break;
+                    case 16:
+                    if(role.equals("managers")){
+                      viewAudience(esql);
+                    }
+                    else{
+                      System.out.println("For managers");
+                    }
+                    break;
+                    case 20: usermenu = false; esql._audit.endSession(authorisedUser); break;
                     default : System.out.println("Unrecognized choice!"); break;
                  }
                }
@@ -387,6 +6141,7 @@ import java.util.Random;
        try{
           System.out.print("\tEnter ID: ");
           String ID = in.readLine();
+          esql.useShardFor(ID);
           System.out.print("\tEnter password: ");
           String password = in.readLine();
           System.out.print("\tEnter phoneNumber: ");
@@ -397,6 +6152,7 @@ import java.util.Random;
           esql.executeUpdate(query);
           query = String.format("INSERT INTO Customer (login) VALUES('%s')",ID);
           esql.executeUpdate(query);
+          esql.saveFavorites(ID, favGames);
           System.err.println("Finished");
        }  
        catch(Exception e){
@@ -413,6 +6169,7 @@ import java.util.Random;
        try{
           System.out.print("\tEnter ID:");
           String ID = in.readLine();
+          esql.useShardFor(ID);
           System.out.print("\tEnter password:");
           String password = in.readLine();
           String mySentence = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s';", ID,password); 
@@ -495,6 +6252,7 @@ import java.util.Random;
                 String favGames = in.readLine();
                 String query = String.format("UPDATE Users SET favGames = '%s' WHERE login='%s';",favGames,authorisedUser);
                 esql.executeUpdate(query);
+                esql.saveFavorites(authorisedUser, favGames);
                 System.out.println("Changed Favorite Games");
              break;
              default:
@@ -505,39 +6263,61 @@ import java.util.Random;
        }
     }
     
-    public static void viewCatalog(GameRental esql) {
+    static final ResultCache.Template CATALOG_GENRE = new ResultCache.Template("catalogGenre",
+       "SELECT * FROM Catalog WHERE genre='%s';", 300, "Catalog");
+
+    public static void viewCatalog(GameRental esql,String authorisedUser) {
        try{
           System.out.println("1.Print all Catalog");
           System.out.println("2.Search Catalog Base on genre");
           System.out.println("3.Search Catalog Base on price");
+          System.out.println("4.View Trending Games");
           switch (readChoice()) {
              case 1:
-                String query = String.format("SELECT * FROM Catalog");
-                int rowCount = esql.executeQueryAndPrintResult(query);
+                List<List<String>> games = esql._catalog.isLoaded()
+                   ? esql._catalog.all()
+                   : esql.executeQueryAndReturnResult(String.format("SELECT * FROM Catalog"));
+                esql._renderer.render(CatalogSnapshot.HEADER, games);
+                esql._audit.catalogViewed(authorisedUser, games);
              break;
              case 2:
                 System.out.print("Which Genre Are You looking for:");
                 String genre = in.readLine();
-                String query_2 = String.format("SELECT * FROM Catalog WHERE genre='%s';",genre);
-                int rowCount_2 = esql.executeQueryAndPrintResult(query_2);
+                List<List<String>> games_2 = esql._catalog.isLoaded()
+                   ? esql._catalog.byGenre(genre)
+                   : esql.cachedQuery(CATALOG_GENRE, genre);
+                esql._renderer.render(CatalogSnapshot.HEADER, games_2);
+                esql._audit.catalogViewed(authorisedUser, games_2);
              break;
              case 3:
                 System.out.print("Search game under this price:");
                 String price = in.readLine();
                 System.out.print("1.ascending order 2.descending order:");
                 String order = in.readLine();
-                if(order.equals("1")){
-                   String query_3 = String.format("SELECT * FROM Catalog WHERE price<%s ORDER BY price ASC;",price);
-                   int rowCount_3 = esql.executeQueryAndPrintResult(query_3);
-                }
-                else if (order.equals("2")){
-                   String query_3 = String.format("SELECT * FROM Catalog WHERE price<%s ORDER BY price DESC;",price);
-                   int rowCount_3 = esql.executeQueryAndPrintResult(query_3);
+                if(order.equals("1") || order.equals("2")){
+                   List<List<String>> games_3 = esql._catalog.isLoaded()
+                      ? esql._catalog.below(PricingEngine.parseCents(price), order.equals("2"))
+                      : esql.executeQueryAndReturnResult(String.format("SELECT * FROM Catalog WHERE price<%s ORDER BY price %s;",price,order.equals("1") ? "ASC" : "DESC"));
+                   esql._renderer.render(CatalogSnapshot.HEADER, games_3);
+                   esql._audit.catalogViewed(authorisedUser, games_3);
                 }
                 else{
                    System.out.println("wrong value");
                 }
              break;
+             case 4:
+                System.out.print("Which Genre(blank for all):");
+                String trendGenre = in.readLine().trim();
+                System.out.print("Past how many days(0 for all time):");
+                int days = Integer.parseInt(in.readLine().trim());
+                List<List<String>> top = esql._trending.top(10, trendGenre.isEmpty() ? null : trendGenre, days);
+                System.out.println("rank\tgameid\tgenre\tunits");
+                for (int i = 0; i < top.size(); ++i)
+                   System.out.println((i + 1) + "\t" + String.join("\t", top.get(i)));
+                if (top.isEmpty())
+                   System.out.println("No rentals in that window");
+                esql._audit.catalogViewed(authorisedUser, top);
+             break;
              default:
              break;
           }
@@ -557,37 +6337,47 @@ import java.util.Random;
          String a_ = in.readLine();
          int amount = Integer.parseInt(a_);
 
-         String query = String.format("SELECT price FROM Catalog WHERE gameID='%s'", gameID);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-
-         if (result.isEmpty() || result.get(0).isEmpty()) {
-             System.out.println("Game ID not found.");
-             return;
+         // price and genre from the catalog store, or the table if the game is not in it yet
+         String query;
+         long price;
+         String genre;
+         CatalogStore.Game game = esql._catalog.store().cursor();
+         if (game.moveTo(gameID)) {
+             price = game.price();
+             genre = game.genre();
+         } else {
+             query = String.format("SELECT price, genre FROM Catalog WHERE gameID='%s'", gameID);
+             List<List<String>> result = esql.executeQueryAndReturnResult(query);
+             if (result.isEmpty() || result.get(0).isEmpty()) {
+                 System.out.println("Game ID not found.");
+                 return;
+             }
+             price = PricingEngine.parseCents(result.get(0).get(0));
+             genre = result.get(0).get(1).trim();
          }
 
-         float price = Float.parseFloat(result.get(0).get(0));
-         System.out.println("price: " + price);
-
-         if (price > 0) {
-             System.out.println(String.format("Total Price is %s", price * amount));
-             int rentalOrderID = Math.abs(ThreadLocalRandom.current().nextInt() % 99999);
-             Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-             Calendar calendar = Calendar.getInstance();
-             calendar.setTime(currentTimestamp);
-             calendar.add(Calendar.DAY_OF_MONTH, 14);
-            Timestamp timestampDue = new Timestamp(calendar.getTimeInMillis());
-             query = String.format("INSERT INTO RentalOrder (rentalOrderID, login, noOfGames, totalPrice, orderTimestamp, dueDate) VALUES ('%s', '%s', '%s', '%s', '%s', '%s');",
-                     rentalOrderID, authorisedUser, amount, price * amount, currentTimestamp, timestampDue);
-             esql.executeUpdate(query);
-
-             int trackingID = Math.abs(ThreadLocalRandom.current().nextInt() % 99999);
-             query = String.format("INSERT INTO TrackingInfo (trackingID, rentalOrderID, status, currentLocation, courierName, lastUpdateDate, additionalComments) VALUES ('%s', '%s', '%s', '%s', '%s', '%s', '%s');",
-                     trackingID, rentalOrderID, "ordered", "shop", "Name", currentTimestamp, " ");
-             esql.executeUpdate(query);
-
-             query = String.format("INSERT INTO GamesInOrder (rentalOrderID, gameID, unitsOrdered) VALUES ('%s', '%s', '%s');",
-                     rentalOrderID, gameID, amount);
-             esql.executeUpdate(query);
+         esql._audit.catalogViewed(authorisedUser, gameID);
+         System.out.println("price: " + PricingEngine.format(price));
+
+         if (price > 0 && amount > 0) {
+             PricingEngine.Cart cart = esql._cart;
+             cart.clear();
+             if (!esql._pricing.add(cart, gameID, amount)) cart.add(price, amount);
+             esql._pricing.price(cart);
+             esql._pricing.quote(cart);
+             String total = PricingEngine.format(cart.total);
+             System.out.println(String.format("Total Price is %s", total));
+             if (cart.discount > 0 || cart.tax > 0)
+                System.out.println(String.format("(%s, discount %s, tax %s)", PricingEngine.format(cart.subtotal), PricingEngine.format(cart.discount), PricingEngine.format(cart.tax)));
+             System.out.println(String.format("Late fee %s per day past the due date", PricingEngine.format(esql._pricing.lateFeePerDay(cart))));
+             // the order takes the copies, so two sessions cannot both rent the last ones
+             String[] placed = insertOrder(esql, authorisedUser, gameID, amount, total);
+             if (placed == null) {
+                 System.out.println(String.format("Not enough stock, %d left.", esql._inventory.onHand(gameID)));
+                 return;
+             }
+             String rentalOrderID = placed[0];
+             esql._trending.add(gameID, genre, LocalDate.now().toEpochDay(), amount, LocalDate.now().toEpochDay());
              
                query = String.format("SELECT * FROM RentalOrder WHERE login='%s';", authorisedUser);
              // Execute the query and print the results
@@ -605,21 +6395,192 @@ import java.util.Random;
          System.out.println("An error occurred: " + e.getMessage());
      }
     }
+
+    // SQLState of the exception insertOrder rolls back with when the stock ran out
+    static final String OUT_OF_STOCK = "23514";
+
+    // order placements retried, by failureKind: collisions ("duplicate"), deadlocks and serialization failures
+    static final ConcurrentHashMap<String, LongAdder> orderRetries = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * Classifies a failed statement for retrying.
+     *
+     * @return "deadlock", "serialization", "duplicate", "foreign key" or "other"
+     */
+    static String failureKind(SQLException e) {
+       String state = e.getSQLState() == null ? "" : e.getSQLState();
+       String message = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
+       if (state.equals("40P01") || message.contains("deadlock detected")) return "deadlock";
+       if (state.equals("40001") || message.contains("could not serialize")) return "serialization";
+       if (state.equals("23505") || message.contains("duplicate key")) return "duplicate";
+       if (state.equals("23503") || message.contains("foreign key")) return "foreign key";
+       return "other";
+    }//end failureKind
+
+    /*
+     * Inserts an order, its line, its shipment and the shipment's first
+     * tracking event, and takes the copies from Inventory (see
+     * reserveStock), as one transaction. When the stock lives on another
+     * shard than the login, the two parts commit together through
+     * onShards. The keys of the partitioned tables include orderTimestamp,
+     * so the random rentalOrderID and trackingID (see newId) are checked to
+     * be unused, here while holding an advisory lock on each and on the
+     * other shards for IDs issued under an earlier shard count; a
+     * collision, deadlock or serialization failure rolls back and retries
+     * with new IDs, up to gamerental.orderRetries (default 5) times. Other
+     * failures, such as the login having been renamed meanwhile, are thrown.
+     *
+     * Inside a transaction the caller already has open, the insert is a
+     * savepoint of it instead, left for the caller to commit; only a
+     * collision is retried there, as a deadlock or serialization failure
+     * dooms the caller's transaction too and is thrown. Copies taken on a
+     * separate stock shard then commit on their own, and are put back if
+     * the order fails.
+     *
+     * @return the rentalOrderID and trackingID, or null when fewer than
+     * amount copies are on hand
+     **/
+    static String[] insertOrder(GameRental esql, String login, String gameID, int amount, String total) throws SQLException {
+       int retries = Integer.getInteger("gamerental.orderRetries", 5);
+       Connection owner = esql._connection;
+       Connection stock = esql.stockConnection();
+       boolean inTransaction = !owner.getAutoCommit();
+       List<Connection> parts = stock == owner ? Collections.singletonList(owner) : Arrays.asList(owner, stock);
+       for (int attempt = 0; ; ++attempt) {
+          String rentalOrderID = newId(esql, login);
+          String trackingID = newId(esql, login);
+          Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
+          Calendar calendar = Calendar.getInstance();
+          calendar.setTime(currentTimestamp);
+          calendar.add(Calendar.DAY_OF_MONTH, 14);
+          Timestamp timestampDue = new Timestamp(calendar.getTimeInMillis());
+          boolean[] reserved = {false};
+          if (inTransaction) esql.executeUpdate("SAVEPOINT insert_order;");
+          try{
+             esql.onShards(parts, shard -> {
+                if (shard == stock) {
+                   if (esql.reserveStock(shard, gameID, amount) < 0) throw new SQLException("Not enough stock of " + gameID, OUT_OF_STOCK);
+                   reserved[0] = true;
+                }
+                if (shard != owner) return;
+                esql.executeQueryAndReturnResult(String.format(
+                   "SELECT pg_advisory_xact_lock(hashtext('RentalOrder:%s')), pg_advisory_xact_lock(hashtext('TrackingInfo:%s'));", rentalOrderID, trackingID));
+                String used = esql.executeQueryAndReturnResult(String.format(
+                   "SELECT (SELECT COUNT(*) FROM RentalOrder WHERE rentalOrderID = '%s') + (SELECT COUNT(*) FROM TrackingInfo WHERE trackingID = '%s');",
+                   rentalOrderID, trackingID)).get(0).get(0).trim();
+                if (!used.equals("0") || usedElsewhere(esql, rentalOrderID, trackingID)) throw new SQLException("duplicate key " + rentalOrderID + "/" + trackingID, "23505");
+                esql.executeUpdate(String.format("INSERT INTO RentalOrder (rentalOrderID, login, noOfGames, totalPrice, orderTimestamp, dueDate) VALUES ('%s', '%s', '%s', '%s', '%s', '%s');",
+                   rentalOrderID, login, amount, total, currentTimestamp, timestampDue));
+                esql.executeUpdate(String.format("INSERT INTO TrackingInfo (trackingID, rentalOrderID, status, currentLocation, courierName, lastUpdateDate, additionalComments, orderTimestamp) VALUES ('%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s');",
+                   trackingID, rentalOrderID, "ordered", "shop", "Name", currentTimestamp, " ", currentTimestamp));
+                esql.executeUpdate(String.format("INSERT INTO TrackingEvent (trackingID, eventTime, status, currentLocation, courierName, login) VALUES ('%s', '%s', '%s', '%s', '%s', '%s');",
+                   trackingID, currentTimestamp, "ordered", "shop", "Name", login));
+                esql.executeUpdate(String.format("INSERT INTO GamesInOrder (rentalOrderID, gameID, unitsOrdered, orderTimestamp) VALUES ('%s', '%s', '%s', '%s');",
+                   rentalOrderID, gameID, amount, currentTimestamp));
+             });
+             if (inTransaction) esql.executeUpdate("RELEASE SAVEPOINT insert_order;");
+             return new String[]{rentalOrderID, trackingID};
+          }catch (SQLException e){
+             if (inTransaction) {
+                try{
+                   esql.executeUpdate("ROLLBACK TO SAVEPOINT insert_order;");
+                   if (reserved[0] && stock != owner && stock.getAutoCommit())
+                      esql.restock(stock, Collections.singletonMap(gameID, amount));
+                }catch (SQLException ignored){
+                }
+             }
+             if (OUT_OF_STOCK.equals(e.getSQLState())) return null;
+             if (failureKind(e).equals("other") || failureKind(e).equals("foreign key") || attempt >= retries) throw e;
+             if (inTransaction && !failureKind(e).equals("duplicate")) throw e;
+             orderRetries.computeIfAbsent(failureKind(e), k -> new LongAdder()).increment();
+             try{
+                Thread.sleep(ThreadLocalRandom.current().nextInt(1, 10 << Math.min(attempt, 5)));
+             }catch (InterruptedException ie){
+                Thread.currentThread().interrupt();
+                throw e;
+             }
+          }
+       }
+    }//end insertOrder
+
+    /*
+     * Whether a shard other than the current one already has rentalOrderID
+     * or trackingID.
+     **/
+    static boolean usedElsewhere(GameRental esql, String rentalOrderID, String trackingID) throws SQLException {
+       for (Connection shard : esql._shards) {
+          if (shard == esql._connection) continue;
+          try (Statement stmt = shard.createStatement()) {
+             ResultSet rs = stmt.executeQuery(String.format(
+                "SELECT EXISTS (SELECT 1 FROM RentalOrder WHERE rentalOrderID = '%s') OR EXISTS (SELECT 1 FROM TrackingInfo WHERE trackingID = '%s');",
+                rentalOrderID, trackingID));
+             if (rs.next() && rs.getBoolean(1)) return true;
+          }
+       }
+       return false;
+    }//end usedElsewhere
+
+    static final String[] HISTORY_HEADER = {"rentalorderid", "ordertimestamp", "duedate", "totalprice"};
+
+    static final ResultCache.Template ORDERS_IN_YEAR = new ResultCache.Template("ordersInYear",
+       "SELECT rentalOrderID, orderTimestamp, dueDate, totalPrice FROM RentalOrder WHERE login='%s' AND orderTimestamp >= '%d-01-01' AND orderTimestamp < '%d-01-01' ORDER BY orderTimestamp DESC;",
+       60, "RentalOrder");
+
+    static final ResultCache.Template OLDEST_ORDER_YEAR = new ResultCache.Template("oldestOrderYear",
+       "SELECT EXTRACT(YEAR FROM MIN(orderTimestamp))::integer FROM RentalOrder WHERE login='%s';",
+       60, "RentalOrder");
+
+    /*
+     * The orders login placed in year, newest first. The range on
+     * orderTimestamp keeps the query to one partition; archived orders are
+     * read only for years login has orders archived in.
+     **/
+    static List<List<String>> ordersInYear(GameRental esql, String login, int year, OrderArchive archive) throws Exception {
+       List<List<String>> orders = new ArrayList<List<String>>(esql.cachedQuery(ORDERS_IN_YEAR, login, year, year + 1));
+       if (archive.years(login).contains(year)) {
+          Set<String> live = new HashSet<String>();
+          for (List<String> order : orders) live.add(order.get(0).trim());
+          for (List<String> order : archive.orders(login.trim(), year))
+             if (!live.contains(order.get(0).trim())) orders.add(order);
+          orders.sort((a, b) -> b.get(1).compareTo(a.get(1)));
+       }
+       return orders;
+    }//end ordersInYear
+
+    /*
+     * The year of the oldest order login has, live or archived, or -1.
+     **/
+    static int oldestOrderYear(GameRental esql, String login, OrderArchive archive) throws Exception {
+       String oldest = esql.cachedQuery(OLDEST_ORDER_YEAR, login).get(0).get(0);
+       SortedSet<Integer> archived = archive.years(login);
+       int year = Math.min(oldest == null ? Integer.MAX_VALUE : Integer.parseInt(oldest.trim()),
+          archived.isEmpty() ? Integer.MAX_VALUE : archived.first());
+       return year == Integer.MAX_VALUE ? -1 : year;
+    }//end oldestOrderYear
+
     public static void viewAllOrders(GameRental esql) {
        try {
              // Get the logged-in user
              System.out.print("Enter your login to view your rental history: ");
              String login = in.readLine();
+             esql.useShardFor(login);
  
-             // Construct the query to fetch rental orders in an order based on timestamp
-             String query = String.format("SELECT rentalOrderID, orderTimestamp, dueDate, totalPrice FROM RentalOrder WHERE login='%s' ORDER BY orderTimestamp DESC;", login);
-             
-             // Execute the query and print the results
-             int rowCount = esql.executeQueryAndPrintResult(query);
-             
-             // Check if any rental orders were found
-             if (rowCount == 0) {
+             // one year at a time, newest first, so old partitions and the archive are only read on request
+             OrderArchive archive = esql._archive;
+             int oldest = oldestOrderYear(esql, login, archive);
+             if (oldest < 0) {
                  System.out.println("No rental history found for the user: " + login);
+                 return;
+             }
+             for (int year = LocalDate.now().getYear(); year >= oldest; --year) {
+                 List<List<String>> orders = ordersInYear(esql, login, year, archive);
+                 if (orders.isEmpty()) continue;
+                 System.out.println(year + ":");
+                 esql._renderer.render(HISTORY_HEADER, orders);
+                 if (year > oldest) {
+                    System.out.print("Enter for older orders, q to stop:");
+                    if (in.readLine().trim().equalsIgnoreCase("q")) break;
+                 }
              }
          } catch (Exception e) {
              System.err.println(e.getMessage());
@@ -630,19 +6591,24 @@ import java.util.Random;
              // Get the logged-in user from the session
              System.out.print("Enter your login to view your 5 most recent rental history: ");
              String login = in.readLine();
+             esql.useShardFor(login);
              
              //String login = esql.currentUser;
  
-             // Construct the query to fetch the five most recent rental orders in an order based on timestamp
-             String query = String.format("SELECT rentalOrderID, orderTimestamp, dueDate, totalPrice FROM RentalOrder WHERE login='%s' ORDER BY orderTimestamp DESC LIMIT 5;", login);
-             
-             // Execute the query and print the results
-             int rowCount = esql.executeQueryAndPrintResult(query);
+             // walk back a year (one partition) at a time until five orders are found
+             OrderArchive archive = esql._archive;
+             int oldest = oldestOrderYear(esql, login, archive);
+             List<List<String>> recent = new ArrayList<List<String>>();
+             for (int year = LocalDate.now().getYear(); oldest >= 0 && year >= oldest && recent.size() < 5; --year)
+                 recent.addAll(ordersInYear(esql, login, year, archive));
              
              // Check if any rental orders were found
-             if (rowCount == 0) {
+             if (recent.isEmpty()) {
                  System.out.println("No recent orders found for the user: " + login);
              }
+             else {
+                 esql._renderer.render(HISTORY_HEADER, recent.subList(0, Math.min(5, recent.size())));
+             }
          } catch (Exception e) {
              System.err.println(e.getMessage());
          }
@@ -651,67 +6617,133 @@ import java.util.Random;
        try{
           System.out.println("Enter your login");
           String userLogin = in.readLine();
+          esql.useShardFor(userLogin);
           //using rental orderID to check for a specific order
           System.out.println("Enter rental order ID");
           String rentalorderID = in.readLine();
-          //verify it is the correct user 
-          String verification_query = String.format("SELECT * FROM RentalOrder WHERE rentalOrderID = '%s' AND login = '%s';", rentalorderID, userLogin);
-          int rows_affected = esql.executeQuery(verification_query);
- 
-          // retrieves rental order details if one or more exists
-          if (rows_affected > 0){
-             String rentalOrderDetailsQuery = String.format("SELECT rentalorderID, orderTimestamp, dueDate, totalPrice FROM RentalOrder WHERE rentalOrderID = '%s';",rentalorderID);
-             esql.executeQueryAndReturnResult(rentalOrderDetailsQuery);
- 
-             String trackingInfoQuery = String.format("SELECT trackingID FROM TrackingInfo WHERE rentalOrderID = '%s';", rentalorderID); 
-             esql.executeQueryAndPrintResult(trackingInfoQuery);
- 
-             String gamesListQuery = String.format(
-                 "SELECT gameID, gameName, genre " +
-                 "FROM Catalog " +
-                 "WHERE gameID IN (SELECT gameID FROM GamesInOrder WHERE rentalOrderID = '%s');",rentalorderID);       
-                  esql.executeQueryAndPrintResult(gamesListQuery);
-             } 
-             else {
-                System.out.println("No such rental order found for the given login.");
-             }
+          // only the owner's orders are found
+          OrderDetail order = esql.orderDetail(rentalorderID, userLogin);
+          if (order != null) {
+             order.print(esql._renderer);
+          }
+          else {
+             System.out.println("No such rental order found for the given login.");
           }
-          catch (Exception e) {
-             System.err.println(e.getMessage());
+       }
+       catch (Exception e) {
+          System.err.println(e.getMessage());
        }
     }
 
+    static final String[] STATUS_HEADER = {"trackingid", "rentalorderid", "status", "currentlocation", "couriername", "lastupdatedate"};
+    static final String[] TIMELINE_HEADER = {"eventtime", "status", "currentlocation", "couriername", "additionalcomments", "login"};
+
+    static final ResultCache.Template TRACKING_STATUS = new ResultCache.Template("trackingStatus",
+       "SELECT T.trackingID, T.rentalOrderID, L.status, L.currentLocation, L.courierName, L.lastUpdateDate " +
+       "FROM TrackingLatest L, TrackingInfo T, RentalOrder R " +
+       "WHERE L.trackingID='%s' AND T.trackingID=L.trackingID AND T.rentalOrderID=R.rentalOrderID AND R.login='%s';",
+       10, "TrackingLatest", "TrackingEvent", "TrackingInfo", "RentalOrder");
+
+    static final ResultCache.Template TRACKING_TIMELINE = new ResultCache.Template("trackingTimeline",
+       "SELECT E.eventTime, E.status, E.currentLocation, E.courierName, E.additionalComments, E.login " +
+       "FROM TrackingEvent E, TrackingInfo T, RentalOrder R " +
+       "WHERE E.trackingID='%s' AND T.trackingID=E.trackingID AND T.rentalOrderID=R.rentalOrderID AND R.login='%s' " +
+       "ORDER BY E.eventTime, E.eventNo;",
+       10, "TrackingEvent", "TrackingInfo", "RentalOrder");
+
     public static void viewTrackingInfo(GameRental esql) {
         try {
              // Get the logged-in user so they cannot access other data
              System.out.println("Enter your login");
              String userLogin = in.readLine();
+             esql.useShardFor(userLogin);
  
              // Ask the user to input a trackingID
              System.out.print("Enter the trackingID to view tracking information: ");
              String trackingID = in.readLine();
+             System.out.print("1.Current status 2.Full timeline:");
+             String view = in.readLine().trim();
  
-             // Construct the query to fetch tracking information for the given trackingID and ensure it belongs to the logged-in user
-             String query = String.format(
-                 "SELECT T.trackingID, T.rentalOrderID, T.status, T.currentLocation, T.courierName, T.lastUpdateDate, T.additionalComments " +
-                 "FROM TrackingInfo T, RentalOrder R " +
-                 "WHERE T.trackingID='%s' AND T.rentalOrderID=R.rentalOrderID AND R.login='%s';", 
-                 trackingID, userLogin);
- 
-             // Execute the query and print the results
-             int rowCount = esql.executeQueryAndPrintResult(query);
+             // tracking information for the given trackingID, only if it belongs to the logged-in user
+             List<List<String>> rows;
+             if (view.equals("2")) {
+                rows = esql.cachedQuery(TRACKING_TIMELINE, trackingID, userLogin);
+                esql._renderer.render(TIMELINE_HEADER, rows, System.console() != null);
+             }
+             else {
+                rows = esql.cachedQuery(TRACKING_STATUS, trackingID, userLogin);
+                esql._renderer.render(STATUS_HEADER, rows, System.console() != null);
+             }
  
              // Check if any tracking information was found
-             if (rowCount == 0) {
+             if (rows.isEmpty()) {
                  System.out.println("No tracking information found for the trackingID: " + trackingID);
              }
          } catch (Exception e) {
              System.err.println(e.getMessage());
          }
      }
-    public static void updateTrackingInfo(GameRental esql,String role) {
+    static boolean isReturned(String status) {
+       return status != null && status.trim().toLowerCase().startsWith("returned");
+    }
+
+    /*
+     * Appends one tracking event per shipment, all in a single INSERT. Only
+     * the given column is set; the trigger on TrackingEvent folds it into
+     * TrackingLatest. Shipments that are not on a shard are filtered out by
+     * the join, so the statement can go to every shard.
+     **/
+    static void appendTrackingEvents(GameRental esql, String worker, String column, String value, List<String> trackingIDs) throws SQLException {
+       esql.executeUpdateOnAllShards(trackingEvents(worker, column, value, trackingIDs));
+    }//end appendTrackingEvents
+
+    static String trackingEvents(String worker, String column, String value, List<String> trackingIDs) {
+       return String.format(
+          "INSERT INTO TrackingEvent (trackingID, login, %s) SELECT T.trackingID, '%s', '%s' FROM TrackingInfo T WHERE T.trackingID IN (%s);",
+          column, worker.trim(), value.replace("'", "''"), quotedList(trackingIDs));
+    }//end trackingEvents
+
+    /*
+     * Marks shipments returned and puts their games back on the shelf, the
+     * first time only. Each shard locks the latest state of its shipments
+     * before reading it, so of two workers returning the same shipment the
+     * second waits and then sees it returned already; the events and the
+     * restock commit as one transaction (see onShards), the stock shard
+     * last, once every shard has said which of its shipments came back.
+     **/
+    static void returnShipments(GameRental esql, String worker, String status, List<String> trackingIDs) throws SQLException {
+       Connection stock = esql.stockConnection();
+       List<Connection> parts = new ArrayList<Connection>(esql.isSharded() ? esql._shards : Collections.singletonList(esql._connection));
+       parts.remove(stock);
+       parts.add(stock);
+       Map<String, Integer> copies = new HashMap<String, Integer>();
+       esql.onShards(parts, shard -> {
+          List<String> returned = new ArrayList<String>();
+          for (List<String> shipment : esql.executeQueryAndReturnResult(String.format(
+                "SELECT trackingID, status FROM TrackingLatest WHERE trackingID IN (%s) ORDER BY trackingID FOR UPDATE;", quotedList(trackingIDs))))
+             if (!isReturned(shipment.get(1))) returned.add(shipment.get(0).trim());
+          esql.executeUpdate(trackingEvents(worker, "status", status, trackingIDs));
+          if (!returned.isEmpty()) {
+             for (List<String> game : esql.executeQueryAndReturnResult(String.format(
+                   "SELECT G.gameID, G.unitsOrdered FROM GamesInOrder G, TrackingInfo T WHERE T.trackingID IN (%s) " +
+                   "AND G.rentalOrderID=T.rentalOrderID AND G.orderTimestamp=T.orderTimestamp;", quotedList(returned))))
+                copies.merge(game.get(0).trim(), Integer.parseInt(game.get(1).trim()), Integer::sum);
+          }
+          if (shard == stock && !copies.isEmpty()) esql.restock(shard, copies);
+       });
+    }//end returnShipments
+
+    static String quotedList(List<String> values) {
+       StringBuilder list = new StringBuilder();
+       for (String value : values)
+          list.append(list.length() == 0 ? "" : ",").append('\'').append(value.replace("'", "''")).append('\'');
+       return list.toString();
+    }//end quotedList
+
+    public static void updateTrackingInfo(GameRental esql,String role,String worker) {
        try {
-          if (!role.equals("employee") && !role.equals("manager")) {
+          // the roles as CheckRole returns them
+          if (!"employees".equals(role) && !"managers".equals(role)) {
                  System.out.println("You do not have permission to update tracking information.");
                  return;
              }
@@ -720,60 +6752,40 @@ import java.util.Random;
           System.out.println("2.Update currentLocation");
           System.out.println("3.Update courierName");
           System.out.println("4.Update additionalComments");
-          switch(readChoice()){
-             case 1:
-             System.out.print("Enter the new status");
-             String status = in.readLine();
-             System.out.print("Enter the trackingID to view tracking information: ");
-             String trackingID = in.readLine();
-             String query1 = String.format("UPDATE TrackingInfo SET status='%s', lastUpdateDate=CURRENT_TIMESTAMP WHERE trackingID='%s';",status, trackingID);
-             esql.executeUpdate(query1);
-             System.out.println("New status sucessfully updated");
-          break;
-             case 2:
-             System.out.print("Enter the new currentLocation");
-             String currentLocation = in.readLine();
-            System.out.print("Enter the trackingID to view tracking information: ");
-             String trackingID_2 = in.readLine();
-             String query2 = String.format(
-                     "UPDATE TrackingInfo SET currentLocation='%s', lastUpdateDate=CURRENT_TIMESTAMP WHERE trackingID='%s';",
-                     currentLocation, trackingID_2);
-             esql.executeUpdate(query2);
-             System.out.println("New currentLocation sucessfully updated");
-          break;
-          case 3:
-             System.out.print("Enter the new courierName");
-             String courierName = in.readLine();
-             System.out.print("Enter the trackingID to view tracking information: ");
-             String trackingID_3 = in.readLine();
-             String query3 = String.format(
-                     "UPDATE TrackingInfo SET courierName='%s', lastUpdateDate=CURRENT_TIMESTAMP WHERE trackingID='%s';",
-                     courierName, trackingID_3);
-             esql.executeUpdate(query3);
-             System.out.println("New courierName sucessfully updated");
-          break;
-          case 4:
-             System.out.print("Enter the new additionalComments");
-             String additionalComments = in.readLine();
-             System.out.print("Enter the trackingID to view tracking information: ");
-             String trackingID_4 = in.readLine();
-             String query4 = String.format(
-                     "UPDATE TrackingInfo SET additionalComments='%s', lastUpdateDate=CURRENT_TIMESTAMP WHERE trackingID='%s';",
-                     additionalComments, trackingID_4);
-             esql.executeUpdate(query4);
-             System.out.println("New additionalComments sucessfully updated");
-          break;
+          String[] columns = {"status", "currentLocation", "courierName", "additionalComments"};
+          int choice = readChoice();
+          if (choice < 1 || choice > columns.length) return;
+          String column = columns[choice - 1];
+          System.out.print("Enter the new " + column);
+          String value = in.readLine();
+          System.out.print("Enter the trackingIDs to update (separate several with commas): ");
+          List<String> trackingIDs = new ArrayList<String>();
+          for (String trackingID : in.readLine().split(","))
+             if (!trackingID.trim().isEmpty() && !trackingIDs.contains(trackingID.trim()))
+                trackingIDs.add(trackingID.trim());
+          if (trackingIDs.isEmpty()) {
+             System.out.println("No trackingID given");
+             return;
           }
+          if (column.equals("status") && isReturned(value)) returnShipments(esql, worker, value, trackingIDs);
+          else appendTrackingEvents(esql, worker, column, value, trackingIDs);
+          esql._orders.invalidate(trackingIDs);
+          for (String trackingID : trackingIDs)
+             esql._audit.trackingUpdated(worker, trackingID);
+          System.out.println(String.format("New %s sucessfully updated", column));
           }
           catch (Exception e) {
              System.err.println(e.getMessage());
           }
        }
-    public static void updateCatalog(GameRental esql) {
+    public static void updateCatalog(GameRental esql,String worker) {
        try {
           System.out.println("1.Add new game");
           System.out.println("2.Change info of game");
           System.out.println("3.Remove game from catalog");
+          System.out.println("4.Restock game");
+          System.out.println("5.Reprice games by genre or platform");
+          System.out.println("6.Import games from CSV");
           switch (readChoice()) {
              case 1:
                      System.out.print("Enter game ID: ");
@@ -783,40 +6795,103 @@ import java.util.Random;
                      System.out.print("Enter genre: ");
                      String genre = in.readLine();
                      System.out.print("Enter price: ");
-                     Float price = new Float(in.readLine());
+                     BigDecimal price = new BigDecimal(in.readLine().trim());
                      System.out.print("Enter description: ");
                      String description = in.readLine();
                      System.out.print("Enter image URL: ");
                      String imageURL = in.readLine();
-                     String query = String.format("INSERT INTO Catalog (gameID, gameName, genre, price, description, imageURL) VALUES ('%s', '%s','%s', '%s', '%s', '%s')", gameID,gameName,genre,price,description,imageURL);
-                     esql.executeUpdate(query);
+                     String query = String.format("INSERT INTO Catalog (gameID, gameName, genre, price, description, imageURL) VALUES ('%s', '%s','%s', '%s', '%s', '%s')", gameID,gameName,genre,price.toPlainString(),description,imageURL);
+                     esql.executeUpdateOnAllShards(query);
+                     query = String.format("INSERT INTO Inventory (gameID, onHand) VALUES ('%s', 0)", gameID);
+                     esql.executeUpdateOnAllShards(query);
+                     esql._inventory.track(gameID, 0);
+                     esql.loadCatalog();
+                     esql._audit.catalogUpdated(worker, gameID);
                      System.out.println("Finished");
                      break;
              case 2:
-             System.out.print("Enter game ID to update: ");
+               System.out.print("Enter game ID to update: ");
                String gameID_2 = in.readLine();
-
-               System.out.print("Enter new game name: ");
-               String gameName_2 = in.readLine();
-               System.out.print("Enter new genre: ");
-               String genre_2 = in.readLine();
-               System.out.print("Enter new price: ");
-               BigDecimal price_2 = new BigDecimal(in.readLine());
-               System.out.print("Enter new description: ");
-               String description_2 = in.readLine();
-               System.out.print("Enter new image URL: ");
-               String imageURL_2 = in.readLine();
-               String query_2 = String.format("UPDATE Catalog SET gameName = '%s', genre = '%s', price = '%s', description = '%s', imageURL = '%s' WHERE gameID = '%s'", gameID_2,gameName_2,genre_2,price_2,description_2,imageURL_2);
-               esql.executeUpdate(query_2);
+               System.out.println("Leave a field blank to keep its value");
+               String[][] fields = {
+                  {"gameName", "Enter new game name: "},
+                  {"genre", "Enter new genre: "},
+                  {"price", "Enter new price: "},
+                  {"description", "Enter new description: "},
+                  {"imageURL", "Enter new image URL: "}};
+               List<String> changes = new ArrayList<String>();
+               for (String[] field : fields) {
+                  System.out.print(field[1]);
+                  String value = in.readLine();
+                  if (value.trim().isEmpty()) continue;
+                  if (field[0].equals("price"))
+                     value = new BigDecimal(value.trim()).toPlainString();
+                  changes.add(String.format("%s = '%s'", field[0], value.replace("'", "''")));
+               }
+               if (changes.isEmpty()) {
+                  System.out.println("Nothing to change");
+                  break;
+               }
+               String query_2 = String.format("UPDATE Catalog SET %s WHERE gameID = '%s'", String.join(", ", changes), gameID_2);
+               esql.executeUpdateOnAllShards(query_2);
+               esql.loadCatalog();
+               esql._audit.catalogUpdated(worker, gameID_2);
                System.out.println("Finished");
              break;
              case 3:
                System.out.print("Enter game ID to remove: ");
                String gameID_3 = in.readLine();
-               String query_3= String.format("DELETE FROM Catalog WHERE gameID = '%s", gameID_3);
-               esql.executeUpdate(query_3);
+               String query_3= String.format("DELETE FROM Catalog WHERE gameID = '%s'", gameID_3);
+               esql.executeUpdateOnAllShards(query_3);
+               esql.loadCatalog();
+               System.out.println("Finished");
+               break;
+             case 4:
+               System.out.print("Enter game ID to restock: ");
+               String gameID_4 = in.readLine();
+               System.out.print("How many copies arrived: ");
+               int copies = Integer.parseInt(in.readLine());
+               if (copies > 0 && esql.restock(esql.stockConnection(), Collections.singletonMap(gameID_4, copies)) == 1) {
+                  esql._audit.catalogUpdated(worker, gameID_4);
+                  System.out.println(String.format("%d on hand", esql._inventory.onHand(gameID_4)));
+               }
+               else {
+                  System.out.println("wrong value");
+               }
+               break;
+             case 5:
+               System.out.print("1.by genre 2.by platform:");
+               String by = in.readLine().trim();
+               System.out.print(by.equals("2") ? "Which platform:" : "Which genre:");
+               String group = in.readLine().trim().replace("'", "''");
+               System.out.print("1.percentage 2.absolute amount:");
+               String kind = in.readLine().trim();
+               System.out.print("Change by (negative to lower):");
+               BigDecimal change = new BigDecimal(in.readLine().trim());
+               if (!(by.equals("1") || by.equals("2")) || !(kind.equals("1") || kind.equals("2"))) {
+                  System.out.println("wrong value");
+                  break;
+               }
+               String matching = by.equals("1")
+                  ? String.format("genre = '%s'", group)
+                  : String.format("description LIKE '%%Platform: %s;%%'", group);
+               String newPrice = kind.equals("1")
+                  ? String.format("GREATEST(ROUND(price * (100 + %s) / 100, 2), 0)", change.toPlainString())
+                  : String.format("GREATEST(price + %s, 0)", change.toPlainString());
+               // one statement per database; the catalog cache catches up once afterwards
+               esql.executeUpdateOnAllShards(String.format("UPDATE Catalog SET price = %s WHERE %s AND price <> %s", newPrice, matching, newPrice));
+               esql.executeUpdateOnAllShards(String.format("INSERT INTO Worker_Catalog_updates (login, gameID) SELECT U.login, C.gameID FROM Users U, Catalog C WHERE U.login = '%s' AND C.%s ON CONFLICT DO NOTHING", worker.trim(), matching));
+               esql.loadCatalog();
                System.out.println("Finished");
                break;
+             case 6:
+               System.out.print("CSV file(gameID,gameName,genre,price,description,imageURL with a header):");
+               String path = in.readLine().trim();
+               long staged = new CatalogImporter(esql).load(path, worker);
+               esql.loadInventory();
+               esql.loadCatalog();
+               System.out.println(String.format("%d games imported", staged));
+               break;
              default:
                 break;
           }
@@ -825,6 +6900,401 @@ import java.util.Random;
        }
 
     }
+    /*
+     * Exports orders, tracking or the catalog to a CSV or binary columnar file
+     **/
+    public static void exportData(GameRental esql) {
+       try{
+          String[][] tables = {
+             {"RentalOrder", "rentalOrderID"},
+             {"GamesInOrder", "rentalOrderID"},
+             {"TrackingInfo", "trackingID"},
+             {"TrackingLatest", "trackingID"},
+             {"TrackingEvent", "trackingID"},
+             {"Catalog", "gameID"}};
+          for (int i = 0; i < tables.length; ++i)
+             System.out.println((i + 1) + "." + tables[i][0]);
+          int table = readChoice() - 1;
+          if (table < 0 || table >= tables.length) {
+             System.out.println("wrong value");
+             return;
+          }
+          System.out.print("Filter condition(blank for all rows):");
+          String filter = in.readLine().trim();
+          System.out.print("1.CSV 2.binary columnar:");
+          boolean columnar = in.readLine().trim().equals("2");
+          System.out.print("Compress with gzip?(y/n):");
+          boolean gzip = in.readLine().trim().equalsIgnoreCase("y");
+          System.out.print("How many parallel parts:");
+          int parts = Integer.parseInt(in.readLine().trim());
+          System.out.print("Output file:");
+          String path = in.readLine().trim();
+
+          String query = "SELECT * FROM " + tables[table][0] + (filter.isEmpty() ? "" : " WHERE " + filter);
+          long start = System.currentTimeMillis();
+          long rows = new BulkExporter(esql, columnar, gzip).export(query, tables[table][1], path, parts);
+          System.out.println(String.format("Exported %d rows in %d ms", rows, System.currentTimeMillis() - start));
+       }catch(Exception e){
+          System.err.println (e.getMessage());
+       }
+    }//end exportData
+
+    /*
+     * Moves closed orders older than a number of years to the archive
+     **/
+    public static void archiveOrders(GameRental esql) {
+       try{
+          System.out.print("Archive closed orders older than how many years:");
+          int years = Integer.parseInt(in.readLine().trim());
+          if (years < 0) {
+             System.out.println("wrong value");
+             return;
+          }
+          long start = System.currentTimeMillis();
+          long archived = esql._archive.archive(years);
+          System.out.println(String.format("Archived %d orders in %d ms", archived, System.currentTimeMillis() - start));
+       }catch(Exception e){
+          System.err.println (e.getMessage());
+       }
+    }//end archiveOrders
+
+    public static void viewReports(GameRental esql) {
+       try{
+          System.out.println("1. Revenue by genre");
+          System.out.println("2. Revenue by month");
+          System.out.println("3. Revenue by courier");
+          System.out.println("4. Open and returned rentals");
+          int choice = readChoice();
+          if (choice < 1 || choice > 4) {
+             System.out.println("Unrecognized choice!");
+             return;
+          }
+          long start = System.currentTimeMillis();
+          RentalReports reports = esql._reports;
+          RentalReports.Totals totals = reports.refresh();
+          RentalReports.Tally tally = choice == 1 ? totals.genres : choice == 2 ? totals.months
+             : choice == 3 ? totals.couriers : totals.status;
+          List<List<String>> rows = new ArrayList<List<String>>();
+          List<Integer> keys = new ArrayList<Integer>();
+          for (int key = 0; key < tally.size; ++key)
+             if (tally.counts[key] != 0) keys.add(key);
+          // months in order, everything else by revenue
+          if (choice != 2) keys.sort((a, b) -> Long.compare(tally.cents[b], tally.cents[a]));
+          for (int key : keys) {
+             String name = choice == 1 ? reports.genre(key) : choice == 2 ? RentalReports.monthName(key)
+                : choice == 3 ? reports.courier(key) : RentalReports.STATUS[key];
+             rows.add(Arrays.asList(name, Long.toString(tally.counts[key]), PricingEngine.format(tally.cents[key])));
+          }
+          String[] header = choice == 1 ? RentalReports.GENRE_HEADER : choice == 2 ? RentalReports.MONTH_HEADER
+             : choice == 3 ? RentalReports.COURIER_HEADER : RentalReports.STATUS_HEADER;
+          esql._renderer.render(header, rows);
+          System.out.println(String.format("(%d ms)", System.currentTimeMillis() - start));
+       }catch(Exception e){
+          System.err.println (e.getMessage());
+       }
+    }//end viewReports
+
+    /*
+     * Counts the users listing any or all of some games among their
+     * favorites, to size a promotion
+     **/
+    public static void viewAudience(GameRental esql) {
+       try{
+          System.out.print("Games (names or IDs, comma separated):");
+          String games = in.readLine();
+          List<String> gameIDs = new ArrayList<String>();
+          for (String game : games.split(",")) {
+             if (game.trim().isEmpty()) continue;
+             String gameID = esql._catalog.idOf(game.trim());
+             if (gameID == null) {
+                System.out.println("No such game: " + game.trim());
+                return;
+             }
+             gameIDs.add(gameID);
+          }
+          if (gameIDs.isEmpty()) return;
+          System.out.println("1.Users listing any of them 2.Users listing all of them");
+          boolean all = readChoice() == 2;
+          long start = System.nanoTime();
+          LoginBitmap audience = esql._favorites.audience(gameIDs, all);
+          System.out.println(String.format("%d users (%d us)", audience.cardinality(), (System.nanoTime() - start) / 1000));
+          if (audience.cardinality() == 0) return;
+          System.out.print("Show how many of them (0 for none):");
+          int shown = Integer.parseInt(in.readLine().trim());
+          for (String login : esql._favorites.logins(audience, shown))
+             System.out.println(login);
+       }catch(Exception e){
+          System.err.println (e.getMessage());
+       }
+    }//end viewAudience
+
+    /*
+     * Rebuilds UserFavGames from the favGames text of every user, parsing
+     * in parallel; run with "--backfill-favorites" after the arguments
+     **/
+    public static void backfillFavorites(GameRental esql) {
+       List<Connection> databases = esql.isSharded() ? esql._shards : Collections.singletonList(esql._connection);
+       Connection current = esql._connection;
+       long start = System.currentTimeMillis();
+       long pairs = 0;
+       try{
+          for (Connection database : databases) {
+             esql._connection = database;
+             List<List<String>> users = esql.executeQueryAndReturnResult("SELECT login, favGames FROM Users;");
+             List<String> rows = users.parallelStream()
+                .flatMap(u -> FavoritesIndex.parse(u.get(1), esql._catalog).stream()
+                   .map(gameID -> String.format("('%s','%s')", u.get(0).trim().replace("'", "''"), gameID.replace("'", "''"))))
+                .collect(Collectors.toList());
+             boolean autoCommit = database.getAutoCommit();
+             database.setAutoCommit(false);
+             try{
+                esql.executeUpdate("DELETE FROM UserFavGames;");
+                for (int i = 0; i < rows.size(); i += 1000)
+                   esql.executeUpdate(String.format("INSERT INTO UserFavGames (login, gameID) VALUES %s ON CONFLICT DO NOTHING;",
+                      String.join(",", rows.subList(i, Math.min(rows.size(), i + 1000)))));
+                esql.commit();
+             }catch (SQLException e){
+                esql.rollback();
+                throw e;
+             }finally{
+                database.setAutoCommit(autoCommit);
+             }
+             pairs += rows.size();
+          }
+          esql._connection = current;
+          esql.loadFavorites();
+          System.out.println(String.format("Backfilled %d favorites in %d ms", pairs, System.currentTimeMillis() - start));
+       }catch(Exception e){
+          System.err.println (e.getMessage());
+       }finally{
+          esql._connection = current;
+       }
+    }//end backfillFavorites
+
+    /*
+     * Applies a file of user changes, one "login,field,value" line each, where
+     * field is role, login, overdue or phone. Changes are committed in chunks
+     * of gamerental.bulkChunk lines (default 5000), each chunk as one
+     * transaction of set-based statements. The applied count comes from
+     * the rows those statements updated.
+     **/
+    public static void bulkUpdateUsers(GameRental esql, String worker) {
+       try{
+          System.out.print("Change file:");
+          String path = in.readLine().trim();
+          int chunk = Integer.getInteger("gamerental.bulkChunk", 5000);
+          long start = System.currentTimeMillis();
+          int applied = 0, failed = 0, skipped = 0;
+          List<String[]> changes = new ArrayList<String[]>();
+          try (BufferedReader file = new BufferedReader(new FileReader(path))) {
+             String line;
+             int lineNo = 0;
+             while (true) {
+                line = file.readLine();
+                if (line != null) {
+                   ++lineNo;
+                   if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                   String[] change = parseUserChange(line);
+                   if (change == null) {
+                      System.out.println(String.format("line %d skipped: %s", lineNo, line));
+                      ++skipped;
+                      continue;
+                   }
+                   changes.add(change);
+                }
+                if (changes.size() == chunk || (line == null && !changes.isEmpty())) {
+                   int committed = applyUserChanges(esql, worker, changes);
+                   applied += committed;
+                   failed += Math.max(0, changes.size() - committed);
+                   changes.clear();
+                }
+                if (line == null) break;
+             }
+          }
+          System.out.println(String.format("%d user updates applied, %d changes without effect or rolled back, %d skipped in %d ms",
+             applied, failed, skipped, System.currentTimeMillis() - start));
+       }catch(Exception e){
+          System.err.println (e.getMessage());
+       }
+    }//end bulkUpdateUsers
+
+    // Customer, Worker and the audit tables hold logins as CHAR(15)
+    static final int LOGIN_LENGTH = 15;
+
+    /*
+     * Parses a "login,field,value" line into {login, field, value}, or null
+     * when the line is not a valid change.
+     **/
+    static String[] parseUserChange(String line) {
+       String[] change = line.split(",", 3);
+       if (change.length != 3) return null;
+       for (int i = 0; i < 3; ++i) change[i] = change[i].trim();
+       String login = change[0], field = change[1].toLowerCase(), value = change[2];
+       change[1] = field;
+       if (login.isEmpty() || login.length() > LOGIN_LENGTH) return null;
+       switch (field) {
+          case "role":
+             return value.equals("customer") || value.equals("managers") || value.equals("employees") ? change : null;
+          case "login":
+             return !value.isEmpty() && value.length() <= LOGIN_LENGTH ? change : null;
+          case "overdue":
+             try{
+                return Integer.parseInt(value) >= 0 ? change : null;
+             }catch (NumberFormatException e){
+                return null;
+             }
+          case "phone":
+             return value.length() <= 20 ? change : null;
+          default:
+             return null;
+       }
+    }//end parseUserChange
+
+    /*
+     * Commits a chunk of parsed user changes and returns how many users
+     * the committed statements updated, so a change naming no existing user
+     * is not counted. Each shard gets one transaction with at most one
+     * statement per kind of change: renames first (see renameStatements),
+     * cascading through the foreign keys (so other changes in the chunk
+     * name the user by the new login), then roles, moving users between
+     * Worker and Customer, then the overdue counts and phone numbers. When
+     * a login appears twice for the same field, the last line wins.
+     **/
+    static int applyUserChanges(GameRental esql, String worker, List<String[]> changes) {
+       Map<Connection,List<String[]>> byShard = new LinkedHashMap<Connection,List<String[]>>();
+       Connection current = esql._connection;
+       for (String[] change : changes) {
+          esql.useShardFor(change[0]);
+          List<String[]> shardChanges = byShard.get(esql._connection);
+          if (shardChanges == null) byShard.put(esql._connection, shardChanges = new ArrayList<String[]>());
+          shardChanges.add(change);
+       }
+       int committed = 0;
+       try{
+          for (Map.Entry<Connection,List<String[]>> shard : byShard.entrySet()) {
+             Connection connection = shard.getKey();
+             esql._connection = connection;
+             boolean autoCommit = true;
+             int updated = 0;
+             try{
+                autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                Set<String> counted = new HashSet<String>();
+                for (String sql : userChangeStatements(shard.getValue(), counted)) {
+                   int rows = esql.executeUpdate(sql);
+                   if (counted.contains(sql)) updated += rows;
+                }
+                esql.commit();
+             }catch (SQLException e){
+                try{
+                   esql.rollback();
+                }catch (SQLException ignored){
+                }
+                System.err.println(String.format("%d user changes rolled back: %s", shard.getValue().size(), e.getMessage()));
+                continue;
+             }finally{
+                try{
+                   connection.setAutoCommit(autoCommit);
+                }catch (SQLException ignored){
+                }
+             }
+             committed += updated;
+             String by = worker.trim();
+             for (String[] change : shard.getValue())
+                if (change[1].equals("login") && change[0].equals(by)) by = change[2];
+             for (String[] change : shard.getValue()) {
+                String login = change[1].equals("login") ? change[2] : change[0];
+                esql._audit.userUpdated(by, login);
+                // a new login may hash to another shard
+                if (change[1].equals("login")) {
+                   try{
+                      esql.relocateUser(login);
+                   }catch (SQLException e){
+                      System.err.println(String.format("%s not moved to its shard: %s", login, e.getMessage()));
+                   }
+                   esql.reloadFavorites(Arrays.asList(change[0], login));
+                }
+             }
+          }
+       }finally{
+          esql._connection = current;
+       }
+       return committed;
+    }//end applyUserChanges
+
+    /*
+     * The statements applying changes; the ones whose update counts say
+     * how many changes took effect are also added to counted.
+     **/
+    static List<String> userChangeStatements(List<String[]> changes, Set<String> counted) {
+       Map<String,Map<String,String>> byField = new HashMap<String,Map<String,String>>();
+       for (String[] change : changes) {
+          Map<String,String> values = byField.get(change[1]);
+          if (values == null) byField.put(change[1], values = new LinkedHashMap<String,String>());
+          values.put(change[0], change[2]);
+       }
+       List<String> statements = new ArrayList<String>();
+       if (byField.containsKey("login"))
+          renameStatements(byField.get("login"), statements, counted);
+       if (byField.containsKey("role")) {
+          String v = userChangeValues(byField.get("role"), true);
+          statements.add(String.format("UPDATE Users U SET role = v.value FROM (VALUES %s) AS v(login, value) WHERE U.login = v.login;", v));
+          counted.add(statements.get(statements.size() - 1));
+          statements.add(String.format("DELETE FROM Worker W USING (VALUES %s) AS v(login, value) WHERE W.login = v.login AND v.value = 'customer';", v));
+          statements.add(String.format("DELETE FROM Customer C USING (VALUES %s) AS v(login, value) WHERE C.login = v.login AND v.value <> 'customer';", v));
+          statements.add(String.format("INSERT INTO Worker (login) SELECT U.login FROM (VALUES %s) AS v(login, value) JOIN Users U ON U.login = v.login WHERE v.value <> 'customer' ON CONFLICT DO NOTHING;", v));
+          statements.add(String.format("INSERT INTO Customer (login) SELECT U.login FROM (VALUES %s) AS v(login, value) JOIN Users U ON U.login = v.login WHERE v.value = 'customer' ON CONFLICT DO NOTHING;", v));
+       }
+       if (byField.containsKey("overdue")) {
+          String v = userChangeValues(byField.get("overdue"), false);
+          statements.add(String.format("UPDATE Users U SET numOverDueGames = v.value FROM (VALUES %s) AS v(login, value) WHERE U.login = v.login;", v));
+          counted.add(statements.get(statements.size() - 1));
+       }
+       if (byField.containsKey("phone")) {
+          String v = userChangeValues(byField.get("phone"), true);
+          statements.add(String.format("UPDATE Users U SET phoneNum = v.value FROM (VALUES %s) AS v(login, value) WHERE U.login = v.login;", v));
+          counted.add(statements.get(statements.size() - 1));
+       }
+       return statements;
+    }//end userChangeStatements
+
+    /*
+     * Orders renames so no login is taken before its owner has moved off
+     * it (a to b after b to c). Each wave is one UPDATE renaming onto logins
+     * no pending rename still has to vacate; when only cycles are left (a
+     * to b, b to a) one login is parked on a temporary name first, and that
+     * step is not counted.
+     **/
+    static void renameStatements(Map<String,String> renames, List<String> statements, Set<String> counted) {
+       Map<String,String> pending = new LinkedHashMap<String,String>(renames);
+       while (!pending.isEmpty()) {
+          Map<String,String> wave = new LinkedHashMap<String,String>();
+          for (Map.Entry<String,String> e : pending.entrySet())
+             if (e.getKey().equals(e.getValue()) || !pending.containsKey(e.getValue()))
+                wave.put(e.getKey(), e.getValue());
+          if (wave.isEmpty()) {
+             String login = pending.keySet().iterator().next();
+             String parked = "#" + Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+             statements.add(String.format("UPDATE Users SET login = '%s' WHERE login = '%s';", parked, login.replace("'", "''")));
+             pending.put(parked, pending.remove(login));
+             continue;
+          }
+          statements.add(String.format("UPDATE Users U SET login = v.value FROM (VALUES %s) AS v(login, value) WHERE U.login = v.login;", userChangeValues(wave, true)));
+          counted.add(statements.get(statements.size() - 1));
+          pending.keySet().removeAll(wave.keySet());
+       }
+    }//end renameStatements
+
+    static String userChangeValues(Map<String,String> values, boolean quoted) {
+       StringBuilder rows = new StringBuilder();
+       for (Map.Entry<String,String> e : values.entrySet()) {
+          if (rows.length() > 0) rows.append(',');
+          String value = quoted ? "'" + e.getValue().replace("'", "''") + "'" : e.getValue();
+          rows.append(String.format("('%s', %s)", e.getKey().replace("'", "''"), value));
+       }
+       return rows.toString();
+    }//end userChangeValues
+
     public static String updateUser(GameRental esql, String ID) {
        try{
           System.out.println("1.Change One's Login");
@@ -837,29 +7307,17 @@ import java.util.Random;
              case 1:
                 System.out.print("Who do you want to Change:");
                 String target_login = in.readLine();
+                esql.useShardFor(target_login);
                 System.out.print("To what Id?:");
                 String changed_login = in.readLine();
-                if(changed_login.length()<=50){
-                   String query = String.format("SELECT * FROM Worker WHERE login='%s';",target_login);
-                   int n = esql.executeQuery(query);
-                   if(n == 1){
-                      query = String.format("Delete FROM Worker WHERE login='%s';",target_login);
-                      esql.executeUpdate(query);
-                      query = String.format("UPDATE Users SET login='%s' WHERE login='%s';",changed_login,target_login);
-                      esql.executeUpdate(query);
-                      query = String.format("INSERT INTO Worker (login) VALUES ('%s');",changed_login);
-                      esql.executeUpdate(query);
-                   }
-                   else{
-                      query = String.format("Delete FROM Customer WHERE login='%s';",target_login);
-                      esql.executeUpdate(query);
-                      query = String.format("UPDATE Users SET login='%s' WHERE login='%s';",changed_login,target_login);
-                      esql.executeUpdate(query);
-                      query = String.format("INSERT INTO Customer (login) VALUES ('%s');",changed_login);
-                      esql.executeUpdate(query);
-                   }
+                String[] rename = parseUserChange(target_login + ",login," + changed_login);
+                // the rename cascades to Worker/Customer and every table keyed by login
+                if(rename != null && applyUserChanges(esql, ID, Collections.singletonList(rename)) == 1){
                    System.out.println("Changed Login");
-                   ID=changed_login;
+                   // only a worker renaming themselves changes who is logged in
+                   if(target_login.trim().equals(ID.trim())){
+                      ID=changed_login.trim();
+                   }
                 }  
                 else{
                    System.out.println("You put wrong login or too loog login");
@@ -868,25 +7326,15 @@ import java.util.Random;
              case 2:
                 System.out.print("Who do you want to Change:");
                 String target_login_2 = in.readLine();
+                esql.useShardFor(target_login_2);
                 System.out.print("To what Role?(customer,managers,employees):");
                 String changed_Role = in.readLine();
-                if(changed_Role.equals("customer")){
-                   String query = String.format("UPDATE Users SET role = '%s' WHERE login='%s';",changed_Role,target_login_2);
-                   esql.executeUpdate(query);
-                   query = String.format("DELETE FROM Worker WHERE login='%s';",target_login_2);
-                   esql.executeUpdate(query);
-                   query = String.format("INSERT INTO Customer(login) VALUES('%s');",target_login_2);
-                   esql.executeUpdate(query);
-                   System.out.println("Changed Role");
-                }
-                else if(changed_Role.equals("managers") || changed_Role.equals("employees")){
-                   String query = String.format("UPDATE Users SET role = '%s' WHERE login='%s';",changed_Role,target_login_2);
-                   esql.executeUpdate(query);
-                   query = String.format("DELETE FROM Customer WHERE login='%s';",target_login_2);
-                   esql.executeUpdate(query);
-                   query = String.format("INSERT INTO Worker(login) VALUES('%s');",target_login_2);
-                   esql.executeUpdate(query);
-                   System.out.println("Changed Role");
+                String[] roleChange = parseUserChange(target_login_2 + ",role," + changed_Role);
+                if(roleChange != null){
+                   // role and Worker/Customer membership change in one transaction
+                   if(applyUserChanges(esql, ID, Collections.singletonList(roleChange)) == 1){
+                      System.out.println("Changed Role");
+                   }
                 }
                 else{
                    System.out.println("wrong Role name");
@@ -895,11 +7343,13 @@ import java.util.Random;
              case 3:
                 System.out.print("Who do you want to Change:");
                 String target_login_3 = in.readLine();
+                esql.useShardFor(target_login_3);
                 System.out.print("To what number of over due games?:");
                 int overDueGames = Integer.parseInt(in.readLine());
                 if(overDueGames == (int)overDueGames){
                    String query = String.format("UPDATE Users SET numOverDueGames = '%s' WHERE login='%s';",overDueGames,target_login_3);
                    esql.executeUpdate(query);
+                   esql._audit.userUpdated(ID, target_login_3);
                    System.out.println("Changed Number of over due games");
                 }
                 else{
@@ -909,6 +7359,7 @@ import java.util.Random;
              case 4:
                 System.out.print("Who do you want to Change:");
                 String target_login_4 = in.readLine();
+                esql.useShardFor(target_login_4);
                 System.out.print("one's New password:");
                 String password1 = in.readLine();
                 System.out.print("Re New password:");
@@ -916,26 +7367,32 @@ import java.util.Random;
                 if(password1.equals(password2) && password1.length()<=30){
                    String query = String.format("UPDATE Users SET password = '%s' WHERE login='%s';",password1,target_login_4);
                    esql.executeUpdate(query);
+                   esql._audit.userUpdated(ID, target_login_4);
                    System.out.println("Changed Password");
                 }  
              break;
              case 5:
                 System.out.print("Who do you want to Change:");
                 String target_login_5 = in.readLine();
+                esql.useShardFor(target_login_5);
                 System.out.println("Whats one's new Favorite Games?(put space between each game):");
                 String favGames = in.readLine();
                 String query = String.format("UPDATE Users SET favGames = '%s' WHERE login='%s';",favGames,target_login_5);
                 esql.executeUpdate(query);
+                esql.saveFavorites(target_login_5, favGames);
+                esql._audit.userUpdated(ID, target_login_5);
                 System.out.println("Changed Favorite Games");
              break;
              case 6:
                 System.out.print("Who do you want to Change:");
                 String target_login_6 = in.readLine();
+                esql.useShardFor(target_login_6);
                 System.out.print("one's New PhoneNumber:");
                 String phonenumber = in.readLine();
                 if(phonenumber.length()<=20){
                    query = String.format("UPDATE Users SET phoneNum = '%s' WHERE login='%s';",phonenumber,target_login_6);
                    esql.executeUpdate(query);
+                   esql._audit.userUpdated(ID, target_login_6);
                    System.out.println("Changed PhoneNumber");
                 }
                 else{
@@ -0,0 +1,149 @@
+/*
+ * Checks of the parts of GameRental that need no database: amount
+ * parsing, rename ordering, query templates, the timing wheel and user
+ * change lines. Run with scripts/test.sh; the exit status is the number
+ * of failed checks.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class GameRentalTest {
+
+   private static int failed = 0;
+
+   private static void check(boolean ok, String what) {
+      if (!ok) {
+         ++failed;
+         System.out.println("FAILED " + what);
+      }
+   }
+
+   private static void checkEquals(Object expected, Object actual, String what) {
+      check(expected == null ? actual == null : expected.equals(actual),
+         String.format("%s: expected %s, got %s", what, expected, actual));
+   }
+
+   static void parseCents() {
+      checkEquals(3299L, GameRental.PricingEngine.parseCents("32.99"), "parseCents 32.99");
+      checkEquals(-500L, GameRental.PricingEngine.parseCents("-5"), "parseCents -5");
+      checkEquals(50L, GameRental.PricingEngine.parseCents(" .5 "), "parseCents .5");
+      checkEquals(101L, GameRental.PricingEngine.parseCents("1.005"), "parseCents rounds half up");
+      checkEquals(100L, GameRental.PricingEngine.parseCents("1.0049"), "parseCents rounds on the third decimal");
+      checkEquals(Long.MAX_VALUE, GameRental.PricingEngine.parseCents("92233720368547758.07"), "parseCents largest amount");
+      for (String amount : new String[]{"", "-", "1.2.3", "12a", "92233720368547758.08", "99999999999999999999"}) {
+         try{
+            GameRental.PricingEngine.parseCents(amount);
+            check(false, "parseCents accepted \"" + amount + "\"");
+         }catch (NumberFormatException e){
+            // expected
+         }
+      }
+      checkEquals("-0.05", GameRental.PricingEngine.format(-5), "format -5");
+      checkEquals("32.99", GameRental.PricingEngine.format(GameRental.PricingEngine.parseCents("32.99")), "format round trip");
+   }
+
+   static void renameStatements() {
+      // a chain renames the end of it first, in waves, parking nothing
+      Map<String,String> chain = new LinkedHashMap<String,String>();
+      chain.put("a", "b");
+      chain.put("b", "c");
+      List<String> statements = new ArrayList<String>();
+      Set<String> counted = new HashSet<String>();
+      GameRental.renameStatements(chain, statements, counted);
+      checkEquals(2, statements.size(), "chain statements");
+      check(statements.get(0).contains("('b', 'c')") && statements.get(1).contains("('a', 'b')"), "chain renames b before a: " + statements);
+      checkEquals(2, counted.size(), "chain counted statements");
+
+      // a cycle parks one login first, and the parking is not counted
+      Map<String,String> cycle = new LinkedHashMap<String,String>();
+      cycle.put("a", "b");
+      cycle.put("b", "a");
+      statements.clear();
+      counted.clear();
+      GameRental.renameStatements(cycle, statements, counted);
+      checkEquals(3, statements.size(), "cycle statements");
+      check(statements.get(0).startsWith("UPDATE Users SET login = '#") && statements.get(0).endsWith("WHERE login = 'a';"), "cycle parks a: " + statements);
+      check(!counted.contains(statements.get(0)), "parking is not counted");
+      checkEquals(2, counted.size(), "cycle counted statements");
+      String parked = statements.get(0).substring("UPDATE Users SET login = '".length(), statements.get(0).indexOf("' WHERE"));
+      check(statements.get(1).contains("('b', 'a')") && statements.get(2).contains("('" + parked + "', 'b')"), "cycle renames b, then the parked a: " + statements);
+
+      // a rename onto itself is a wave of its own
+      statements.clear();
+      counted.clear();
+      GameRental.renameStatements(java.util.Collections.singletonMap("a", "a"), statements, counted);
+      checkEquals(1, statements.size(), "self rename statements");
+   }
+
+   static void normalize() {
+      checkEquals("SELECT * FROM Users WHERE login = ? AND numOverDueGames > ?",
+         GameRental.QueryMetrics.normalize("SELECT *  FROM Users\n WHERE login = 'o''brien' AND numOverDueGames > 3"), "normalize literals");
+      checkEquals("SELECT price FROM Catalog WHERE price < ? AND gameID IN (?)",
+         GameRental.QueryMetrics.normalize("SELECT price FROM Catalog WHERE price < 32.99 AND gameID IN ('g1', 'g2','g3')"), "normalize IN list");
+      checkEquals("INSERT INTO UserFavGames VALUES (?)",
+         GameRental.QueryMetrics.normalize("INSERT INTO UserFavGames VALUES ('a', 'g1'), ('b', 'g2')"), "normalize VALUES rows");
+      checkEquals("INSERT INTO Catalog_import_? SELECT * FROM Catalog",
+         GameRental.QueryMetrics.normalize("INSERT INTO Catalog_import_3fa9c01b SELECT * FROM Catalog"), "normalize staging table");
+      checkEquals("SELECT * FROM Worker_User_updates",
+         GameRental.QueryMetrics.normalize("SELECT * FROM Worker_User_updates"), "normalize keeps names");
+      checkEquals("SELECT * FROM T2 WHERE x = ?",
+         GameRental.QueryMetrics.normalize("SELECT * FROM T2 WHERE x = 7"), "normalize keeps words with digits");
+   }
+
+   static void timingWheel() {
+      GameRental.TimingWheel<String> wheel = new GameRental.TimingWheel<String>(100);
+      long top = 1L << (6 * GameRental.TimingWheel.LEVELS);
+      wheel.add(105, "level 0");
+      wheel.add(100 + 64 * 3, "level 1");
+      wheel.add(100 + 64 * 64 * 2, "level 2");
+      wheel.add(100 + top + 10, "overflow");
+      wheel.add(90, "past");
+      checkEquals(5, wheel.size(), "timers added");
+      checkEquals(Arrays.asList("past"), wheel.advance(100), "past timer fires at once");
+      checkEquals(Arrays.asList(), wheel.advance(104), "nothing before its tick");
+      checkEquals(Arrays.asList("level 0"), wheel.advance(105), "level 0 timer");
+      checkEquals(Arrays.asList(), wheel.advance(100 + 64 * 3 - 1), "level 1 not early");
+      checkEquals(Arrays.asList("level 1"), wheel.advance(100 + 64 * 3), "level 1 timer on its tick");
+      checkEquals(Arrays.asList(), wheel.advance(100 + 64 * 64 * 2 - 1), "level 2 not early");
+      checkEquals(Arrays.asList("level 2"), wheel.advance(100 + 64 * 64 * 2), "level 2 timer on its tick");
+      checkEquals(Arrays.asList(), wheel.advance(100 + top + 9), "overflow not early");
+      checkEquals(Arrays.asList("overflow"), wheel.advance(100 + top + 10), "overflow timer on its tick");
+      checkEquals(0, wheel.size(), "wheel empty");
+
+      // timers on one tick fire in the order added
+      wheel.add(wheel.currentTick() + 70, "first");
+      wheel.add(wheel.currentTick() + 70, "second");
+      checkEquals(Arrays.asList("first", "second"), wheel.advance(wheel.currentTick() + 100), "same tick order");
+   }
+
+   static void parseUserChange() {
+      checkEquals(Arrays.asList("bob", "role", "managers"), asList(GameRental.parseUserChange(" bob , ROLE , managers ")), "role change");
+      checkEquals(Arrays.asList("bob", "login", "robert"), asList(GameRental.parseUserChange("bob,login,robert")), "login change");
+      checkEquals(Arrays.asList("bob", "overdue", "0"), asList(GameRental.parseUserChange("bob,overdue,0")), "overdue change");
+      checkEquals(Arrays.asList("bob", "phone", "555-0100, ext 2"), asList(GameRental.parseUserChange("bob,phone,555-0100, ext 2")), "phone keeps commas");
+      for (String line : new String[]{"bob,role", "bob,role,admin", ",login,x", "bob,login,", "bob,login,abcdefghijklmnop",
+            "abcdefghijklmnop,phone,1", "bob,overdue,-1", "bob,overdue,many", "bob,phone,123456789012345678901", "bob,email,x"})
+         checkEquals(null, asList(GameRental.parseUserChange(line)), "rejects \"" + line + "\"");
+   }
+
+   private static List<String> asList(String[] change) {
+      return change == null ? null : Arrays.asList(change);
+   }
+
+   public static void main(String[] args) {
+      parseCents();
+      renameStatements();
+      normalize();
+      timingWheel();
+      parseUserChange();
+      System.out.println(failed == 0 ? "All checks passed" : failed + " check(s) failed");
+      System.exit(failed);
+   }
+}//end GameRentalTest
@@ -0,0 +1,15 @@
+#!/bin/bash
+# Starts a streaming replica of the cluster on $PGPORT, for trying the
+# read/write splitting locally. Run the program against it with
+#   java -Dgamerental.replicas=localhost:$REPLICA_PORT -cp ... GameRental ...
+REPLICA_PORT=${REPLICA_PORT:-$((PGPORT + 1))}
+REPLICA_DATA=${REPLICA_DATA:-/tmp/$USER/replica_data}
+
+echo "creating replica of port $PGPORT on port $REPLICA_PORT in $REPLICA_DATA"
+pg_ctl -D $REPLICA_DATA stop 2>/dev/null
+rm -rf $REPLICA_DATA
+mkdir -p $(dirname $REPLICA_DATA)
+
+# -R writes the standby settings, -X stream copies WAL while the backup runs
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DATA -R -X stream
+pg_ctl -D $REPLICA_DATA -o "-p $REPLICA_PORT" -l $REPLICA_DATA/replica.log start
@@ -3,6 +3,14 @@ DROP TABLE IF EXISTS Catalog CASCADE;
 DROP TABLE IF EXISTS RentalOrder CASCADE;
 DROP TABLE IF EXISTS TrackingInfo CASCADE;
 DROP TABLE IF EXISTS GamesInOrder CASCADE;
+DROP TABLE IF EXISTS Inventory CASCADE;
+DROP TABLE IF EXISTS UserFavGames CASCADE;
+DROP TABLE IF EXISTS Catalog_changes CASCADE;
+DROP TABLE IF EXISTS TrackingEvent CASCADE;
+DROP TABLE IF EXISTS TrackingLatest CASCADE;
+DROP TABLE IF EXISTS ShardCommits CASCADE;
+DROP TABLE IF EXISTS RentalOrderDeletes CASCADE;
+DROP SEQUENCE IF EXISTS change_notification_seq;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
@@ -22,16 +30,18 @@ CREATE TABLE Catalog ( gameID varchar(50) NOT NULL,
                        PRIMARY KEY(gameID)
 );
 
+/* Orders and their children are partitioned by year of orderTimestamp,
+   which the children carry so every key and join can be pruned */
 CREATE TABLE RentalOrder ( rentalOrderID varchar(50) NOT NULL,
                            login varchar(50) NOT NULL,
                            noOfGames integer NOT NULL,
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
                            dueDate timestamp NOT NULL,
-                           PRIMARY KEY(rentalOrderID),
+                           PRIMARY KEY(rentalOrderID, orderTimestamp),
                            FOREIGN KEY(login) REFERENCES Users(login)
-                           ON DELETE CASCADE
-);
+                           ON DELETE CASCADE ON UPDATE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
 
 CREATE TABLE TrackingInfo ( trackingID varchar(50) NOT NULL,
                            rentalOrderID varchar(50) NOT NULL,
@@ -40,16 +50,226 @@ CREATE TABLE TrackingInfo ( trackingID varchar(50) NOT NULL,
                            courierName varchar(60) NOT NULL,
                            lastUpdateDate timestamp NOT NULL,
                            additionalComments text,
-                           PRIMARY KEY(trackingID),
-                           FOREIGN KEY(rentalOrderID) REFERENCES RentalOrder(rentalOrderID)
+                           orderTimestamp timestamp NOT NULL,
+                           PRIMARY KEY(trackingID, orderTimestamp),
+                           FOREIGN KEY(rentalOrderID, orderTimestamp) REFERENCES RentalOrder(rentalOrderID, orderTimestamp)
                            ON DELETE CASCADE
-);
+) PARTITION BY RANGE (orderTimestamp);
 
 CREATE TABLE GamesInOrder ( rentalOrderID varchar(50) NOT NULL,
                            gameID varchar(50) NOT NULL,
                            unitsOrdered integer NOT NULL,
-                           PRIMARY KEY(rentalOrderID, gameID),
-                           FOREIGN KEY(rentalOrderID) REFERENCES RentalOrder(rentalOrderID) ON DELETE CASCADE,
+                           orderTimestamp timestamp NOT NULL,
+                           PRIMARY KEY(rentalOrderID, gameID, orderTimestamp),
+                           FOREIGN KEY(rentalOrderID, orderTimestamp) REFERENCES RentalOrder(rentalOrderID, orderTimestamp) ON DELETE CASCADE,
                            FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
                            ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE INDEX RentalOrder_login ON RentalOrder (login, orderTimestamp);
+CREATE INDEX RentalOrder_dueDate ON RentalOrder (dueDate);
+CREATE INDEX TrackingInfo_trackingID ON TrackingInfo (trackingID);
+
+CREATE OR REPLACE FUNCTION rental_order_partition(year integer) RETURNS void AS $$
+DECLARE
+    t text;
+BEGIN
+    FOREACH t IN ARRAY ARRAY['RentalOrder', 'TrackingInfo', 'GamesInOrder'] LOOP
+        EXECUTE format('CREATE TABLE IF NOT EXISTS %s_%s PARTITION OF %s FOR VALUES FROM (%L) TO (%L)',
+                       t, year, t, make_date(year, 1, 1), make_date(year + 1, 1, 1));
+    END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT rental_order_partition(year) FROM generate_series(2010, 2035) AS year;
+CREATE TABLE RentalOrder_default PARTITION OF RentalOrder DEFAULT;
+CREATE TABLE TrackingInfo_default PARTITION OF TrackingInfo DEFAULT;
+CREATE TABLE GamesInOrder_default PARTITION OF GamesInOrder DEFAULT;
+
+CREATE TABLE Inventory ( gameID varchar(50) NOT NULL,
+                         onHand integer NOT NULL DEFAULT 0 CHECK (onHand >= 0),
+                         PRIMARY KEY(gameID),
+                         FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                         ON DELETE CASCADE
 );
+
+/* Users.favGames normalized to one row per (user, game); the text stays
+   as typed, this is what audience queries read */
+CREATE TABLE UserFavGames ( login varchar(50) NOT NULL,
+                            gameID varchar(50) NOT NULL,
+                            PRIMARY KEY(login, gameID),
+                            FOREIGN KEY(login) REFERENCES Users(login)
+                            ON DELETE CASCADE ON UPDATE CASCADE,
+                            FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                            ON DELETE CASCADE
+);
+
+CREATE INDEX UserFavGames_gameID ON UserFavGames (gameID);
+
+/* Commit decisions of writes spread over every shard, kept on the first
+   shard while the prepared parts are being committed */
+CREATE TABLE ShardCommits ( gid varchar(64) NOT NULL,
+                            decided timestamp NOT NULL DEFAULT now(),
+                            PRIMARY KEY(gid)
+);
+
+/* Counts statements that delete orders (the archive, deleted users), so
+   reports folded over old orders can tell cheaply when to fold again */
+CREATE TABLE RentalOrderDeletes ( deletes bigint NOT NULL );
+INSERT INTO RentalOrderDeletes VALUES (0);
+
+CREATE OR REPLACE FUNCTION count_order_delete() RETURNS trigger AS $$
+BEGIN
+    UPDATE RentalOrderDeletes SET deletes = deletes + 1;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rental_order_deleted
+AFTER DELETE ON RentalOrder
+FOR EACH STATEMENT EXECUTE PROCEDURE count_order_delete();
+
+/* One row per change to Catalog; the highest changeNo versions the catalog
+   so cached copies can fetch only what changed since they were built */
+CREATE TABLE Catalog_changes ( changeNo bigserial NOT NULL,
+                               gameID varchar(50) NOT NULL,
+                               txid bigint NOT NULL DEFAULT txid_current(),
+                               PRIMARY KEY(changeNo)
+);
+CREATE INDEX Catalog_changes_txid ON Catalog_changes (txid);
+
+CREATE OR REPLACE FUNCTION record_catalog_change() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        INSERT INTO Catalog_changes (gameID) VALUES (OLD.gameID);
+    ELSE
+        INSERT INTO Catalog_changes (gameID) VALUES (NEW.gameID);
+    END IF;
+    IF TG_OP = 'UPDATE' AND OLD.gameID <> NEW.gameID THEN
+        INSERT INTO Catalog_changes (gameID) VALUES (OLD.gameID);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER catalog_changed
+AFTER INSERT OR UPDATE OR DELETE ON Catalog
+FOR EACH ROW EXECUTE PROCEDURE record_catalog_change();
+
+/* Append-only history of every tracking update, partitioned by year.
+   NULL columns are the ones the event did not change */
+CREATE TABLE TrackingEvent ( trackingID varchar(50) NOT NULL,
+                             eventNo bigserial NOT NULL,
+                             eventTime timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                             status varchar(50),
+                             currentLocation varchar(60),
+                             courierName varchar(60),
+                             additionalComments text,
+                             login varchar(50),
+                             PRIMARY KEY(trackingID, eventNo, eventTime)
+) PARTITION BY RANGE (eventTime);
+CREATE INDEX TrackingEvent_eventNo ON TrackingEvent (eventNo);
+
+CREATE OR REPLACE FUNCTION tracking_event_partition(year integer) RETURNS void AS $$
+BEGIN
+    EXECUTE format('CREATE TABLE IF NOT EXISTS TrackingEvent_%s PARTITION OF TrackingEvent FOR VALUES FROM (%L) TO (%L)',
+                   year, make_date(year, 1, 1), make_date(year + 1, 1, 1));
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT tracking_event_partition(year) FROM generate_series(2010, 2035) AS year;
+CREATE TABLE TrackingEvent_default PARTITION OF TrackingEvent DEFAULT;
+
+/* Current state of each shipment, folded from TrackingEvent. Kept narrow
+   (no comments) so status updates rewrite a small row. Events are ordered
+   by (eventTime, eventNo); lastEventNo is the tie-break of the newest one
+   folded in */
+CREATE TABLE TrackingLatest ( trackingID varchar(50) NOT NULL,
+                              status varchar(50) NOT NULL,
+                              currentLocation varchar(60) NOT NULL,
+                              courierName varchar(60) NOT NULL,
+                              lastUpdateDate timestamp NOT NULL,
+                              lastEventNo bigint NOT NULL DEFAULT 0,
+                              PRIMARY KEY(trackingID)
+);
+
+/* An event at or after the folded state is applied on top of it. One that
+   arrives late (resharding copies events in no set order) would otherwise
+   overwrite newer values, so the shipment is folded again from its events
+   instead, each column taking its newest non-NULL value */
+CREATE OR REPLACE FUNCTION fold_tracking_event() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO TrackingLatest (trackingID, status, currentLocation, courierName, lastUpdateDate, lastEventNo)
+    VALUES (NEW.trackingID, COALESCE(NEW.status, ''), COALESCE(NEW.currentLocation, ''),
+            COALESCE(NEW.courierName, ''), NEW.eventTime, NEW.eventNo)
+    ON CONFLICT (trackingID) DO UPDATE
+    SET status = COALESCE(NEW.status, TrackingLatest.status),
+        currentLocation = COALESCE(NEW.currentLocation, TrackingLatest.currentLocation),
+        courierName = COALESCE(NEW.courierName, TrackingLatest.courierName),
+        lastUpdateDate = EXCLUDED.lastUpdateDate,
+        lastEventNo = EXCLUDED.lastEventNo
+    WHERE (EXCLUDED.lastUpdateDate, EXCLUDED.lastEventNo) >= (TrackingLatest.lastUpdateDate, TrackingLatest.lastEventNo);
+    IF NOT FOUND THEN
+        UPDATE TrackingLatest
+        SET status = COALESCE((SELECT E.status FROM TrackingEvent E WHERE E.trackingID = NEW.trackingID AND E.status IS NOT NULL
+                               ORDER BY E.eventTime DESC, E.eventNo DESC LIMIT 1), ''),
+            currentLocation = COALESCE((SELECT E.currentLocation FROM TrackingEvent E WHERE E.trackingID = NEW.trackingID AND E.currentLocation IS NOT NULL
+                                        ORDER BY E.eventTime DESC, E.eventNo DESC LIMIT 1), ''),
+            courierName = COALESCE((SELECT E.courierName FROM TrackingEvent E WHERE E.trackingID = NEW.trackingID AND E.courierName IS NOT NULL
+                                    ORDER BY E.eventTime DESC, E.eventNo DESC LIMIT 1), '')
+        WHERE trackingID = NEW.trackingID;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER tracking_event_folded
+AFTER INSERT ON TrackingEvent
+FOR EACH ROW EXECUTE PROCEDURE fold_tracking_event();
+
+/* trackingID alone is not a key of the partitioned TrackingInfo, so a
+   shipment's events and latest state are removed by trigger instead of a
+   foreign key */
+CREATE OR REPLACE FUNCTION forget_tracking() RETURNS trigger AS $$
+BEGIN
+    DELETE FROM TrackingEvent WHERE trackingID = OLD.trackingID;
+    DELETE FROM TrackingLatest WHERE trackingID = OLD.trackingID;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER tracking_forgotten
+AFTER DELETE ON TrackingInfo
+FOR EACH ROW EXECUTE PROCEDURE forget_tracking();
+
+/* Other GameRental instances LISTEN on "gamerental_<kind>" to invalidate
+   their caches. The payload is "kind:key", and drivers that drop payloads
+   still get the kind from the channel. Notifications are only sent at
+   commit, so a listener that stays connected misses none */
+CREATE OR REPLACE FUNCTION notify_change() RETURNS trigger AS $$
+DECLARE
+    changed jsonb := CASE WHEN TG_OP = 'DELETE' THEN to_jsonb(OLD) ELSE to_jsonb(NEW) END;
+BEGIN
+    PERFORM pg_notify('gamerental_' || TG_ARGV[0], TG_ARGV[0] || ':' || (changed ->> TG_ARGV[1]));
+    IF TG_OP = 'UPDATE' AND (to_jsonb(OLD) ->> TG_ARGV[1]) <> (changed ->> TG_ARGV[1]) THEN
+        PERFORM pg_notify('gamerental_' || TG_ARGV[0], TG_ARGV[0] || ':' || (to_jsonb(OLD) ->> TG_ARGV[1]));
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER catalog_notified
+AFTER INSERT OR UPDATE OR DELETE ON Catalog
+FOR EACH ROW EXECUTE PROCEDURE notify_change('c', 'gameid');
+
+CREATE TRIGGER tracking_notified
+AFTER INSERT ON TrackingEvent
+FOR EACH ROW EXECUTE PROCEDURE notify_change('t', 'trackingid');
+
+CREATE TRIGGER users_notified
+AFTER UPDATE OR DELETE ON Users
+FOR EACH ROW EXECUTE PROCEDURE notify_change('u', 'login');
+
+CREATE TRIGGER favorites_notified
+AFTER INSERT OR UPDATE OR DELETE ON UserFavGames
+FOR EACH ROW EXECUTE PROCEDURE notify_change('f', 'login');
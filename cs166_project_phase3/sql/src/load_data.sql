@@ -11,10 +11,46 @@ COPY RentalOrder
 FROM '/home/csmajs/slee809/Project/project2/CS166_Team22_project/cs166_project_phase3/data/rentalorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY TrackingInfo
+/* The child files have no orderTimestamp; it is taken from the order */
+CREATE TEMP TABLE TrackingInfo_load ( trackingID varchar(50), rentalOrderID varchar(50), status varchar(50),
+                                      currentLocation varchar(60), courierName varchar(60),
+                                      lastUpdateDate timestamp, additionalComments text );
+COPY TrackingInfo_load
 FROM '/home/csmajs/slee809/Project/project2/CS166_Team22_project/cs166_project_phase3/data/trackinginfo.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO TrackingInfo
+SELECT T.trackingID, T.rentalOrderID, T.status, T.currentLocation, T.courierName, T.lastUpdateDate, T.additionalComments, R.orderTimestamp
+FROM TrackingInfo_load T, RentalOrder R
+WHERE R.rentalOrderID = T.rentalOrderID;
 
-COPY GamesInOrder
+CREATE TEMP TABLE GamesInOrder_load ( rentalOrderID varchar(50), gameID varchar(50), unitsOrdered integer );
+COPY GamesInOrder_load
 FROM '/home/csmajs/slee809/Project/project2/CS166_Team22_project/cs166_project_phase3/data/gamesinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO GamesInOrder
+SELECT G.rentalOrderID, G.gameID, G.unitsOrdered, R.orderTimestamp
+FROM GamesInOrder_load G, RentalOrder R
+WHERE R.rentalOrderID = G.rentalOrderID;
+
+/* Every game starts with the same number of physical copies */
+INSERT INTO Inventory (gameID, onHand)
+SELECT gameID, 20 FROM Catalog;
+
+/* Split users into customers and workers; the audit tables reference them */
+INSERT INTO Customer (login)
+SELECT login FROM Users WHERE role = 'customer';
+
+INSERT INTO Worker (login)
+SELECT login FROM Users WHERE role <> 'customer';
+
+/* The loaded state of each shipment is its first tracking event */
+INSERT INTO TrackingEvent (trackingID, eventTime, status, currentLocation, courierName, additionalComments)
+SELECT trackingID, lastUpdateDate, status, currentLocation, courierName, additionalComments
+FROM TrackingInfo;
+
+/* Favorites that are comma-separated catalog names; the rest are parsed by
+   "java GameRental <dbname> <port> <user> --backfill-favorites" */
+INSERT INTO UserFavGames (login, gameID)
+SELECT DISTINCT U.login, C.gameID
+FROM Users U CROSS JOIN LATERAL regexp_split_to_table(U.favGames, '\s*,\s*') AS f(name)
+JOIN Catalog C ON lower(C.gameName) = lower(trim(f.name));